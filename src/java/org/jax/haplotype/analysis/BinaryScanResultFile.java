@@ -0,0 +1,727 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.haplotype.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A columnar binary file of scan results which can be memory mapped and
+ * read without parsing. The file is big-endian. It starts with a header
+ * (magic number, version, SNP count, phenotype count, column flags, the
+ * offset of the first column, phenotype names and the chromosome name
+ * table) which is followed by these columns, each starting on a multiple
+ * of eight bytes:
+ * <ol>
+ * <li>positions as longs (if present)</li>
+ * <li>chromosomes as int indices into the chromosome name table (if present)</li>
+ * <li>p-values as doubles, one column per phenotype</li>
+ * <li>SNP ID start offsets as snpCount + 1 longs followed by the UTF-8
+ *     bytes of the IDs (if present)</li>
+ * </ol>
+ * Use {@link Writer} to create a file and {@link #open(File)} to read one.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class BinaryScanResultFile
+{
+    private static final int MAGIC_NUMBER = 0x454D4D52;
+    
+    private static final int VERSION = 1;
+    
+    private static final int HAS_SNP_IDS_FLAG = 1;
+    
+    private static final int HAS_CHROMOSOMES_FLAG = 2;
+    
+    private static final int HAS_POSITIONS_FLAG = 4;
+    
+    private static final int COLUMN_ALIGNMENT_BYTES = 8;
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private static final String CHARSET_NAME = "UTF-8";
+    
+    /**
+     * the SNP ID bytes are mapped in windows of 2^SNP_ID_WINDOW_SHIFT bytes
+     * since a single mapping can't be larger than 2 GB
+     */
+    private static final int SNP_ID_WINDOW_SHIFT = 30;
+    
+    private static final long SNP_ID_WINDOW_SIZE = 1L << SNP_ID_WINDOW_SHIFT;
+    
+    private final int snpCount;
+    
+    private final String[] phenotypeNames;
+    
+    private final String[] chromosomeNames;
+    
+    private final LongBuffer positions;
+    
+    private final IntBuffer chromosomeIndices;
+    
+    private final DoubleBuffer[] pValues;
+    
+    private final LongBuffer snpIdOffsets;
+    
+    /**
+     * the SNP ID bytes. byte i is in window i >>> SNP_ID_WINDOW_SHIFT
+     */
+    private final ByteBuffer[] snpIdBytes;
+    
+    private BinaryScanResultFile(
+            int snpCount,
+            String[] phenotypeNames,
+            String[] chromosomeNames,
+            LongBuffer positions,
+            IntBuffer chromosomeIndices,
+            DoubleBuffer[] pValues,
+            LongBuffer snpIdOffsets,
+            ByteBuffer[] snpIdBytes)
+    {
+        this.snpCount = snpCount;
+        this.phenotypeNames = phenotypeNames;
+        this.chromosomeNames = chromosomeNames;
+        this.positions = positions;
+        this.chromosomeIndices = chromosomeIndices;
+        this.pValues = pValues;
+        this.snpIdOffsets = snpIdOffsets;
+        this.snpIdBytes = snpIdBytes;
+    }
+    
+    /**
+     * Getter for the SNP count
+     * @return the snpCount
+     */
+    public int getSnpCount()
+    {
+        return this.snpCount;
+    }
+    
+    /**
+     * Get the names of the p-value columns
+     * @return
+     *          the phenotype names
+     */
+    public String[] getPhenotypeNames()
+    {
+        return this.phenotypeNames.clone();
+    }
+    
+    /**
+     * Get a p-value
+     * @param phenotypeIndex
+     *          the p-value column
+     * @param snpIndex
+     *          the SNP
+     * @return
+     *          the p-value
+     */
+    public double getPValue(int phenotypeIndex, int snpIndex)
+    {
+        return this.pValues[phenotypeIndex].get(snpIndex);
+    }
+    
+    /**
+     * Determine if the file has positions
+     * @return
+     *          true if {@link #getPosition(int)} can be called
+     */
+    public boolean hasPositions()
+    {
+        return this.positions != null;
+    }
+    
+    /**
+     * Get the base pair position of a SNP
+     * @param snpIndex
+     *          the SNP
+     * @return
+     *          the position or -1 if it was missing
+     */
+    public long getPosition(int snpIndex)
+    {
+        return this.positions.get(snpIndex);
+    }
+    
+    /**
+     * Determine if the file has chromosomes
+     * @return
+     *          true if {@link #getChromosome(int)} can be called
+     */
+    public boolean hasChromosomes()
+    {
+        return this.chromosomeIndices != null;
+    }
+    
+    /**
+     * Get the chromosome of a SNP
+     * @param snpIndex
+     *          the SNP
+     * @return
+     *          the chromosome
+     */
+    public String getChromosome(int snpIndex)
+    {
+        return this.chromosomeNames[this.chromosomeIndices.get(snpIndex)];
+    }
+    
+    /**
+     * Determine if the file has SNP IDs
+     * @return
+     *          true if {@link #getSnpId(int)} can be called
+     */
+    public boolean hasSnpIds()
+    {
+        return this.snpIdOffsets != null;
+    }
+    
+    /**
+     * Get the ID of a SNP
+     * @param snpIndex
+     *          the SNP
+     * @return
+     *          the ID
+     */
+    public String getSnpId(int snpIndex)
+    {
+        long start = this.snpIdOffsets.get(snpIndex);
+        long end = this.snpIdOffsets.get(snpIndex + 1);
+        byte[] idBytes = new byte[(int)(end - start)];
+        
+        // an ID can straddle two windows
+        int copiedCount = 0;
+        long currOffset = start;
+        while(copiedCount < idBytes.length)
+        {
+            ByteBuffer window =
+                this.snpIdBytes[(int)(currOffset >>> SNP_ID_WINDOW_SHIFT)].duplicate();
+            window.position((int)(currOffset & (SNP_ID_WINDOW_SIZE - 1L)));
+            int currCount = Math.min(idBytes.length - copiedCount, window.remaining());
+            window.get(idBytes, copiedCount, currCount);
+            copiedCount += currCount;
+            currOffset += currCount;
+        }
+        
+        try
+        {
+            return new String(idBytes, CHARSET_NAME);
+        }
+        catch(IOException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Memory map the given result file
+     * @param file
+     *          the file to map
+     * @return
+     *          the mapped results
+     * @throws IOException
+     *          if the file can't be read or isn't a scan result file
+     */
+    public static BinaryScanResultFile open(File file) throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            DataInputStream headerIn = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            int snpCount;
+            int flags;
+            String[] phenotypeNames;
+            String[] chromosomeNames;
+            long columnsOffset;
+            try
+            {
+                if(headerIn.readInt() != MAGIC_NUMBER)
+                {
+                    throw new IOException(
+                            "not a scan result file: " + file.getAbsolutePath());
+                }
+                int version = headerIn.readInt();
+                if(version != VERSION)
+                {
+                    throw new IOException(
+                            "unsupported scan result file version " + version +
+                            ": " + file.getAbsolutePath());
+                }
+                
+                snpCount = headerIn.readInt();
+                phenotypeNames = new String[headerIn.readInt()];
+                flags = headerIn.readInt();
+                columnsOffset = headerIn.readLong();
+                for(int i = 0; i < phenotypeNames.length; i++)
+                {
+                    phenotypeNames[i] = headerIn.readUTF();
+                }
+                chromosomeNames = new String[headerIn.readInt()];
+                for(int i = 0; i < chromosomeNames.length; i++)
+                {
+                    chromosomeNames[i] = headerIn.readUTF();
+                }
+            }
+            finally
+            {
+                headerIn.close();
+            }
+            
+            FileChannel channel = in.getChannel();
+            long offset = columnsOffset;
+            
+            LongBuffer positions = null;
+            if((flags & HAS_POSITIONS_FLAG) != 0)
+            {
+                positions = map(channel, offset, snpCount * 8L).asLongBuffer();
+                offset += align(snpCount * 8L);
+            }
+            
+            IntBuffer chromosomeIndices = null;
+            if((flags & HAS_CHROMOSOMES_FLAG) != 0)
+            {
+                chromosomeIndices = map(channel, offset, snpCount * 4L).asIntBuffer();
+                offset += align(snpCount * 4L);
+            }
+            
+            DoubleBuffer[] pValues = new DoubleBuffer[phenotypeNames.length];
+            for(int i = 0; i < pValues.length; i++)
+            {
+                pValues[i] = map(channel, offset, snpCount * 8L).asDoubleBuffer();
+                offset += align(snpCount * 8L);
+            }
+            
+            LongBuffer snpIdOffsets = null;
+            ByteBuffer[] snpIdBytes = null;
+            if((flags & HAS_SNP_IDS_FLAG) != 0)
+            {
+                snpIdOffsets = map(channel, offset, (snpCount + 1L) * 8L).asLongBuffer();
+                offset += align((snpCount + 1L) * 8L);
+                
+                long snpIdByteCount = snpIdOffsets.get(snpCount);
+                snpIdBytes = new ByteBuffer[(int)(
+                        (snpIdByteCount + SNP_ID_WINDOW_SIZE - 1L) >>> SNP_ID_WINDOW_SHIFT)];
+                for(int i = 0; i < snpIdBytes.length; i++)
+                {
+                    long windowStart = i * SNP_ID_WINDOW_SIZE;
+                    snpIdBytes[i] = map(
+                            channel,
+                            offset + windowStart,
+                            Math.min(SNP_ID_WINDOW_SIZE, snpIdByteCount - windowStart));
+                }
+            }
+            
+            // the mappings stay valid after the channel is closed
+            return new BinaryScanResultFile(
+                    snpCount,
+                    phenotypeNames,
+                    chromosomeNames,
+                    positions,
+                    chromosomeIndices,
+                    pValues,
+                    snpIdOffsets,
+                    snpIdBytes);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    private static ByteBuffer map(FileChannel channel, long offset, long size)
+    throws IOException
+    {
+        if(offset + size > channel.size())
+        {
+            throw new IOException("scan result file is truncated");
+        }
+        else if(size > Integer.MAX_VALUE)
+        {
+            throw new IOException(
+                    "cannot map a " + size + " byte scan result column. " +
+                    "Columns are limited to " + Integer.MAX_VALUE + " bytes");
+        }
+        
+        // mapped buffers are big-endian by default which is what we want
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    }
+    
+    private static long align(long size)
+    {
+        long remainder = size % COLUMN_ALIGNMENT_BYTES;
+        return remainder == 0 ? size : size + COLUMN_ALIGNMENT_BYTES - remainder;
+    }
+    
+    /**
+     * Streams scan results into a binary result file. Each column is
+     * written to its own temporary file which is appended to the result
+     * file on {@link #close()} so results never have to be held in memory
+     */
+    public static class Writer implements ScanResultWriter
+    {
+        private final File file;
+        
+        private final String[] phenotypeNames;
+        
+        private final FlatFileGenotypeReader.SnpIdentifierReader snpIdentifierReader;
+        
+        private SnpIdentifiers snpIdentifiers = null;
+        
+        private final List<File> columnFiles = new ArrayList<File>();
+        
+        private final List<DataOutputStream> columnStreams =
+            new ArrayList<DataOutputStream>();
+        
+        private final DataOutputStream positionsOut;
+        
+        private final DataOutputStream chromosomesOut;
+        
+        private final DataOutputStream[] pValuesOut;
+        
+        private final DataOutputStream snpIdOffsetsOut;
+        
+        private final DataOutputStream snpIdsOut;
+        
+        private final Map<String, Integer> chromosomeIndices =
+            new HashMap<String, Integer>();
+        
+        private final List<String> chromosomeNames = new ArrayList<String>();
+        
+        private int snpCount = 0;
+        
+        private long snpIdByteCount = 0L;
+        
+        /**
+         * Constructor
+         * @param file
+         *          the file to write
+         * @param phenotypeNames
+         *          the p-value column names
+         * @param snpIdentifierReader
+         *          the reader for the SNP identifying columns or null to
+         *          only write p-values. This writer closes the reader
+         * @throws IOException
+         *          if the temporary column files can't be created
+         */
+        public Writer(
+                File file,
+                String[] phenotypeNames,
+                FlatFileGenotypeReader.SnpIdentifierReader snpIdentifierReader)
+        throws IOException
+        {
+            this.file = file;
+            this.phenotypeNames = phenotypeNames.clone();
+            this.snpIdentifierReader = snpIdentifierReader;
+            
+            boolean opened = false;
+            try
+            {
+                SnpIdentifiers columns = snpIdentifierReader == null ?
+                        null : snpIdentifierReader.createSnpIdentifiers(0);
+                this.positionsOut = columns == null || columns.getPositions() == null ?
+                        null : this.createColumn();
+                this.chromosomesOut = columns == null || columns.getChromosomes() == null ?
+                        null : this.createColumn();
+                this.pValuesOut = new DataOutputStream[phenotypeNames.length];
+                for(int i = 0; i < this.pValuesOut.length; i++)
+                {
+                    this.pValuesOut[i] = this.createColumn();
+                }
+                if(columns == null || columns.getSnpIds() == null)
+                {
+                    this.snpIdOffsetsOut = null;
+                    this.snpIdsOut = null;
+                }
+                else
+                {
+                    this.snpIdOffsetsOut = this.createColumn();
+                    this.snpIdsOut = this.createColumn();
+                    this.snpIdOffsetsOut.writeLong(0L);
+                }
+                opened = true;
+            }
+            finally
+            {
+                if(!opened)
+                {
+                    // the column files can't be deleted on every platform
+                    // while they're still open
+                    try
+                    {
+                        this.closeColumns();
+                    }
+                    catch(IOException ex)
+                    {
+                        // the exception that got us here is more useful
+                    }
+                    finally
+                    {
+                        this.deleteColumns();
+                    }
+                }
+            }
+        }
+        
+        private DataOutputStream createColumn() throws IOException
+        {
+            File columnFile = File.createTempFile("scan-column", ".bin");
+            this.columnFiles.add(columnFile);
+            DataOutputStream columnOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(columnFile),
+                    BUFFER_SIZE));
+            this.columnStreams.add(columnOut);
+            return columnOut;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public void writePValues(double[][] pValues, int offset, int count) throws IOException
+        {
+            if(pValues.length != this.pValuesOut.length)
+            {
+                throw new IllegalArgumentException(
+                        "expected " + this.pValuesOut.length +
+                        " p-value columns but got " + pValues.length);
+            }
+            
+            for(int phenoIndex = 0; phenoIndex < pValues.length; phenoIndex++)
+            {
+                DataOutputStream out = this.pValuesOut[phenoIndex];
+                double[] currPValues = pValues[phenoIndex];
+                for(int i = offset; i < offset + count; i++)
+                {
+                    out.writeDouble(currPValues[i]);
+                }
+            }
+            
+            if(this.snpIdentifierReader != null)
+            {
+                if(this.snpIdentifiers == null ||
+                   this.snpIdentifiers.getCapacity() < count)
+                {
+                    this.snpIdentifiers =
+                        this.snpIdentifierReader.createSnpIdentifiers(count);
+                }
+                this.snpIdentifierReader.read(this.snpIdentifiers, count);
+                this.writeSnpIdentifiers(count);
+            }
+            
+            this.snpCount += count;
+        }
+        
+        private void writeSnpIdentifiers(int count) throws IOException
+        {
+            long[] positions = this.snpIdentifiers.getPositions();
+            if(positions != null)
+            {
+                for(int i = 0; i < count; i++)
+                {
+                    this.positionsOut.writeLong(positions[i]);
+                }
+            }
+            
+            String[] chromosomes = this.snpIdentifiers.getChromosomes();
+            if(chromosomes != null)
+            {
+                for(int i = 0; i < count; i++)
+                {
+                    Integer chromosomeIndex = this.chromosomeIndices.get(chromosomes[i]);
+                    if(chromosomeIndex == null)
+                    {
+                        chromosomeIndex = this.chromosomeNames.size();
+                        this.chromosomeNames.add(chromosomes[i]);
+                        this.chromosomeIndices.put(chromosomes[i], chromosomeIndex);
+                    }
+                    this.chromosomesOut.writeInt(chromosomeIndex);
+                }
+            }
+            
+            String[] snpIds = this.snpIdentifiers.getSnpIds();
+            if(snpIds != null)
+            {
+                for(int i = 0; i < count; i++)
+                {
+                    byte[] idBytes = snpIds[i].getBytes(CHARSET_NAME);
+                    this.snpIdsOut.write(idBytes);
+                    this.snpIdByteCount += idBytes.length;
+                    this.snpIdOffsetsOut.writeLong(this.snpIdByteCount);
+                }
+            }
+        }
+        
+        /**
+         * Write the header and append the columns to the result file
+         * @throws IOException
+         *          if writing fails
+         */
+        public void close() throws IOException
+        {
+            try
+            {
+                this.closeColumns();
+                
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(this.file),
+                        BUFFER_SIZE));
+                try
+                {
+                    this.writeHeader(out);
+                    for(File columnFile: this.columnFiles)
+                    {
+                        appendFile(columnFile, out);
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            finally
+            {
+                this.deleteColumns();
+                if(this.snpIdentifierReader != null)
+                {
+                    this.snpIdentifierReader.close();
+                }
+            }
+        }
+        
+        private void writeHeader(DataOutputStream out) throws IOException
+        {
+            int flags = 0;
+            if(this.snpIdsOut != null)
+            {
+                flags |= HAS_SNP_IDS_FLAG;
+            }
+            if(this.chromosomesOut != null)
+            {
+                flags |= HAS_CHROMOSOMES_FLAG;
+            }
+            if(this.positionsOut != null)
+            {
+                flags |= HAS_POSITIONS_FLAG;
+            }
+            
+            // the names are written first so that we know where the
+            // columns start
+            ByteArrayOutputStream namesBytes = new ByteArrayOutputStream();
+            DataOutputStream namesOut = new DataOutputStream(namesBytes);
+            for(String phenotypeName: this.phenotypeNames)
+            {
+                namesOut.writeUTF(phenotypeName);
+            }
+            namesOut.writeInt(this.chromosomeNames.size());
+            for(String chromosomeName: this.chromosomeNames)
+            {
+                namesOut.writeUTF(chromosomeName);
+            }
+            namesOut.close();
+            
+            long headerSize = 5 * 4 + 8 + namesBytes.size();
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(VERSION);
+            out.writeInt(this.snpCount);
+            out.writeInt(this.phenotypeNames.length);
+            out.writeInt(flags);
+            out.writeLong(align(headerSize));
+            namesBytes.writeTo(out);
+            pad(out, headerSize);
+        }
+        
+        private static void pad(DataOutputStream out, long size) throws IOException
+        {
+            for(long i = size; i < align(size); i++)
+            {
+                out.write(0);
+            }
+        }
+        
+        private static void appendFile(File file, DataOutputStream out)
+        throws IOException
+        {
+            InputStream in = new FileInputStream(file);
+            try
+            {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int byteCount;
+                while((byteCount = in.read(buffer)) != -1)
+                {
+                    out.write(buffer, 0, byteCount);
+                }
+                pad(out, file.length());
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        
+        /**
+         * Close every column stream even if closing one of them fails
+         * @throws IOException
+         *          the first failure
+         */
+        private void closeColumns() throws IOException
+        {
+            IOException firstException = null;
+            for(DataOutputStream columnOut: this.columnStreams)
+            {
+                try
+                {
+                    columnOut.close();
+                }
+                catch(IOException ex)
+                {
+                    if(firstException == null)
+                    {
+                        firstException = ex;
+                    }
+                }
+            }
+            
+            if(firstException != null)
+            {
+                throw firstException;
+            }
+        }
+        
+        private void deleteColumns()
+        {
+            for(File columnFile: this.columnFiles)
+            {
+                columnFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.jax.haplotype.io.SdpInputStream;
+
+/**
+ * Calculates an identity-by-state kinship matrix directly from SDP bits.
+ * SDPs are transposed into blocks of 64-bit words per strain and for each
+ * strain pair the number of SNPs where the two strains agree (the popcount
+ * of the XNOR of their words) is accumulated. Only one block is held in
+ * memory at a time so memory use depends on the strain count and not on
+ * the number of SNPs. The result follows the convention documented on
+ * {@link CallValueKinshipCalculator}: off-diagonal entries are the fraction
+ * of SNPs where the two strains share an allele and the diagonal is 1.
+ * Calculators can be merged with
+ * {@link #add(BitPackedKinshipCalculator)} so kinship can be accumulated a
+ * chromosome at a time.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class BitPackedKinshipCalculator
+{
+    /**
+     * the number of 64-bit words per strain in each block (so each block
+     * holds 64 times this many SNPs)
+     */
+    private static final int BLOCK_WORD_COUNT = 16;
+    
+    private static final int BLOCK_SNP_CAPACITY = BLOCK_WORD_COUNT * Long.SIZE;
+    
+    private final int strainCount;
+    
+    /**
+     * the SNP bits of the current block. The words for strain i are at
+     * [i * BLOCK_WORD_COUNT, (i + 1) * BLOCK_WORD_COUNT)
+     */
+    private final long[] blockStrainWords;
+    
+    private int blockSnpCount = 0;
+    
+    /**
+     * the number of SNPs where strains disagree. the count for the strain
+     * pair i < j is at index i * strainCount + j
+     */
+    private final long[] disagreementCounts;
+    
+    private long snpCount = 0L;
+    
+    /**
+     * Constructor
+     * @param strainCount
+     *          the number of strains in each SDP
+     */
+    public BitPackedKinshipCalculator(int strainCount)
+    {
+        this.strainCount = strainCount;
+        this.blockStrainWords = new long[strainCount * BLOCK_WORD_COUNT];
+        this.disagreementCounts = new long[strainCount * strainCount];
+    }
+    
+    /**
+     * Getter for the strain count
+     * @return the strainCount
+     */
+    public int getStrainCount()
+    {
+        return this.strainCount;
+    }
+    
+    /**
+     * Get the number of SNPs that have been added so far
+     * @return
+     *          the SNP count
+     */
+    public long getSnpCount()
+    {
+        return this.snpCount + this.blockSnpCount;
+    }
+    
+    /**
+     * Add a single SNP
+     * @param sdp
+     *          the SNP's strain distribution pattern where bit i is set if
+     *          strain i has the minor allele
+     */
+    public void addSdp(BitSet sdp)
+    {
+        final int wordIndex = this.blockSnpCount >>> 6;
+        final long snpBit = 1L << this.blockSnpCount;
+        for(int strainIndex = sdp.nextSetBit(0);
+            strainIndex >= 0 && strainIndex < this.strainCount;
+            strainIndex = sdp.nextSetBit(strainIndex + 1))
+        {
+            this.blockStrainWords[strainIndex * BLOCK_WORD_COUNT + wordIndex] |= snpBit;
+        }
+        
+        this.blockSnpCount++;
+        if(this.blockSnpCount == BLOCK_SNP_CAPACITY)
+        {
+            this.flushBlock();
+        }
+    }
+    
+    /**
+     * Add the next snpCount SDPs from the given stream
+     * @param sdpStream
+     *          the stream to read
+     * @param snpCount
+     *          the number of SDPs to read
+     * @throws IOException
+     *          if reading the stream fails
+     */
+    public void addSdps(SdpInputStream sdpStream, long snpCount) throws IOException
+    {
+        for(long i = 0; i < snpCount; i++)
+        {
+            this.addSdp(sdpStream.getNextSdp());
+        }
+    }
+    
+    /**
+     * Fold the SNPs added to another calculator into this one. This lets
+     * kinship be accumulated one chromosome (or one thread) at a time and
+     * merged into a running genome total
+     * @param other
+     *          the other calculator which must have the same strain count.
+     *          It can continue to be used after this call
+     */
+    public void add(BitPackedKinshipCalculator other)
+    {
+        if(other.strainCount != this.strainCount)
+        {
+            throw new IllegalArgumentException(
+                    "expected " + this.strainCount + " strains but got " +
+                    other.strainCount);
+        }
+        
+        this.flushBlock();
+        other.flushBlock();
+        
+        final long[] counts = this.disagreementCounts;
+        final long[] otherCounts = other.disagreementCounts;
+        for(int i = 0; i < counts.length; i++)
+        {
+            counts[i] += otherCounts[i];
+        }
+        this.snpCount += other.snpCount;
+    }
+    
+    /**
+     * Get the kinship matrix for all of the SNPs added so far
+     * @return
+     *          the flattened (symmetric) kinship matrix
+     */
+    public double[] getKinship()
+    {
+        this.flushBlock();
+        
+        final int strainCount = this.strainCount;
+        final double snpCount = this.snpCount;
+        double[] kinship = new double[strainCount * strainCount];
+        for(int i = 0; i < strainCount; i++)
+        {
+            kinship[i * strainCount + i] = 1.0;
+            for(int j = i + 1; j < strainCount; j++)
+            {
+                double currKinship =
+                    1.0 - this.disagreementCounts[i * strainCount + j] / snpCount;
+                kinship[i * strainCount + j] = currKinship;
+                kinship[j * strainCount + i] = currKinship;
+            }
+        }
+        
+        return kinship;
+    }
+    
+    /**
+     * Get the kinship matrix for the SNPs added to this calculator minus
+     * the SNPs added to another one. This is how leave one chromosome out
+     * kinship is calculated from the genome total without another pass
+     * over the genotypes
+     * @param excluded
+     *          a calculator holding a subset of the SNPs that were added
+     *          (or merged) into this one
+     * @return
+     *          the flattened (symmetric) kinship matrix
+     * @throws IllegalArgumentException
+     *          if excluding the SNPs leaves no SNPs to calculate kinship
+     *          from (which happens for LOCO kinship on a genome with a
+     *          single chromosome)
+     */
+    public double[] getKinshipExcluding(BitPackedKinshipCalculator excluded)
+    {
+        if(excluded.strainCount != this.strainCount)
+        {
+            throw new IllegalArgumentException(
+                    "expected " + this.strainCount + " strains but got " +
+                    excluded.strainCount);
+        }
+        
+        this.flushBlock();
+        excluded.flushBlock();
+        
+        if(this.snpCount <= excluded.snpCount)
+        {
+            throw new IllegalArgumentException(
+                    "cannot exclude " + excluded.snpCount + " of " +
+                    this.snpCount + " SNPs since there would be no SNPs " +
+                    "left to calculate kinship from");
+        }
+        
+        final int strainCount = this.strainCount;
+        final double snpCount = this.snpCount - excluded.snpCount;
+        double[] kinship = new double[strainCount * strainCount];
+        for(int i = 0; i < strainCount; i++)
+        {
+            kinship[i * strainCount + i] = 1.0;
+            for(int j = i + 1; j < strainCount; j++)
+            {
+                int pairIndex = i * strainCount + j;
+                double currKinship = 1.0 - (
+                        this.disagreementCounts[pairIndex] -
+                        excluded.disagreementCounts[pairIndex]) / snpCount;
+                kinship[pairIndex] = currKinship;
+                kinship[j * strainCount + i] = currKinship;
+            }
+        }
+        
+        return kinship;
+    }
+    
+    /**
+     * Fold the current block into the pairwise counts and clear it
+     */
+    private void flushBlock()
+    {
+        if(this.blockSnpCount == 0)
+        {
+            return;
+        }
+        
+        // bits past the end of the block are zero for every strain so they
+        // never count as disagreements. This means agreement (XNOR) is
+        // just the block size minus the popcount of the XOR
+        final int wordCount = (this.blockSnpCount + Long.SIZE - 1) >>> 6;
+        final long[] words = this.blockStrainWords;
+        final int strainCount = this.strainCount;
+        for(int i = 0; i < strainCount; i++)
+        {
+            final int iOffset = i * BLOCK_WORD_COUNT;
+            for(int j = i + 1; j < strainCount; j++)
+            {
+                final int jOffset = j * BLOCK_WORD_COUNT;
+                int currDisagreements = 0;
+                for(int w = 0; w < wordCount; w++)
+                {
+                    currDisagreements += Long.bitCount(
+                            words[iOffset + w] ^ words[jOffset + w]);
+                }
+                this.disagreementCounts[i * strainCount + j] += currDisagreements;
+            }
+        }
+        
+        this.snpCount += this.blockSnpCount;
+        this.blockSnpCount = 0;
+        Arrays.fill(words, 0L);
+    }
+}
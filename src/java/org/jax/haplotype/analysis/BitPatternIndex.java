@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.haplotype.analysis;
+
+import java.util.BitSet;
+
+/**
+ * Assigns a dense index (in order of first appearance) to each distinct
+ * bit pattern it sees. Patterns are copied into a flat array of 64-bit
+ * words and looked up in an open addressing hash table of ints so that
+ * looking up a repeated pattern doesn't allocate anything or box any
+ * keys. This is used to memoize per-pattern test results when many
+ * partitions share the same strains.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class BitPatternIndex
+{
+    private static final int INITIAL_TABLE_SIZE = 1024;
+    
+    private final int bitCount;
+    
+    private final int wordsPerPattern;
+    
+    /**
+     * the words for pattern i are at
+     * [i * wordsPerPattern, (i + 1) * wordsPerPattern)
+     */
+    private long[] patternWords;
+    
+    private int[] patternHashes;
+    
+    private int patternCount = 0;
+    
+    /**
+     * open addressing table holding pattern index + 1 (0 means empty).
+     * The size is a power of two and is kept at least twice the pattern
+     * count
+     */
+    private int[] table = new int[INITIAL_TABLE_SIZE];
+    
+    /**
+     * scratch space for the pattern being looked up
+     */
+    private final long[] lookupWords;
+    
+    /**
+     * Constructor
+     * @param bitCount
+     *          the number of bits in each pattern. bits at or past this
+     *          index are ignored
+     */
+    public BitPatternIndex(int bitCount)
+    {
+        this.bitCount = bitCount;
+        this.wordsPerPattern = (bitCount + Long.SIZE - 1) >>> 6;
+        this.lookupWords = new long[this.wordsPerPattern];
+        this.patternWords = new long[INITIAL_TABLE_SIZE / 2 * this.wordsPerPattern];
+        this.patternHashes = new int[INITIAL_TABLE_SIZE / 2];
+    }
+    
+    /**
+     * Get the number of distinct patterns
+     * @return
+     *          the pattern count
+     */
+    public int getPatternCount()
+    {
+        return this.patternCount;
+    }
+    
+    /**
+     * Get one of the patterns
+     * @param patternIndex
+     *          the index of the pattern (see {@link #add(BitSet)})
+     * @return
+     *          a copy of the pattern
+     */
+    public PackedStrainPartition getPattern(int patternIndex)
+    {
+        return PackedStrainPartition.fromWords(
+                this.patternWords,
+                patternIndex * this.wordsPerPattern,
+                this.bitCount);
+    }
+    
+    /**
+     * Get the index of the given pattern adding it if we haven't seen it
+     * before. This isn't thread safe
+     * @param pattern
+     *          the pattern
+     * @return
+     *          the index of the pattern
+     */
+    public int add(BitSet pattern)
+    {
+        final long[] words = this.lookupWords;
+        for(int i = 0; i < words.length; i++)
+        {
+            words[i] = 0L;
+        }
+        for(int bit = pattern.nextSetBit(0);
+            bit >= 0 && bit < this.bitCount;
+            bit = pattern.nextSetBit(bit + 1))
+        {
+            words[bit >>> 6] |= 1L << bit;
+        }
+        
+        final int hash = hash(words);
+        final int mask = this.table.length - 1;
+        for(int slot = hash & mask; ; slot = (slot + 1) & mask)
+        {
+            int entry = this.table[slot];
+            if(entry == 0)
+            {
+                int patternIndex = this.addPattern(words, hash);
+                this.table[slot] = patternIndex + 1;
+                if(this.patternCount * 2 > this.table.length)
+                {
+                    this.growTable();
+                }
+                return patternIndex;
+            }
+            else if(this.patternHashes[entry - 1] == hash &&
+                    this.patternEquals(entry - 1, words))
+            {
+                return entry - 1;
+            }
+        }
+    }
+    
+    private boolean patternEquals(int patternIndex, long[] words)
+    {
+        final int offset = patternIndex * this.wordsPerPattern;
+        for(int i = 0; i < words.length; i++)
+        {
+            if(this.patternWords[offset + i] != words[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private int addPattern(long[] words, int hash)
+    {
+        final int patternIndex = this.patternCount;
+        if(patternIndex == this.patternHashes.length)
+        {
+            int newCapacity = patternIndex * 2;
+            long[] newPatternWords = new long[newCapacity * this.wordsPerPattern];
+            System.arraycopy(
+                    this.patternWords,
+                    0,
+                    newPatternWords,
+                    0,
+                    patternIndex * this.wordsPerPattern);
+            this.patternWords = newPatternWords;
+            
+            int[] newPatternHashes = new int[newCapacity];
+            System.arraycopy(this.patternHashes, 0, newPatternHashes, 0, patternIndex);
+            this.patternHashes = newPatternHashes;
+        }
+        
+        System.arraycopy(
+                words,
+                0,
+                this.patternWords,
+                patternIndex * this.wordsPerPattern,
+                words.length);
+        this.patternHashes[patternIndex] = hash;
+        this.patternCount++;
+        return patternIndex;
+    }
+    
+    private void growTable()
+    {
+        final int[] newTable = new int[this.table.length * 2];
+        final int mask = newTable.length - 1;
+        for(int patternIndex = 0; patternIndex < this.patternCount; patternIndex++)
+        {
+            int slot = this.patternHashes[patternIndex] & mask;
+            while(newTable[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = patternIndex + 1;
+        }
+        this.table = newTable;
+    }
+    
+    private static int hash(long[] words)
+    {
+        long hash = 0L;
+        for(int i = 0; i < words.length; i++)
+        {
+            hash = (hash ^ words[i]) * 0x9E3779B97F4A7C15L;
+        }
+        
+        // mix the high bits down since the table only uses the low ones
+        hash ^= hash >>> 32;
+        hash ^= hash >>> 16;
+        return (int)hash;
+    }
+}
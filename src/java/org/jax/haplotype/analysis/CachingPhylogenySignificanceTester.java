@@ -137,6 +137,9 @@ public class CachingPhylogenySignificanceTester
                 genomeDataManager.getGenomeDataMap().get(genomeName);
             phenotypeData.keySet().retainAll(selectedGenome.getAvailableStrains());
             
+            PhylogenyEdgePValueCache edgePValueCache = new PhylogenyEdgePValueCache(
+                    new StrainDictionary(phenotypeData));
+            
             List<PhylogenyTestResult> testResults = new ArrayList<PhylogenyTestResult>(
                     phylogenyIntervals.size());
             
@@ -147,7 +150,7 @@ public class CachingPhylogenySignificanceTester
                 PhylogenyTreeNode treeWithSignificance =
                     this.phylogenySignificanceTester.testMultipleResponseSignificance(
                             prunedPhylogeny,
-                            phenotypeData);
+                            edgePValueCache);
                 PhylogenyTreeEdgeWithRealValue minPValueEdge =
                     PhylogenyTreeEdgeWithRealValue.getEdgeWithMininumValue(
                             treeWithSignificance);
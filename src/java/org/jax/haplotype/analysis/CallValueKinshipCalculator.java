@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.haplotype.analysis;
+
+/**
+ * Calculates EMMA's identity-by-state kinship one SNP at a time from call
+ * values (1.0, 0.0, 0.5 for heterozygous and NaN for no call) giving the
+ * same matrix as R EMMA's emma.kinship with its default additive method
+ * and use="all":
+ * <ul>
+ * <li>a SNP with heterozygous calls counts as two half weight SNPs. In the
+ * first the hets are replaced by 1 if the SNP's mean call is over 0.5
+ * (otherwise 0) and in the second they are replaced by 1 if the mean is
+ * under 0.5 (otherwise 0)</li>
+ * <li>missing calls are replaced by the mean of the SNP's (het replaced)
+ * calls and SNPs with no calls at all are skipped</li>
+ * <li>the off-diagonal entries are the mean of
+ * x_i * x_j + (1 - x_i) * (1 - x_j) over the SNPs and the diagonal is
+ * 1</li>
+ * </ul>
+ * Only the per-pair sums are kept so memory use depends on the strain count
+ * and not on the number of SNPs. {@link BitPackedKinshipCalculator} gives
+ * the same matrix for biallelic SDPs.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class CallValueKinshipCalculator
+{
+    /**
+     * the number of SNPs decoded at a time from packed matrices
+     */
+    private static final int DECODE_BLOCK_SNP_COUNT = 1024;
+    
+    private static final double HET_CALL_VALUE = 0.5;
+    
+    private final int strainCount;
+    
+    /**
+     * the running (weighted) IBS sums. the sum for the strain pair i < j is
+     * at index i * strainCount + j
+     */
+    private final double[] ibsSums;
+    
+    /**
+     * the number of SNPs with at least one call
+     */
+    private long snpCount = 0L;
+    
+    /**
+     * scratch space for the SNP calls once hets and missing calls are
+     * replaced
+     */
+    private final double[] filledCalls;
+    
+    /**
+     * Constructor
+     * @param strainCount
+     *          the number of strains per SNP
+     */
+    public CallValueKinshipCalculator(int strainCount)
+    {
+        this.strainCount = strainCount;
+        this.ibsSums = new double[strainCount * strainCount];
+        this.filledCalls = new double[strainCount];
+    }
+    
+    /**
+     * Getter for the strain count
+     * @return the strainCount
+     */
+    public int getStrainCount()
+    {
+        return this.strainCount;
+    }
+    
+    /**
+     * Add the given SNPs
+     * @param genos
+     *          a flattened SNP-major genotype matrix
+     * @param snpCount
+     *          the number of SNPs to add starting from the 1st row
+     */
+    public void addSnps(double[] genos, int snpCount)
+    {
+        final int strainCount = this.strainCount;
+        for(int snpIndex = 0; snpIndex < snpCount; snpIndex++)
+        {
+            final int rowOffset = snpIndex * strainCount;
+            double callSum = 0.0;
+            int callCount = 0;
+            boolean hasHets = false;
+            for(int i = 0; i < strainCount; i++)
+            {
+                final double currCall = genos[rowOffset + i];
+                if(!Double.isNaN(currCall))
+                {
+                    callSum += currCall;
+                    callCount++;
+                    hasHets |= currCall == HET_CALL_VALUE;
+                }
+            }
+            
+            if(callCount == 0)
+            {
+                continue;
+            }
+            
+            if(hasHets)
+            {
+                final double meanCall = callSum / callCount;
+                this.fillCalls(genos, rowOffset, callCount, meanCall > 0.5 ? 1.0 : 0.0);
+                this.addFilledCalls(0.5);
+                this.fillCalls(genos, rowOffset, callCount, meanCall < 0.5 ? 1.0 : 0.0);
+                this.addFilledCalls(0.5);
+            }
+            else
+            {
+                this.fillCalls(genos, rowOffset, callCount, HET_CALL_VALUE);
+                this.addFilledCalls(1.0);
+            }
+            this.snpCount++;
+        }
+    }
+    
+    /**
+     * Copy a SNP row into {@link #filledCalls} replacing hets with the
+     * given value and then missing calls with the mean of the result
+     */
+    private void fillCalls(
+            double[] genos,
+            int rowOffset,
+            int callCount,
+            double hetReplacement)
+    {
+        final int strainCount = this.strainCount;
+        final double[] filledCalls = this.filledCalls;
+        double callSum = 0.0;
+        for(int i = 0; i < strainCount; i++)
+        {
+            double currCall = genos[rowOffset + i];
+            if(currCall == HET_CALL_VALUE)
+            {
+                currCall = hetReplacement;
+            }
+            if(!Double.isNaN(currCall))
+            {
+                callSum += currCall;
+            }
+            filledCalls[i] = currCall;
+        }
+        
+        if(callCount < strainCount)
+        {
+            final double meanCall = callSum / callCount;
+            for(int i = 0; i < strainCount; i++)
+            {
+                if(Double.isNaN(filledCalls[i]))
+                {
+                    filledCalls[i] = meanCall;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Add the IBS of every strain pair in {@link #filledCalls} with the
+     * given weight
+     */
+    private void addFilledCalls(double weight)
+    {
+        final int strainCount = this.strainCount;
+        final double[] filledCalls = this.filledCalls;
+        final double[] ibsSums = this.ibsSums;
+        for(int i = 0; i < strainCount; i++)
+        {
+            final double xi = filledCalls[i];
+            final int pairOffset = i * strainCount;
+            for(int j = i + 1; j < strainCount; j++)
+            {
+                final double xj = filledCalls[j];
+                ibsSums[pairOffset + j] += weight * (xi * xj + (1.0 - xi) * (1.0 - xj));
+            }
+        }
+    }
+    
+    /**
+     * Add every SNP in the given packed matrix. The calls are decoded a
+     * block at a time so the matrix is never fully expanded
+     * @param genos
+     *          the packed genotype matrix (which must have the same strain
+     *          count as this calculator)
+     */
+    public void addSnps(PackedGenotypeMatrix genos)
+    {
+        if(genos.getStrainCount() != this.strainCount)
+        {
+            throw new IllegalArgumentException(
+                    "expected " + this.strainCount + " strains but got " +
+                    genos.getStrainCount());
+        }
+        
+        final int snpCount = genos.getSnpCount();
+        final int blockSnpCount = Math.min(snpCount, DECODE_BLOCK_SNP_COUNT);
+        double[] block = new double[blockSnpCount * this.strainCount];
+        for(int blockStart = 0; blockStart < snpCount; blockStart += blockSnpCount)
+        {
+            int currSnpCount = Math.min(blockSnpCount, snpCount - blockStart);
+            genos.decodeSnps(blockStart, currSnpCount, null, block);
+            this.addSnps(block, currSnpCount);
+        }
+    }
+    
+    /**
+     * Get the kinship for the SNPs added so far
+     * @return
+     *          the flattened (symmetric) kinship matrix
+     */
+    public double[] getKinship()
+    {
+        final int strainCount = this.strainCount;
+        final double snpCount = this.snpCount;
+        double[] kinship = new double[strainCount * strainCount];
+        for(int i = 0; i < strainCount; i++)
+        {
+            kinship[i * strainCount + i] = 1.0;
+            for(int j = i + 1; j < strainCount; j++)
+            {
+                int pairIndex = i * strainCount + j;
+                double currKinship = this.ibsSums[pairIndex] / snpCount;
+                kinship[pairIndex] = currKinship;
+                kinship[j * strainCount + i] = currKinship;
+            }
+        }
+        
+        return kinship;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.haplotype.analysis;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes scan p-values as CSV with one SNP per line. The SNP ID,
+ * chromosome and position columns are optional and are read from the
+ * genotype file in step with the p-values when an identifier reader is
+ * given. The first line always holds the column names. Text fields
+ * (column names, SNP IDs and chromosomes) are quoted as described in RFC 4180 when they
+ * contain a comma, a quote or a line break. Output is buffered so wrap the
+ * destination in a {@link java.util.zip.GZIPOutputStream} to get
+ * compressed output
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class CsvScanResultWriter implements ScanResultWriter
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final Writer out;
+    
+    private final int phenotypeCount;
+    
+    private final FlatFileGenotypeReader.SnpIdentifierReader snpIdentifierReader;
+    
+    private SnpIdentifiers snpIdentifiers = null;
+    
+    /**
+     * Constructor
+     * @param out
+     *          the stream to write to (this class does its own buffering)
+     * @param phenotypeNames
+     *          the p-value column names
+     * @param snpIdentifierReader
+     *          the reader for the SNP identifying columns or null to only
+     *          write p-values. This writer closes the reader
+     * @throws IOException
+     *          if the header can't be written
+     */
+    public CsvScanResultWriter(
+            OutputStream out,
+            String[] phenotypeNames,
+            FlatFileGenotypeReader.SnpIdentifierReader snpIdentifierReader)
+    throws IOException
+    {
+        this(new OutputStreamWriter(out), phenotypeNames, snpIdentifierReader);
+    }
+    
+    /**
+     * Constructor
+     * @param out
+     *          the writer to write to (this class does its own buffering)
+     * @param phenotypeNames
+     *          the p-value column names
+     * @param snpIdentifierReader
+     *          the reader for the SNP identifying columns or null to only
+     *          write p-values. This writer closes the reader
+     * @throws IOException
+     *          if the header can't be written
+     */
+    public CsvScanResultWriter(
+            Writer out,
+            String[] phenotypeNames,
+            FlatFileGenotypeReader.SnpIdentifierReader snpIdentifierReader)
+    throws IOException
+    {
+        this.out = new BufferedWriter(out, BUFFER_SIZE);
+        this.phenotypeCount = phenotypeNames.length;
+        this.snpIdentifierReader = snpIdentifierReader;
+        
+        this.writeHeader(phenotypeNames);
+    }
+    
+    /**
+     * Write the column names
+     */
+    private void writeHeader(String[] phenotypeNames) throws IOException
+    {
+        boolean firstColumn = true;
+        if(this.snpIdentifierReader != null)
+        {
+            SnpIdentifiers columns = this.snpIdentifierReader.createSnpIdentifiers(0);
+            if(columns.getSnpIds() != null)
+            {
+                firstColumn = this.writeHeaderColumn("snpId", firstColumn);
+            }
+            if(columns.getChromosomes() != null)
+            {
+                firstColumn = this.writeHeaderColumn("chromosome", firstColumn);
+            }
+            if(columns.getPositions() != null)
+            {
+                firstColumn = this.writeHeaderColumn("position", firstColumn);
+            }
+        }
+        
+        for(String phenotypeName: phenotypeNames)
+        {
+            firstColumn = this.writeHeaderColumn(phenotypeName, firstColumn);
+        }
+        this.out.write('\n');
+    }
+    
+    private boolean writeHeaderColumn(String name, boolean firstColumn)
+    throws IOException
+    {
+        if(!firstColumn)
+        {
+            this.out.write(',');
+        }
+        writeField(this.out, name);
+        return false;
+    }
+    
+    /**
+     * Write a text field quoting it if it contains a comma, a quote or a
+     * line break
+     * @param out
+     *          the writer
+     * @param field
+     *          the field to write
+     * @throws IOException
+     *          if the write fails
+     */
+    private static void writeField(Writer out, String field) throws IOException
+    {
+        boolean quote = false;
+        for(int i = 0; i < field.length() && !quote; i++)
+        {
+            char c = field.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        
+        if(quote)
+        {
+            out.write('"');
+            out.write(field.replace("\"", "\"\""));
+            out.write('"');
+        }
+        else
+        {
+            out.write(field);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void writePValues(double[][] pValues, int offset, int count) throws IOException
+    {
+        if(pValues.length != this.phenotypeCount)
+        {
+            throw new IllegalArgumentException(
+                    "expected " + this.phenotypeCount +
+                    " p-value columns but got " + pValues.length);
+        }
+        
+        String[] snpIds = null;
+        String[] chromosomes = null;
+        long[] positions = null;
+        if(this.snpIdentifierReader != null)
+        {
+            if(this.snpIdentifiers == null ||
+               this.snpIdentifiers.getCapacity() < count)
+            {
+                this.snpIdentifiers =
+                    this.snpIdentifierReader.createSnpIdentifiers(count);
+            }
+            this.snpIdentifierReader.read(this.snpIdentifiers, count);
+            snpIds = this.snpIdentifiers.getSnpIds();
+            chromosomes = this.snpIdentifiers.getChromosomes();
+            positions = this.snpIdentifiers.getPositions();
+        }
+        
+        final Writer out = this.out;
+        for(int i = 0; i < count; i++)
+        {
+            boolean firstColumn = true;
+            if(snpIds != null)
+            {
+                writeField(out, snpIds[i]);
+                firstColumn = false;
+            }
+            if(chromosomes != null)
+            {
+                if(!firstColumn)
+                {
+                    out.write(',');
+                }
+                writeField(out, chromosomes[i]);
+                firstColumn = false;
+            }
+            if(positions != null)
+            {
+                if(!firstColumn)
+                {
+                    out.write(',');
+                }
+                if(positions[i] != -1L)
+                {
+                    out.write(Long.toString(positions[i]));
+                }
+                firstColumn = false;
+            }
+            
+            for(int phenoIndex = 0; phenoIndex < pValues.length; phenoIndex++)
+            {
+                if(!firstColumn)
+                {
+                    out.write(',');
+                }
+                out.write(Double.toString(pValues[phenoIndex][offset + i]));
+                firstColumn = false;
+            }
+            out.write('\n');
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            this.out.close();
+        }
+        finally
+        {
+            if(this.snpIdentifierReader != null)
+            {
+                this.snpIdentifierReader.close();
+            }
+        }
+    }
+}
@@ -5,32 +5,40 @@
  * it under the terms of the GNU General Public License as published by
  * the Free Software Foundation, either version 3 of the License, or
  * (at your option) any later version.
- *
+ * 
  * This software is distributed in the hope that it will be useful,
  * but WITHOUT ANY WARRANTY; without even the implied warranty of
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
  * GNU General Public License for more details.
- *
+ * 
  * You should have received a copy of the GNU General Public License
  * along with this software.  If not, see <http://www.gnu.org/licenses/>.
  */
 
 package org.jax.haplotype.analysis;
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -42,8 +50,6 @@ import org.apache.commons.cli.ParseException;
 import org.jax.haplotype.data.ChromosomeDataSource;
 import org.jax.haplotype.data.GenomeDataSource;
 import org.jax.haplotype.io.SdpInputStream;
-import org.jax.util.io.CommonFlatFileFormat;
-import org.jax.util.io.FlatFileReader;
 import org.jax.util.io.IllegalFormatException;
 import org.jax.util.math.StatisticUtilities;
 import org.jax.util.nativeutil.NativeLibraryUtilities;
@@ -56,13 +62,69 @@ public class EMMAAssociationTest
 {
     private static final Logger LOG = Logger.getLogger(EMMAAssociationTest.class.getName());
     
-    private enum AlleleCallCode {ACall, BCall, HCall, NCall}
-    
     static
     {
         NativeLibraryUtilities.loadNativeLibrary("emma");
     }
     
+    /**
+     * the number of SNPs decoded from a packed matrix for each call to the
+     * native scan
+     */
+    private static final int SCAN_BLOCK_SNP_COUNT = 4096;
+    
+    private volatile KinshipCache kinshipCache = null;
+    
+    private volatile EMMAScanMode scanMode = EMMAScanMode.EXACT;
+    
+    /**
+     * Getter for the kinship cache
+     * @return
+     *          the kinship cache or null if kinship matrices are always
+     *          recalculated
+     */
+    public KinshipCache getKinshipCache()
+    {
+        return this.kinshipCache;
+    }
+    
+    /**
+     * Setter for the kinship cache. When set, every kinship matrix that this
+     * test calculates is first looked up in the cache and stored in it
+     * after it is calculated
+     * @param kinshipCache
+     *          the kinship cache or null to disable caching
+     */
+    public void setKinshipCache(KinshipCache kinshipCache)
+    {
+        this.kinshipCache = kinshipCache;
+    }
+    
+    /**
+     * Getter for the scan mode
+     * @return the scanMode
+     */
+    public EMMAScanMode getScanMode()
+    {
+        return this.scanMode;
+    }
+    
+    /**
+     * Setter for the scan mode which determines how every scan performed
+     * by this test treats the variance components
+     * @param scanMode
+     *          the scanMode to set
+     */
+    public void setScanMode(EMMAScanMode scanMode)
+    {
+        if(scanMode == null)
+        {
+            throw new NullPointerException("the scan mode can't be null");
+        }
+        
+        this.scanMode = scanMode;
+    }
+    
     /**
      * Emma scan using flat files
      * @param genoFileName
@@ -85,7 +147,7 @@ public class EMMAAssociationTest
      * @param sexToScan
      *          the sex type used to filter phenotype data
      * @return
-     *          the flattened kinship matrix
+     *          the p-values
      * @throws IllegalFormatException
      *          if there is a problem with how with how the file is formatted
      * @throws IOException
@@ -101,25 +163,112 @@ public class EMMAAssociationTest
             String phenotype,
             SexFilter sexToScan) throws IllegalFormatException, IOException
     {
-        // start with the geno headers
-        FlatFileReader genoFFR = new FlatFileReader(
-                new FileReader(genoFileName),
-                CommonFlatFileFormat.CSV_UNIX);
-        String[] currRow = genoFFR.readRow();
-        if(currRow == null)
+        return this.emmaScan(
+                genoFileName,
+                aAlleleColumn,
+                bAlleleColumn,
+                firstGenotypeColumn,
+                lastGenotypeColumnExclusive,
+                phenoFileName,
+                new String[] {resolvePhenotype(phenoFileName, phenotype)},
+                sexToScan)[0];
+    }
+    
+    /**
+     * Get the phenotype to scan
+     * @param phenoFileName
+     *          the phenotype file
+     * @param phenotype
+     *          the requested phenotype or null
+     * @return
+     *          the requested phenotype or, if it was null, the only
+     *          phenotype in the file
+     * @throws IllegalFormatException
+     *          if no phenotype was requested and the file doesn't have
+     *          exactly one phenotype
+     * @throws IOException
+     *          if there is a problem reading the phenotype file
+     */
+    private static String resolvePhenotype(
+            String phenoFileName,
+            String phenotype) throws IllegalFormatException, IOException
+    {
+        if(phenotype == null || phenotype.length() == 0)
         {
-            throw new IllegalFormatException("Failed to read the header");
+            MPDIndividualStrainPhenotypeParser phenoParser = new MPDIndividualStrainPhenotypeParser();
+            FileInputStream phenoIn = new FileInputStream(phenoFileName);
+            Set<String> phenos;
+            try
+            {
+                phenos = phenoParser.parseAvailablePhenotypes(phenoIn);
+            }
+            finally
+            {
+                phenoIn.close();
+            }
+            
+            if(phenos.size() != 1)
+            {
+                throw new IllegalFormatException();
+            }
+            else
+            {
+                phenotype = phenos.iterator().next();
+            }
         }
         
-        if(lastGenotypeColumnExclusive == -1)
-        {
-            lastGenotypeColumnExclusive = currRow.length;
-        }
-        String[] headerStrains = new String[lastGenotypeColumnExclusive - firstGenotypeColumn];
-        for(int i = 0; i < headerStrains.length; i++)
-        {
-            headerStrains[i] = currRow[i + firstGenotypeColumn];
-        }
+        return phenotype;
+    }
+    
+    /**
+     * Emma scan of several phenotypes using flat files. The genotype matrix
+     * and kinship are only loaded and calculated once and then every
+     * phenotype is scanned against them
+     * @param genoFileName
+     *          the genotype file
+     * @param aAlleleColumn
+     *          the column index for the A allele
+     * @param bAlleleColumn
+     *          the column index for the B allele
+     * @param firstGenotypeColumn
+     *          the 1st genotype column
+     * @param lastGenotypeColumnExclusive
+     *          the index after the last genotype column. You can use -1 to indicate that
+     *          all of the remaining columns after firstGenotypeColumn are
+     *          genotype columns
+     * @param phenoFileName
+     *          the phenotype file
+     * @param phenotypes
+     *          the names of the phenotypes to scan
+     * @param sexToScan
+     *          the sex type used to filter phenotype data
+     * @return
+     *          the p-values. The major index matches the phenotypes and the
+     *          minor index is the SNP index
+     * @throws IllegalFormatException
+     *          if there is a problem with how with how the file is formatted
+     * @throws IOException
+     *          if there is a problem with file IO while reading the flat file
+     */
+    public double[][] emmaScan(
+            String genoFileName,
+            int aAlleleColumn,
+            int bAlleleColumn,
+            int firstGenotypeColumn,
+            int lastGenotypeColumnExclusive,
+            String phenoFileName,
+            String[] phenotypes,
+            SexFilter sexToScan) throws IllegalFormatException, IOException
+    {
+        // start with the geno headers
+        FlatFileGenotypeReader genoReader = new FlatFileGenotypeReader(
+                genoFileName,
+                aAlleleColumn,
+                bAlleleColumn,
+                firstGenotypeColumn,
+                lastGenotypeColumnExclusive);
+        String[] headerRow = genoReader.getHeaderRow();
+        String[] headerStrains = genoReader.getHeaderStrains();
         
         // now get the strains in common with phenotype data
         MPDIndividualStrainPhenotypeParser phenoParser = new MPDIndividualStrainPhenotypeParser();
@@ -127,247 +276,1447 @@ public class EMMAAssociationTest
         Set<String> phenoStrains = phenoParser.parseAvailableStrainNames(phenoIn);
         phenoIn.close();
         
-        Set<String> commonStrainSet = new HashSet<String>(phenoStrains);
-        commonStrainSet.retainAll(Arrays.asList(headerStrains));
-        int strainCount = commonStrainSet.size();
-        String[] commonStrainArray = commonStrainSet.toArray(new String[0]);
-        Arrays.sort(commonStrainArray);
-        int[] commonStrainIndices = new int[strainCount];
+        Set<String> commonStrainSet = new HashSet<String>(phenoStrains);
+        commonStrainSet.retainAll(Arrays.asList(headerStrains));
+        int strainCount = commonStrainSet.size();
+        String[] commonStrainArray = commonStrainSet.toArray(new String[0]);
+        Arrays.sort(commonStrainArray);
+        int[] commonStrainIndices = toColumnIndices(headerRow, commonStrainArray);
+        
+        // TODO need failure if there are fewer than 3 strains in common
+        
+        // read the genotype data straight into the packed matrix
+        PackedGenotypeMatrix packedCalls = genoReader.readPackedCalls(commonStrainIndices);
+        
+        // calculate kinship matrix once for all of the phenotypes
+        double[] kinship = this.calculateKinship(
+                KinshipCache.fingerprint(new File(genoFileName)) +
+                KinshipCache.CONCATINATION_STRING + aAlleleColumn +
+                KinshipCache.CONCATINATION_STRING + bAlleleColumn,
+                commonStrainArray,
+                packedCalls);
+        
+        double[][] pValues = new double[phenotypes.length][];
+        for(int phenoIndex = 0; phenoIndex < phenotypes.length; phenoIndex++)
+        {
+            if(LOG.isLoggable(Level.FINE))
+            {
+                LOG.fine("the phenotype is: " + phenotypes[phenoIndex]);
+            }
+            
+            phenoIn = new FileInputStream(phenoFileName);
+            Map<String, List<Double>> phenoData;
+            try
+            {
+                phenoData = phenoParser.parsePhenotypesFromStream(
+                        phenotypes[phenoIndex],
+                        phenoIn,
+                        sexToScan,
+                        commonStrainSet);
+            }
+            finally
+            {
+                phenoIn.close();
+            }
+            
+            if(LOG.isLoggable(Level.FINE))
+            {
+                LOG.fine("the # of phenotypes is: " + phenoData.size());
+            }
+            
+            pValues[phenoIndex] = emmaScan(
+                    commonStrainArray,
+                    phenoData,
+                    packedCalls,
+                    kinship);
+        }
+        
+        return pValues;
+    }
+    
+    /**
+     * Emma scan using flat files where the genotypes are streamed through
+     * the scan a chunk of SNPs at a time and the p-values are written out
+     * as soon as each chunk is scanned. The kinship matrix is taken from the
+     * kinship cache if possible, otherwise it is accumulated with one
+     * streaming pass over the genotypes before the scanning pass. Memory use
+     * depends on the chunk size rather than the number of SNPs. Only the
+     * strains that have phenotype data are scanned
+     * @param genoFileName
+     *          the genotype file
+     * @param aAlleleColumn
+     *          the column index for the A allele
+     * @param bAlleleColumn
+     *          the column index for the B allele
+     * @param firstGenotypeColumn
+     *          the 1st genotype column
+     * @param lastGenotypeColumnExclusive
+     *          the index after the last genotype column. You can use -1 to indicate that
+     *          all of the remaining columns after firstGenotypeColumn are
+     *          genotype columns
+     * @param phenoFileName
+     *          the phenotype file
+     * @param phenotype
+     *          the name of the phenotype to scan (you can use null here only
+     *          if there is only a single phenotype in the phenotype file)
+     * @param sexToScan
+     *          the sex type used to filter phenotype data
+     * @param chunkSnpCount
+     *          the number of SNPs to scan at a time
+     * @param resultWriter
+     *          the writer that the p-values are written to in SNP order.
+     *          it is not closed by this function
+     * @throws IllegalFormatException
+     *          if there is a problem with how with how the file is formatted
+     * @throws IOException
+     *          if there is a problem with file IO while reading the flat file
+     *          or writing results
+     */
+    public void emmaScan(
+            String genoFileName,
+            int aAlleleColumn,
+            int bAlleleColumn,
+            int firstGenotypeColumn,
+            int lastGenotypeColumnExclusive,
+            String phenoFileName,
+            String phenotype,
+            SexFilter sexToScan,
+            int chunkSnpCount,
+            ScanResultWriter resultWriter) throws IllegalFormatException, IOException
+    {
+        if(chunkSnpCount < 1)
+        {
+            throw new IllegalArgumentException(
+                    "the chunk size must be positive but was " + chunkSnpCount);
+        }
+        
+        phenotype = resolvePhenotype(phenoFileName, phenotype);
+        
+        FlatFileGenotypeReader genoReader = new FlatFileGenotypeReader(
+                genoFileName,
+                aAlleleColumn,
+                bAlleleColumn,
+                firstGenotypeColumn,
+                lastGenotypeColumnExclusive);
+        String[] headerRow = genoReader.getHeaderRow();
+        
+        // only the strains that are genotyped and have phenotype data
+        Set<String> commonStrainSet = new HashSet<String>(
+                Arrays.asList(genoReader.getHeaderStrains()));
+        Map<String, List<Double>> phenoData;
+        FileInputStream phenoIn = new FileInputStream(phenoFileName);
+        try
+        {
+            phenoData = new MPDIndividualStrainPhenotypeParser().parsePhenotypesFromStream(
+                    phenotype,
+                    phenoIn,
+                    sexToScan,
+                    commonStrainSet);
+        }
+        finally
+        {
+            phenoIn.close();
+        }
+        
+        List<String> phenoStrainList = new ArrayList<String>();
+        for(Map.Entry<String, List<Double>> entry: phenoData.entrySet())
+        {
+            if(commonStrainSet.contains(entry.getKey()) &&
+               entry.getValue() != null && !entry.getValue().isEmpty())
+            {
+                phenoStrainList.add(entry.getKey());
+            }
+        }
+        String[] sortedStrains = phenoStrainList.toArray(new String[0]);
+        Arrays.sort(sortedStrains);
+        int strainCount = sortedStrains.length;
+        int[] strainColumns = toColumnIndices(headerRow, sortedStrains);
+        double[] phenotypeMeans = toPhenotypeMeans(phenoData, sortedStrains);
+        
+        double[] chunkGenos = new double[chunkSnpCount * strainCount];
+        
+        // kinship has to cover the whole genome so it takes a pass of its
+        // own unless it is already cached. The calculator and cache key are
+        // the same as the unchunked scan's so the chunk size only changes
+        // memory use and never the results
+        String genoFingerprint =
+            KinshipCache.fingerprint(new File(genoFileName)) +
+            KinshipCache.CONCATINATION_STRING + aAlleleColumn +
+            KinshipCache.CONCATINATION_STRING + bAlleleColumn;
+        KinshipCache cache = this.kinshipCache;
+        double[] kinship = cache == null ?
+                null :
+                cache.getKinship(genoFingerprint, sortedStrains);
+        if(kinship == null)
+        {
+            CallValueKinshipCalculator kinshipCalculator =
+                new CallValueKinshipCalculator(strainCount);
+            FlatFileGenotypeReader.ChunkReader chunkReader =
+                genoReader.openChunkReader(strainColumns);
+            try
+            {
+                int currSnpCount;
+                while((currSnpCount = chunkReader.readChunk(chunkGenos)) > 0)
+                {
+                    kinshipCalculator.addSnps(chunkGenos, currSnpCount);
+                }
+            }
+            finally
+            {
+                chunkReader.close();
+            }
+            
+            kinship = kinshipCalculator.getKinship();
+            if(cache != null)
+            {
+                cache.putKinship(genoFingerprint, sortedStrains, kinship);
+            }
+        }
+        
+        SnpBlockTest snpBlockTest = this.createSnpBlockTest(phenotypeMeans, kinship);
+        FlatFileGenotypeReader.ChunkReader chunkReader =
+            genoReader.openChunkReader(strainColumns);
+        try
+        {
+            int currSnpCount;
+            while((currSnpCount = chunkReader.readChunk(chunkGenos)) > 0)
+            {
+                double[] pValues = snpBlockTest.test(chunkGenos, currSnpCount);
+                resultWriter.writePValues(new double[][] {pValues}, 0, pValues.length);
+            }
+        }
+        finally
+        {
+            chunkReader.close();
+        }
+    }
+    
+    /**
+     * Tests blocks of SNPs against a single phenotype with a fixed kinship
+     * matrix. Tests keep no state between calls so one test can be shared
+     * by concurrent chromosome scans
+     */
+    private static abstract class SnpBlockTest
+    {
+        /**
+         * Test the first snpCount SNPs of the given block
+         * @param genos
+         *          the flattened SNP-major genotype block
+         * @param snpCount
+         *          the number of SNPs to test. This can be less than the
+         *          block capacity
+         * @return
+         *          the p-values
+         */
+        public abstract double[] test(double[] genos, int snpCount);
+    }
+    
+    /**
+     * Create the SNP test for the current scan mode
+     * @param phenotypeMeans
+     *          the phenotype mean for each strain
+     * @param kinship
+     *          the flattened kinship matrix
+     * @return
+     *          the SNP test
+     */
+    private SnpBlockTest createSnpBlockTest(
+            double[] phenotypeMeans,
+            double[] kinship)
+    {
+        return createSnpBlockTest(this.scanMode, phenotypeMeans, kinship);
+    }
+    
+    /**
+     * Create the SNP test for the given scan mode
+     * @param scanMode
+     *          the scan mode
+     * @param phenotypeMeans
+     *          the phenotype mean for each strain
+     * @param kinship
+     *          the flattened kinship matrix
+     * @return
+     *          the SNP test
+     */
+    private static SnpBlockTest createSnpBlockTest(
+            EMMAScanMode scanMode,
+            final double[] phenotypeMeans,
+            final double[] kinship)
+    {
+        if(scanMode == EMMAScanMode.APPROXIMATE)
+        {
+            final EMMAXScanner scanner = new EMMAXScanner(phenotypeMeans, kinship);
+            if(LOG.isLoggable(Level.FINE))
+            {
+                LOG.fine("null model delta: " + scanner.getDelta());
+            }
+            
+            return new SnpBlockTest()
+            {
+                @Override
+                public double[] test(double[] genos, int snpCount)
+                {
+                    return scanner.scanSnps(genos, snpCount);
+                }
+            };
+        }
+        else
+        {
+            return new SnpBlockTest()
+            {
+                @Override
+                public double[] test(double[] genos, int snpCount)
+                {
+                    int strainCount = phenotypeMeans.length;
+                    int callCount = snpCount * strainCount;
+                    if(callCount != genos.length)
+                    {
+                        // the native code sizes the matrix from the array length
+                        double[] trimmedGenos = new double[callCount];
+                        System.arraycopy(genos, 0, trimmedGenos, 0, callCount);
+                        genos = trimmedGenos;
+                    }
+                    
+                    return emmaScan(strainCount, phenotypeMeans, genos, kinship);
+                }
+            };
+        }
+    }
+    
+    /**
+     * An approximate mode SNP test that is shared by all of the chromosomes
+     * scanned concurrently with the same kinship matrix. The null model is
+     * fit by whichever chromosome task gets to it first and the other tasks
+     * wait for that fit instead of repeating it
+     */
+    private static class SharedSnpBlockTest
+    {
+        private final double[] phenotypeMeans;
+        
+        private final double[] kinship;
+        
+        private SnpBlockTest snpBlockTest = null;
+        
+        /**
+         * Constructor
+         * @param phenotypeMeans
+         *          the phenotype mean for each strain
+         * @param kinship
+         *          the flattened kinship matrix
+         */
+        public SharedSnpBlockTest(double[] phenotypeMeans, double[] kinship)
+        {
+            this.phenotypeMeans = phenotypeMeans;
+            this.kinship = kinship;
+        }
+        
+        /**
+         * Get the test fitting the null model if this is the first call
+         * @return
+         *          the test
+         */
+        public synchronized SnpBlockTest getSnpBlockTest()
+        {
+            if(this.snpBlockTest == null)
+            {
+                this.snpBlockTest = createSnpBlockTest(
+                        EMMAScanMode.APPROXIMATE,
+                        this.phenotypeMeans,
+                        this.kinship);
+            }
+            
+            return this.snpBlockTest;
+        }
+    }
+    
+    /**
+     * Find the column index of each of the given strains in the header
+     */
+    private static int[] toColumnIndices(String[] headerRow, String[] strains)
+    {
+        List<String> headerRowList = Arrays.asList(headerRow);
+        int[] columnIndices = new int[strains.length];
+        for(int i = 0; i < strains.length; i++)
+        {
+            columnIndices[i] = headerRowList.indexOf(strains[i]);
+        }
+        
+        return columnIndices;
+    }
+    
+    /**
+     * Scan a phenotype against already loaded genotypes. If the phenotype
+     * is missing some of the genotyped strains only the genotype columns
+     * and kinship rows for the strains that it does have are used
+     * @param sortedStrains
+     *          the strains in genotype column order
+     * @param phenoData
+     *          the phenotype data
+     * @param genos
+     *          the packed genotype matrix
+     * @param kinship
+     *          the flattened kinship matrix
+     * @return
+     *          the p-values
+     */
+    private double[] emmaScan(
+            String[] sortedStrains,
+            Map<String, List<Double>> phenoData,
+            PackedGenotypeMatrix genos,
+            double[] kinship)
+    {
+        int strainCount = sortedStrains.length;
+        int[] phenoStrainIndices = new int[strainCount];
+        int phenoStrainCount = 0;
+        for(int i = 0; i < strainCount; i++)
+        {
+            List<Double> currData = phenoData.get(sortedStrains[i]);
+            if(currData != null && !currData.isEmpty())
+            {
+                phenoStrainIndices[phenoStrainCount] = i;
+                phenoStrainCount++;
+            }
+        }
+        
+        double[] phenotypeMeans = new double[phenoStrainCount];
+        for(int i = 0; i < phenoStrainCount; i++)
+        {
+            phenotypeMeans[i] = StatisticUtilities.calculateMean(
+                    phenoData.get(sortedStrains[phenoStrainIndices[i]]));
+        }
+        
+        if(phenoStrainCount == strainCount)
+        {
+            return emmaScan(
+                    this.createSnpBlockTest(phenotypeMeans, kinship),
+                    strainCount,
+                    genos,
+                    null);
+        }
+        else
+        {
+            // the genotype columns are selected as they're decoded so we
+            // only need to pull out the kinship rows and columns
+            int[] selectedStrainIndices = new int[phenoStrainCount];
+            System.arraycopy(phenoStrainIndices, 0, selectedStrainIndices, 0, phenoStrainCount);
+            
+            double[] phenoKinship = new double[phenoStrainCount * phenoStrainCount];
+            for(int i = 0; i < phenoStrainCount; i++)
+            {
+                int kinshipRowOffset = phenoStrainIndices[i] * strainCount;
+                for(int j = 0; j < phenoStrainCount; j++)
+                {
+                    phenoKinship[i * phenoStrainCount + j] =
+                        kinship[kinshipRowOffset + phenoStrainIndices[j]];
+                }
+            }
+            
+            return emmaScan(
+                    this.createSnpBlockTest(phenotypeMeans, phenoKinship),
+                    phenoStrainCount,
+                    genos,
+                    selectedStrainIndices);
+        }
+    }
+    
+    /**
+     * Scan packed genotypes by decoding them a block of SNPs at a time
+     * just before they are handed to the test kernel
+     * @param snpBlockTest
+     *          the test
+     * @param strainCount
+     *          the number of strains scanned
+     * @param genos
+     *          the packed genotype matrix
+     * @param strainIndices
+     *          the genotype columns to scan (matching the test's strains)
+     *          or null to scan every column
+     * @return
+     *          the p-values
+     */
+    private static double[] emmaScan(
+            SnpBlockTest snpBlockTest,
+            int strainCount,
+            PackedGenotypeMatrix genos,
+            int[] strainIndices)
+    {
+        final int snpCount = genos.getSnpCount();
+        final int blockSnpCount = Math.min(snpCount, SCAN_BLOCK_SNP_COUNT);
+        double[] pValues = new double[snpCount];
+        double[] block = new double[blockSnpCount * strainCount];
+        for(int blockStart = 0; blockStart < snpCount; blockStart += blockSnpCount)
+        {
+            int currSnpCount = Math.min(blockSnpCount, snpCount - blockStart);
+            genos.decodeSnps(blockStart, currSnpCount, strainIndices, block);
+            double[] blockPValues = snpBlockTest.test(block, currSnpCount);
+            System.arraycopy(blockPValues, 0, pValues, blockStart, currSnpCount);
+        }
+        
+        return pValues;
+    }
+    
+    /**
+     * Calculate the kinship values
+     * @param genoData
+     *          the genotype data to base it on
+     * @param strains
+     *          a map of strain names
+     * @return
+     *          the kinship
+     * @throws
+     *          IOException
+     */
+    public double[] calculateKinship(
+            GenomeDataSource genoData,
+            Set<String> strains)
+    throws IOException
+    {
+        strains = new HashSet<String>(strains);
+        strains.retainAll(genoData.getAvailableStrains());
+        String[] commonStrains = strains.toArray(new String[0]);
+        Arrays.sort(commonStrains);
+        int strainCount = commonStrains.length;
+        
+        KinshipCache cache = this.kinshipCache;
+        String genoFingerprint = null;
+        if(cache != null)
+        {
+            genoFingerprint = cache.getGenotypeFingerprint(genoData);
+            double[] cachedKinship = cache.getKinship(genoFingerprint, commonStrains);
+            if(cachedKinship != null)
+            {
+                return cachedKinship;
+            }
+        }
+        
+        // stream the SDPs through the bit packed kernel one chromosome at
+        // a time folding each chromosome's pairwise counts into the genome
+        // total so that we never hold more than a block of SNPs in memory
+        BitPackedKinshipCalculator genomeKinship =
+            new BitPackedKinshipCalculator(strainCount);
+        Map<Integer, ? extends ChromosomeDataSource> chromosomeDataSources =
+            genoData.getChromosomeDataSources();
+        List<Integer> chromosomeNumbers = new ArrayList<Integer>(
+                chromosomeDataSources.keySet());
+        Collections.sort(chromosomeNumbers);
+        for(Integer chromosomeNumber: chromosomeNumbers)
+        {
+            genomeKinship.add(calculateKinshipContribution(
+                    chromosomeDataSources.get(chromosomeNumber),
+                    commonStrains));
+        }
+        
+        double[] kinship = genomeKinship.getKinship();
+        if(cache != null)
+        {
+            cache.putKinship(genoFingerprint, commonStrains, kinship);
+        }
+        
+        return kinship;
+    }
+    
+    /**
+     * Calculate leave one chromosome out (LOCO) kinship matrices. Every
+     * chromosome's pairwise counts are accumulated in a single pass over
+     * the genome and each chromosome's LOCO matrix is the genome total
+     * with that chromosome's counts taken back out, so this costs about the
+     * same as {@link #calculateKinship(GenomeDataSource, Set)}
+     * @param genoData
+     *          the genotype data to base it on
+     * @param strains
+     *          the strains to calculate kinship for
+     * @return
+     *          a map from chromosome number to the kinship matrix
+     *          calculated from every other chromosome
+     * @throws IOException
+     *          if the genotypes can't be read
+     * @throws IllegalArgumentException
+     *          if the genome has fewer than two chromosomes since there is
+     *          nothing left to calculate kinship from
+     */
+    public Map<Integer, double[]> calculateLocoKinship(
+            GenomeDataSource genoData,
+            Set<String> strains)
+    throws IOException
+    {
+        strains = new HashSet<String>(strains);
+        strains.retainAll(genoData.getAvailableStrains());
+        String[] commonStrains = strains.toArray(new String[0]);
+        Arrays.sort(commonStrains);
+        
+        Map<Integer, ? extends ChromosomeDataSource> chromosomeDataSources =
+            genoData.getChromosomeDataSources();
+        List<Integer> chromosomeNumbers = new ArrayList<Integer>(
+                chromosomeDataSources.keySet());
+        Collections.sort(chromosomeNumbers);
+        if(chromosomeNumbers.size() < 2)
+        {
+            throw new IllegalArgumentException(
+                    "leave one chromosome out kinship needs at least two " +
+                    "chromosomes but the genome has " + chromosomeNumbers.size());
+        }
+        
+        Map<Integer, double[]> locoKinships = new HashMap<Integer, double[]>();
+        KinshipCache cache = this.kinshipCache;
+        String genoFingerprint = null;
+        if(cache != null)
+        {
+            genoFingerprint = cache.getGenotypeFingerprint(genoData);
+            for(Integer chromosomeNumber: chromosomeNumbers)
+            {
+                double[] cachedKinship = cache.getKinship(
+                        toLocoFingerprint(genoFingerprint, chromosomeNumber),
+                        commonStrains);
+                if(cachedKinship == null)
+                {
+                    break;
+                }
+                locoKinships.put(chromosomeNumber, cachedKinship);
+            }
+            
+            if(locoKinships.size() == chromosomeNumbers.size())
+            {
+                return locoKinships;
+            }
+            locoKinships.clear();
+        }
+        
+        BitPackedKinshipCalculator genomeKinship =
+            new BitPackedKinshipCalculator(commonStrains.length);
+        Map<Integer, BitPackedKinshipCalculator> chromosomeContributions =
+            new HashMap<Integer, BitPackedKinshipCalculator>();
+        for(Integer chromosomeNumber: chromosomeNumbers)
+        {
+            BitPackedKinshipCalculator chrKinship = calculateKinshipContribution(
+                    chromosomeDataSources.get(chromosomeNumber),
+                    commonStrains);
+            chromosomeContributions.put(chromosomeNumber, chrKinship);
+            genomeKinship.add(chrKinship);
+        }
+        
+        for(Integer chromosomeNumber: chromosomeNumbers)
+        {
+            double[] locoKinship = genomeKinship.getKinshipExcluding(
+                    chromosomeContributions.get(chromosomeNumber));
+            locoKinships.put(chromosomeNumber, locoKinship);
+            if(cache != null)
+            {
+                cache.putKinship(
+                        toLocoFingerprint(genoFingerprint, chromosomeNumber),
+                        commonStrains,
+                        locoKinship);
+            }
+        }
+        
+        return locoKinships;
+    }
+    
+    private static String toLocoFingerprint(String genoFingerprint, Integer chromosomeNumber)
+    {
+        return genoFingerprint + KinshipCache.CONCATINATION_STRING + "loco" +
+               KinshipCache.CONCATINATION_STRING + chromosomeNumber;
+    }
+    
+    /**
+     * Get the kinship for the given chromosome failing if it's missing
+     */
+    private static double[] getChromosomeKinship(
+            Map<Integer, double[]> chromosomeKinships,
+            Integer chromosomeNumber)
+    {
+        double[] kinship = chromosomeKinships.get(chromosomeNumber);
+        if(kinship == null)
+        {
+            throw new IllegalArgumentException(
+                    "there is no kinship matrix for chromosome " + chromosomeNumber);
+        }
+        
+        return kinship;
+    }
+    
+    /**
+     * Accumulate the pairwise kinship counts for a single chromosome
+     * @param chrDataSource
+     *          the chromosome
+     * @param sortedStrains
+     *          the strains to calculate kinship for
+     * @return
+     *          the chromosome's kinship contribution
+     * @throws IOException
+     *          if the SDPs can't be read
+     */
+    private static BitPackedKinshipCalculator calculateKinshipContribution(
+            ChromosomeDataSource chrDataSource,
+            String[] sortedStrains)
+    throws IOException
+    {
+        BitPackedKinshipCalculator chrKinship =
+            new BitPackedKinshipCalculator(sortedStrains.length);
+        chrKinship.addSdps(
+                chrDataSource.getSdpInputStream(sortedStrains),
+                chrDataSource.getSnpPositionInputStream().getSnpCount());
+        
+        return chrKinship;
+    }
+    
+    /**
+     * Calculate the kinship for the given genotypes going through the
+     * kinship cache if there is one. The packed genotypes are decoded a
+     * block at a time into a {@link CallValueKinshipCalculator} (the same
+     * calculator that the chunked scan streams through) so the full double
+     * matrix is never created
+     * @param genoFingerprint
+     *          the fingerprint used as a cache key for the genotypes. This
+     *          is ignored if there is no cache
+     * @param sortedStrains
+     *          the strains in the same order as the genotype columns
+     * @param genos
+     *          the packed genotype matrix
+     * @return
+     *          the flattened kinship matrix
+     */
+    private double[] calculateKinship(
+            String genoFingerprint,
+            String[] sortedStrains,
+            PackedGenotypeMatrix genos)
+    {
+        KinshipCache cache = this.kinshipCache;
+        double[] kinship = cache == null ?
+                null :
+                cache.getKinship(genoFingerprint, sortedStrains);
+        if(kinship == null)
+        {
+            CallValueKinshipCalculator kinshipCalculator =
+                new CallValueKinshipCalculator(sortedStrains.length);
+            kinshipCalculator.addSnps(genos);
+            kinship = kinshipCalculator.getKinship();
+            if(cache != null)
+            {
+                cache.putKinship(genoFingerprint, sortedStrains, kinship);
+            }
+        }
+        
+        return kinship;
+    }
+    
+    /**
+     * Calculate the kinship for all of a chromosome's SNPs going through
+     * the kinship cache if there is one. The chunked and unchunked
+     * chromosome scans both come through here so they share cache entries
+     * @param chrDataSource
+     *          the chromosome
+     * @param sortedStrains
+     *          the strains to calculate kinship for
+     * @param sdpPatterns
+     *          the chromosome's SDPs for the sorted strains if they have
+     *          already been read or null to stream them from the chromosome
+     * @return
+     *          the flattened kinship matrix
+     * @throws IOException
+     *          if the SDPs can't be read
+     */
+    private double[] calculateKinship(
+            ChromosomeDataSource chrDataSource,
+            String[] sortedStrains,
+            SdpPatternIndex sdpPatterns)
+    throws IOException
+    {
+        KinshipCache cache = this.kinshipCache;
+        String genoFingerprint = null;
+        if(cache != null)
+        {
+            genoFingerprint = cache.getGenotypeFingerprint(chrDataSource);
+            double[] cachedKinship = cache.getKinship(genoFingerprint, sortedStrains);
+            if(cachedKinship != null)
+            {
+                return cachedKinship;
+            }
+        }
+        
+        BitPackedKinshipCalculator kinshipCalculator;
+        if(sdpPatterns == null)
+        {
+            kinshipCalculator = calculateKinshipContribution(
+                    chrDataSource,
+                    sortedStrains);
+        }
+        else
+        {
+            kinshipCalculator = new BitPackedKinshipCalculator(sortedStrains.length);
+            sdpPatterns.addSdpsTo(kinshipCalculator);
+        }
+        
+        double[] kinship = kinshipCalculator.getKinship();
+        if(cache != null)
+        {
+            cache.putKinship(genoFingerprint, sortedStrains, kinship);
+        }
+        
+        return kinship;
+    }
+    
+    /**
+     * Perform a scan on the given chromosome using EMMA
+     * @param chrDataSource
+     *          the chromosome data source
+     * @param phenotypeDataSource
+     *          the phenotype data source
+     * @param kinship
+     *          the kinship matrix (if null it's calculated based on data)
+     * @return
+     *          the p-values
+     * @throws IOException
+     */
+    public double[] emmaScan(
+            ChromosomeDataSource chrDataSource,
+            PhenotypeDataSource phenotypeDataSource,
+            double[] kinship)
+            throws IOException
+    {
+        Map<String, List<Double>> phenotypeDataMap = phenotypeDataSource.getPhenotypeData();
+        phenotypeDataMap.keySet().retainAll(chrDataSource.getAvailableStrains());
+        String[] commonStrains = phenotypeDataMap.keySet().toArray(new String[0]);
+        Arrays.sort(commonStrains);
+        
+        return this.emmaScan(
+                chrDataSource,
+                commonStrains,
+                toPhenotypeMeans(phenotypeDataMap, commonStrains),
+                kinship);
+    }
+    
+    /**
+     * Perform a genome wide EMMA scan where the chromosomes are scanned
+     * concurrently using a pool with one worker per available processor.
+     * Like every concurrent genome scan this always uses
+     * {@link EMMAScanMode#APPROXIMATE} mode
+     * @see #emmaScan(GenomeDataSource, PhenotypeDataSource, double[], int)
+     * @param genomeDataSource
+     *          the genome data source
+     * @param phenotypeDataSource
+     *          the phenotype data source
+     * @param kinship
+     *          the kinship matrix (if null it's calculated based on data)
+     * @return
+     *          the p-values for every SNP in chromosome order
+     * @throws IOException
+     */
+    public double[] emmaScan(
+            GenomeDataSource genomeDataSource,
+            PhenotypeDataSource phenotypeDataSource,
+            double[] kinship)
+            throws IOException
+    {
+        return this.emmaScan(
+                genomeDataSource,
+                phenotypeDataSource,
+                kinship,
+                Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Perform a genome wide EMMA scan. A single kinship matrix is shared by
+     * all of the chromosomes and the chromosomes are scanned concurrently.
+     * The native EMMA library that {@link EMMAScanMode#EXACT} mode calls
+     * can only be used by one thread at a time, so the chromosomes are
+     * always tested in {@link EMMAScanMode#APPROXIMATE} mode here whatever
+     * the scan mode of this test is. Use
+     * {@link #emmaScan(GenomeDataSource, PhenotypeDataSource, double[], int, ScanResultWriter)}
+     * for an exact genome wide scan
+     * @param genomeDataSource
+     *          the genome data source
+     * @param phenotypeDataSource
+     *          the phenotype data source
+     * @param kinship
+     *          the kinship matrix (if null it's calculated from the whole
+     *          genome using {@link #calculateKinship(GenomeDataSource, Set)})
+     * @param workerCount
+     *          the number of chromosomes to scan at the same time
+     * @return
+     *          the p-values for every SNP. The per-chromosome results are
+     *          concatenated in ascending chromosome number order
+     * @throws IOException
+     */
+    public double[] emmaScan(
+            GenomeDataSource genomeDataSource,
+            PhenotypeDataSource phenotypeDataSource,
+            double[] kinship,
+            int workerCount)
+            throws IOException
+    {
+        if(workerCount < 1)
+        {
+            throw new IllegalArgumentException(
+                    "the worker count must be positive but was " + workerCount);
+        }
+        
+        Map<String, List<Double>> phenotypeDataMap = phenotypeDataSource.getPhenotypeData();
+        phenotypeDataMap.keySet().retainAll(genomeDataSource.getAvailableStrains());
+        final String[] commonStrains = phenotypeDataMap.keySet().toArray(new String[0]);
+        Arrays.sort(commonStrains);
+        final double[] phenotypeMeans = toPhenotypeMeans(phenotypeDataMap, commonStrains);
+        
+        if(kinship == null)
+        {
+            kinship = this.calculateKinship(
+                    genomeDataSource,
+                    phenotypeDataMap.keySet());
+        }
+        
+        Map<Integer, double[]> chromosomeKinships = new HashMap<Integer, double[]>();
+        for(Integer chromosomeNumber: genomeDataSource.getChromosomeDataSources().keySet())
+        {
+            chromosomeKinships.put(chromosomeNumber, kinship);
+        }
+        
+        return this.emmaScan(
+                genomeDataSource,
+                commonStrains,
+                phenotypeMeans,
+                chromosomeKinships,
+                workerCount);
+    }
+    
+    /**
+     * Perform a genome wide EMMA scan where every chromosome is scanned
+     * using a kinship matrix that leaves that chromosome out (LOCO) so that
+     * SNPs aren't tested against a kinship that already contains them. The
+     * chromosomes are scanned concurrently and, like
+     * {@link #emmaScan(GenomeDataSource, PhenotypeDataSource, double[], int)},
+     * always in {@link EMMAScanMode#APPROXIMATE} mode. Use
+     * {@link #emmaScanLoco(GenomeDataSource, PhenotypeDataSource, Map, int, ScanResultWriter)}
+     * for an exact scan
+     * @param genomeDataSource
+     *          the genome data source
+     * @param phenotypeDataSource
+     *          the phenotype data source
+     * @param chromosomeKinships
+     *          the kinship matrix to use for each chromosome number (if null
+     *          they're calculated using
+     *          {@link #calculateLocoKinship(GenomeDataSource, Set)})
+     * @param workerCount
+     *          the number of chromosomes to scan at the same time
+     * @return
+     *          the p-values for every SNP. The per-chromosome results are
+     *          concatenated in ascending chromosome number order
+     * @throws IOException
+     */
+    public double[] emmaScanLoco(
+            GenomeDataSource genomeDataSource,
+            PhenotypeDataSource phenotypeDataSource,
+            Map<Integer, double[]> chromosomeKinships,
+            int workerCount)
+            throws IOException
+    {
+        if(workerCount < 1)
+        {
+            throw new IllegalArgumentException(
+                    "the worker count must be positive but was " + workerCount);
+        }
+        
+        Map<String, List<Double>> phenotypeDataMap = phenotypeDataSource.getPhenotypeData();
+        phenotypeDataMap.keySet().retainAll(genomeDataSource.getAvailableStrains());
+        String[] commonStrains = phenotypeDataMap.keySet().toArray(new String[0]);
+        Arrays.sort(commonStrains);
+        double[] phenotypeMeans = toPhenotypeMeans(phenotypeDataMap, commonStrains);
+        
+        if(chromosomeKinships == null)
+        {
+            chromosomeKinships = this.calculateLocoKinship(
+                    genomeDataSource,
+                    phenotypeDataMap.keySet());
+        }
+        
+        return this.emmaScan(
+                genomeDataSource,
+                commonStrains,
+                phenotypeMeans,
+                chromosomeKinships,
+                workerCount);
+    }
+    
+    /**
+     * Scan every chromosome concurrently in approximate mode using the given
+     * kinship matrix for each chromosome. The null model is fit once per
+     * distinct kinship matrix (so once in total when every chromosome
+     * shares the genome kinship) and the resulting test is shared by the
+     * chromosome tasks
+     */
+    private double[] emmaScan(
+            GenomeDataSource genomeDataSource,
+            final String[] commonStrains,
+            final double[] phenotypeMeans,
+            final Map<Integer, double[]> chromosomeKinships,
+            int workerCount)
+            throws IOException
+    {
+        final Map<Integer, ? extends ChromosomeDataSource> chromosomeDataSources =
+            genomeDataSource.getChromosomeDataSources();
+        List<Integer> chromosomeNumbers = new ArrayList<Integer>(
+                chromosomeDataSources.keySet());
+        Collections.sort(chromosomeNumbers);
         
+        // kinships are matched by identity since that is how a shared
+        // genome kinship shows up in the map
+        Map<double[], SharedSnpBlockTest> kinshipTests =
+            new IdentityHashMap<double[], SharedSnpBlockTest>();
+        final Map<Integer, SharedSnpBlockTest> chromosomeTests =
+            new HashMap<Integer, SharedSnpBlockTest>();
+        for(Integer chromosomeNumber: chromosomeNumbers)
         {
-            List<String> headerRowList = Arrays.asList(currRow);
-            for(int i = 0; i < strainCount; i++)
+            double[] kinship = getChromosomeKinship(
+                    chromosomeKinships,
+                    chromosomeNumber);
+            SharedSnpBlockTest snpBlockTest = kinshipTests.get(kinship);
+            if(snpBlockTest == null)
             {
-                commonStrainIndices[i] = headerRowList.indexOf(commonStrainArray[i]);
+                snpBlockTest = new SharedSnpBlockTest(phenotypeMeans, kinship);
+                kinshipTests.put(kinship, snpBlockTest);
             }
+            chromosomeTests.put(chromosomeNumber, snpBlockTest);
         }
         
-        // TODO need failure if there are fewer than 3 strains in common
-        
-        // read the phenotype data
-        if(phenotype == null || phenotype.length() == 0)
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(workerCount, Math.max(1, chromosomeNumbers.size())));
+        try
         {
-            phenoIn = new FileInputStream(phenoFileName);
-            Set<String> phenos = phenoParser.parseAvailablePhenotypes(phenoIn);
-            phenoIn.close();
+            List<Future<double[]>> chromosomeScans =
+                new ArrayList<Future<double[]>>(chromosomeNumbers.size());
+            for(final Integer chromosomeNumber: chromosomeNumbers)
+            {
+                chromosomeScans.add(executor.submit(new Callable<double[]>()
+                {
+                    public double[] call() throws IOException
+                    {
+                        if(LOG.isLoggable(Level.FINE))
+                        {
+                            LOG.fine("scanning chromosome: " + chromosomeNumber);
+                        }
+                        
+                        SdpPatternIndex sdpPatterns = readSdpPatterns(
+                                chromosomeDataSources.get(chromosomeNumber),
+                                commonStrains);
+                        return emmaScan(
+                                chromosomeTests.get(chromosomeNumber).getSnpBlockTest(),
+                                sdpPatterns);
+                    }
+                }));
+            }
             
-            if(phenos.size() != 1)
+            // merge the results in chromosome order
+            List<double[]> chromosomePValues = new ArrayList<double[]>(
+                    chromosomeScans.size());
+            int totalSnpCount = 0;
+            for(Future<double[]> chromosomeScan: chromosomeScans)
             {
-                throw new IllegalFormatException();
+                double[] currPValues = getScanResult(chromosomeScan);
+                chromosomePValues.add(currPValues);
+                totalSnpCount += currPValues.length;
             }
-            else
+            
+            double[] pValues = new double[totalSnpCount];
+            int currStartIndex = 0;
+            for(double[] currPValues: chromosomePValues)
             {
-                phenotype = phenos.iterator().next();
+                System.arraycopy(
+                        currPValues,
+                        0,
+                        pValues,
+                        currStartIndex,
+                        currPValues.length);
+                currStartIndex += currPValues.length;
             }
+            
+            return pValues;
         }
-        
-        if(LOG.isLoggable(Level.FINE))
+        finally
         {
-            LOG.fine("the phenotype is: " + phenotype);
+            executor.shutdownNow();
         }
-        
-        phenoIn = new FileInputStream(phenoFileName);
-        Map<String, List<Double>> phenoData = phenoParser.parsePhenotypesFromStream(
-                phenotype,
-                phenoIn,
-                sexToScan,
-                commonStrainSet);
-        
-        if(LOG.isLoggable(Level.FINE))
+    }
+    
+    /**
+     * Wait for the given chromosome scan passing on any failure
+     */
+    private static double[] getScanResult(Future<double[]> chromosomeScan)
+    throws IOException
+    {
+        try
         {
-            LOG.fine("the # of phenotypes is: " + phenoData.size());
+            return chromosomeScan.get();
         }
-        
-        double[] phenotypeMeans = new double[phenoData.size()];
-        for(int i = 0; i < strainCount; i++)
+        catch(InterruptedException ex)
         {
-            phenotypeMeans[i] = 0.0;
-            List<Double> currData = phenoData.get(commonStrainArray[i]);
-            for(Double measure: currData)
-            {
-                phenotypeMeans[i] += measure;
-            }
-            phenotypeMeans[i] /= currData.size();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
         }
-        
-        // read the genotype data
-        List<double[]> callValues = new LinkedList<double[]>();
-        while((currRow = genoFFR.readRow()) != null)
+        catch(ExecutionException ex)
         {
-            double[] currSnpGenos = new double[strainCount];
-            for(int strainIndex = 0; strainIndex < strainCount; strainIndex++)
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException)
             {
-                currSnpGenos[strainIndex] = toCallValue(
-                        currRow[aAlleleColumn],
-                        currRow[bAlleleColumn],
-                        currRow[commonStrainIndices[strainIndex]]);
+                throw (IOException)cause;
             }
-            callValues.add(currSnpGenos);
-        }
-        
-        // flatten the genotype matrix
-        double[] flatCallValues = new double[strainCount * callValues.size()];
-        Iterator<double[]> iter = callValues.iterator();
-        for(int rowIndex = 0; iter.hasNext(); rowIndex++)
-        {
-            double[] currSnpGenos = iter.next();
-            for(int strainIndex = 0; strainIndex < currSnpGenos.length; strainIndex++)
+            else if(cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            else if(cause instanceof Error)
+            {
+                throw (Error)cause;
+            }
+            else
             {
-                int flatIndex = rowIndex * strainCount + strainIndex;
-                flatCallValues[flatIndex] = currSnpGenos[strainIndex];
+                throw new IllegalStateException(cause);
             }
         }
-        
-        // calculate kinship matrix and do the scan
-        double[] kinship = calculateKinship(strainCount, flatCallValues);
-        return emmaScan(strainCount, phenotypeMeans, flatCallValues, kinship);
     }
     
-    private double toCallValue(String aAllele, String bAllele, String genoCall) throws IllegalFormatException
+    /**
+     * Scan the given chromosome for the given (sorted) strains. Each
+     * distinct SDP is only tested once and its p-value is shared by every
+     * SNP with that SDP
+     */
+    private double[] emmaScan(
+            ChromosomeDataSource chrDataSource,
+            String[] commonStrains,
+            double[] phenotypeMeans,
+            double[] kinship)
+            throws IOException
     {
-        switch(toCallCode(aAllele, bAllele, genoCall))
+        SdpPatternIndex sdpPatterns = readSdpPatterns(chrDataSource, commonStrains);
+        if(kinship == null)
         {
-            case ACall: return 1.0;
-            case BCall: return 0.0;
-            case HCall: return 0.5;
-            case NCall: return Double.NaN;
-            default:    throw new IllegalStateException("this should never happen");
+            kinship = this.calculateKinship(
+                    chrDataSource,
+                    commonStrains,
+                    sdpPatterns);
         }
+        
+        return emmaScan(
+                this.createSnpBlockTest(phenotypeMeans, kinship),
+                sdpPatterns);
     }
     
-    private AlleleCallCode toCallCode(String aAllele, String bAllele, String genoCall) throws IllegalFormatException
+    /**
+     * Test each distinct SDP of a chromosome once and share its p-value
+     * with every SNP that has that SDP
+     * @param snpBlockTest
+     *          the test (with its null model already fit)
+     * @param sdpPatterns
+     *          the chromosome's SDPs
+     * @return
+     *          the p-value for every SNP
+     */
+    private static double[] emmaScan(
+            SnpBlockTest snpBlockTest,
+            SdpPatternIndex sdpPatterns)
     {
-        aAllele = aAllele.toUpperCase();
-        bAllele = bAllele.toUpperCase();
-        genoCall = genoCall.toUpperCase();
-        if(genoCall.equals(aAllele))
-        {
-            return AlleleCallCode.ACall;
-        }
-        else if(genoCall.equals(bAllele))
-        {
-            return AlleleCallCode.BCall;
-        }
-        else if(genoCall.equals("H") || genoCall.equals("HH"))
+        double[] uniquePValues = emmaScan(
+                snpBlockTest,
+                sdpPatterns.getStrainCount(),
+                sdpPatterns.getUniquePatterns(),
+                null);
+        return sdpPatterns.expandPValues(uniquePValues);
+    }
+    
+    /**
+     * Read all of a chromosome's SDPs for the given (sorted) strains into
+     * a pattern index
+     */
+    private static SdpPatternIndex readSdpPatterns(
+            ChromosomeDataSource chrDataSource,
+            String[] commonStrains)
+            throws IOException
+    {
+        int snpCount = (int)chrDataSource.getSnpPositionInputStream().getSnpCount();
+        
+        SdpPatternIndex sdpPatterns = new SdpPatternIndex(commonStrains.length, snpCount);
+        SdpInputStream sdpStream = chrDataSource.getSdpInputStream(commonStrains); // TODO FIXME
+        for(int snpIndex = 0; snpIndex < snpCount; snpIndex++)
         {
-            return AlleleCallCode.HCall;
+            sdpPatterns.addSdp(sdpStream.getNextSdp());
         }
-        else if(genoCall.length() == 0 || genoCall.equals("N") || genoCall.equals("-") || genoCall.equals("NN"))
+        
+        if(LOG.isLoggable(Level.FINE))
         {
-            return AlleleCallCode.NCall;
+            LOG.fine(
+                    "testing " + sdpPatterns.getUniquePatternCount() +
+                    " unique SDPs for " + snpCount + " SNPs");
         }
-        else
+        
+        return sdpPatterns;
+    }
+    
+    /**
+     * Perform a scan on the given chromosome using EMMA where SDPs are
+     * streamed through the scan a chunk at a time and the p-values are
+     * written out as soon as each chunk is scanned. If no kinship is given
+     * it is accumulated from the chromosome's SDPs with a separate streaming
+     * pass (unless it is in the kinship cache) so memory use depends on the
+     * chunk size rather than on the number of SNPs
+     * @param chrDataSource
+     *          the chromosome data source
+     * @param phenotypeDataSource
+     *          the phenotype data source
+     * @param kinship
+     *          the kinship matrix (if null it's calculated based on data)
+     * @param chunkSnpCount
+     *          the number of SNPs to scan at a time
+     * @param resultWriter
+     *          the writer that the p-values are written to in SNP order.
+     *          it is not closed by this function
+     * @throws IOException
+     *          if reading SDPs or writing results fails
+     */
+    public void emmaScan(
+            ChromosomeDataSource chrDataSource,
+            PhenotypeDataSource phenotypeDataSource,
+            double[] kinship,
+            int chunkSnpCount,
+            ScanResultWriter resultWriter)
+            throws IOException
+    {
+        Map<String, List<Double>> phenotypeDataMap = phenotypeDataSource.getPhenotypeData();
+        phenotypeDataMap.keySet().retainAll(chrDataSource.getAvailableStrains());
+        String[] commonStrains = phenotypeDataMap.keySet().toArray(new String[0]);
+        Arrays.sort(commonStrains);
+        
+        if(kinship == null)
         {
-            //throw new IllegalFormatException("Unknown genotype: " + genoCall);
-            return AlleleCallCode.NCall;
+            kinship = this.calculateKinship(
+                    chrDataSource,
+                    commonStrains,
+                    null);
         }
+        
+        emmaScan(
+                chrDataSource,
+                commonStrains,
+                this.createSnpBlockTest(
+                        toPhenotypeMeans(phenotypeDataMap, commonStrains),
+                        kinship),
+                chunkSnpCount,
+                resultWriter);
     }
     
     /**
-     * Calculate the kinship values
-     * @param genoData
-     *          the genotype data to base it on
-     * @param strains
-     *          a map of strain names
-     * @return
-     *          the kinship
-     * @throws
-     *          IOException
+     * Perform a genome wide EMMA scan where the chromosomes are scanned one
+     * after the other with SDPs streamed through the scan a chunk at a
+     * time. A single kinship matrix is shared by all of the chromosomes
+     * @param genomeDataSource
+     *          the genome data source
+     * @param phenotypeDataSource
+     *          the phenotype data source
+     * @param kinship
+     *          the kinship matrix (if null it's calculated from the whole
+     *          genome using {@link #calculateKinship(GenomeDataSource, Set)})
+     * @param chunkSnpCount
+     *          the number of SNPs to scan at a time
+     * @param resultWriter
+     *          the writer that the p-values are written to in ascending
+     *          chromosome number then SNP order. it is not closed by this
+     *          function
+     * @throws IOException
+     *          if reading SDPs or writing results fails
      */
-    public double[] calculateKinship(
-            GenomeDataSource genoData,
-            Set<String> strains)
-    throws IOException
+    public void emmaScan(
+            GenomeDataSource genomeDataSource,
+            PhenotypeDataSource phenotypeDataSource,
+            double[] kinship,
+            int chunkSnpCount,
+            ScanResultWriter resultWriter)
+            throws IOException
     {
-        strains = new HashSet<String>(strains);
-        strains.retainAll(genoData.getAvailableStrains());
-        String[] commonStrains = strains.toArray(new String[0]);
+        Map<String, List<Double>> phenotypeDataMap = phenotypeDataSource.getPhenotypeData();
+        phenotypeDataMap.keySet().retainAll(genomeDataSource.getAvailableStrains());
+        String[] commonStrains = phenotypeDataMap.keySet().toArray(new String[0]);
         Arrays.sort(commonStrains);
-        int strainCount = commonStrains.length;
+        double[] phenotypeMeans = toPhenotypeMeans(phenotypeDataMap, commonStrains);
         
-        int snpCount = 0;
-        for(ChromosomeDataSource currChr : genoData.getChromosomeDataSources().values())
+        if(kinship == null)
         {
-            snpCount += currChr.getSnpPositionInputStream().getSnpCount();
+            kinship = this.calculateKinship(
+                    genomeDataSource,
+                    phenotypeDataMap.keySet());
         }
         
-        double[] genos = new double[snpCount * strainCount];
-        int currStartIndex = 0;
-        for(ChromosomeDataSource currChr : genoData.getChromosomeDataSources().values())
+        Map<Integer, double[]> chromosomeKinships = new HashMap<Integer, double[]>();
+        for(Integer chromosomeNumber: genomeDataSource.getChromosomeDataSources().keySet())
         {
-            SdpInputStream sdpStream = currChr.getSdpInputStream(commonStrains);
-            int currSnpCount = (int)currChr.getSnpPositionInputStream().getSnpCount();
-            for(int i = 0; i < currSnpCount; i++)
-            {
-                int currSnp = currStartIndex + i;
-                BitSet currSdp = sdpStream.getNextSdp();
-                for(int strainIndex = 0; strainIndex < strainCount; strainIndex++)
-                {
-                    double currCall = currSdp.get(strainIndex) ? 1.0 : 0.0;
-                    genos[currSnp * strainCount + strainIndex] = currCall;
-                }
-            }
+            chromosomeKinships.put(chromosomeNumber, kinship);
         }
         
-        return calculateKinship(strainCount, genos);
+        this.emmaScan(
+                genomeDataSource,
+                commonStrains,
+                phenotypeMeans,
+                chromosomeKinships,
+                chunkSnpCount,
+                resultWriter);
     }
     
     /**
-     * Perform a scan on the given chromosome using EMMA
-     * @param chrDataSource
-     *          the chromosome data source
+     * Perform a genome wide EMMA scan where the chromosomes are scanned one
+     * after the other with SDPs streamed through the scan a chunk at a
+     * time and every chromosome uses a kinship matrix that leaves that
+     * chromosome out (LOCO)
+     * @param genomeDataSource
+     *          the genome data source
      * @param phenotypeDataSource
      *          the phenotype data source
-     * @param kinship
-     *          the kinship matrix (if null it's calculated based on data)
-     * @return
-     *          the p-values
+     * @param chromosomeKinships
+     *          the kinship matrix to use for each chromosome number (if null
+     *          they're calculated using
+     *          {@link #calculateLocoKinship(GenomeDataSource, Set)})
+     * @param chunkSnpCount
+     *          the number of SNPs to scan at a time
+     * @param resultWriter
+     *          the writer that the p-values are written to in ascending
+     *          chromosome number then SNP order. it is not closed by this
+     *          function
      * @throws IOException
+     *          if reading SDPs or writing results fails
      */
-    public double[] emmaScan(
-            ChromosomeDataSource chrDataSource,
+    public void emmaScanLoco(
+            GenomeDataSource genomeDataSource,
             PhenotypeDataSource phenotypeDataSource,
-            double[] kinship)
+            Map<Integer, double[]> chromosomeKinships,
+            int chunkSnpCount,
+            ScanResultWriter resultWriter)
             throws IOException
     {
-        int snpCount = (int)chrDataSource.getSnpPositionInputStream().getSnpCount();
         Map<String, List<Double>> phenotypeDataMap = phenotypeDataSource.getPhenotypeData();
-        phenotypeDataMap.keySet().retainAll(chrDataSource.getAvailableStrains());
+        phenotypeDataMap.keySet().retainAll(genomeDataSource.getAvailableStrains());
         String[] commonStrains = phenotypeDataMap.keySet().toArray(new String[0]);
         Arrays.sort(commonStrains);
-        int strainCount = commonStrains.length;
+        double[] phenotypeMeans = toPhenotypeMeans(phenotypeDataMap, commonStrains);
         
-        String[] sortedCommonStrains = phenotypeDataMap.keySet().toArray(
-                new String[phenotypeDataMap.size()]);
-        Arrays.sort(sortedCommonStrains);
+        if(chromosomeKinships == null)
+        {
+            chromosomeKinships = this.calculateLocoKinship(
+                    genomeDataSource,
+                    phenotypeDataMap.keySet());
+        }
         
-        double[] genos = new double[snpCount * strainCount];
-        SdpInputStream sdpStream = chrDataSource.getSdpInputStream(commonStrains); // TODO FIXME
-        for(int snpIndex = 0; snpIndex < snpCount; snpIndex++)
+        this.emmaScan(
+                genomeDataSource,
+                commonStrains,
+                phenotypeMeans,
+                chromosomeKinships,
+                chunkSnpCount,
+                resultWriter);
+    }
+    
+    /**
+     * Scan the chromosomes one after the other a chunk at a time using the
+     * given kinship matrix for each chromosome
+     */
+    private void emmaScan(
+            GenomeDataSource genomeDataSource,
+            String[] commonStrains,
+            double[] phenotypeMeans,
+            Map<Integer, double[]> chromosomeKinships,
+            int chunkSnpCount,
+            ScanResultWriter resultWriter)
+            throws IOException
+    {
+        Map<Integer, ? extends ChromosomeDataSource> chromosomeDataSources =
+            genomeDataSource.getChromosomeDataSources();
+        List<Integer> chromosomeNumbers = new ArrayList<Integer>(
+                chromosomeDataSources.keySet());
+        Collections.sort(chromosomeNumbers);
+        
+        // chromosomes that share a kinship matrix share the SNP test so
+        // that the null model is only fit once per kinship matrix
+        double[] testKinship = null;
+        SnpBlockTest snpBlockTest = null;
+        for(Integer chromosomeNumber: chromosomeNumbers)
         {
-            BitSet currSDP = sdpStream.getNextSdp();
-            for(int strainIndex = 0; strainIndex < strainCount; strainIndex++)
+            if(LOG.isLoggable(Level.FINE))
+            {
+                LOG.fine("scanning chromosome: " + chromosomeNumber);
+            }
+            
+            double[] chrKinship = getChromosomeKinship(chromosomeKinships, chromosomeNumber);
+            if(snpBlockTest == null || chrKinship != testKinship)
             {
-                double currCall = currSDP.get(strainIndex) ? 1.0 : 0.0;
-                genos[snpIndex * strainCount + strainIndex] = currCall;
+                snpBlockTest = this.createSnpBlockTest(phenotypeMeans, chrKinship);
+                testKinship = chrKinship;
             }
+            
+            emmaScan(
+                    chromosomeDataSources.get(chromosomeNumber),
+                    commonStrains,
+                    snpBlockTest,
+                    chunkSnpCount,
+                    resultWriter);
         }
-        
-        if(kinship == null)
+    }
+    
+    /**
+     * Scan the given chromosome for the given (sorted) strains a chunk of
+     * SDPs at a time
+     */
+    private static void emmaScan(
+            ChromosomeDataSource chrDataSource,
+            String[] commonStrains,
+            SnpBlockTest snpBlockTest,
+            int chunkSnpCount,
+            ScanResultWriter resultWriter)
+            throws IOException
+    {
+        if(chunkSnpCount < 1)
         {
-            kinship = calculateKinship(strainCount, genos);
+            throw new IllegalArgumentException(
+                    "the chunk size must be positive but was " + chunkSnpCount);
         }
         
-        double[] phenotypeMeans = new double[strainCount];
-        for(int strainIndex = 0; strainIndex < strainCount; strainIndex++)
+        long snpCount = chrDataSource.getSnpPositionInputStream().getSnpCount();
+        int strainCount = commonStrains.length;
+        double[] chunkGenos = new double[chunkSnpCount * strainCount];
+        SdpInputStream sdpStream = chrDataSource.getSdpInputStream(commonStrains);
+        for(long chunkStart = 0; chunkStart < snpCount; chunkStart += chunkSnpCount)
+        {
+            // only the distinct SDPs within the chunk are tested
+            int currSnpCount = (int)Math.min(chunkSnpCount, snpCount - chunkStart);
+            SdpPatternIndex chunkPatterns = new SdpPatternIndex(strainCount, currSnpCount);
+            for(int snpIndex = 0; snpIndex < currSnpCount; snpIndex++)
+            {
+                chunkPatterns.addSdp(sdpStream.getNextSdp());
+            }
+            
+            int uniqueCount = chunkPatterns.getUniquePatternCount();
+            chunkPatterns.getUniquePatterns().decodeSnps(0, uniqueCount, null, chunkGenos);
+            double[] pValues = chunkPatterns.expandPValues(
+                    snpBlockTest.test(chunkGenos, uniqueCount));
+            resultWriter.writePValues(new double[][] {pValues}, 0, pValues.length);
+        }
+    }
+    
+    /**
+     * Get the per-strain phenotype means in the given strain order
+     */
+    private static double[] toPhenotypeMeans(
+            Map<String, List<Double>> phenotypeDataMap,
+            String[] strains)
+    {
+        double[] phenotypeMeans = new double[strains.length];
+        for(int strainIndex = 0; strainIndex < strains.length; strainIndex++)
         {
             phenotypeMeans[strainIndex] = StatisticUtilities.calculateMean(
-                    phenotypeDataMap.get(commonStrains[strainIndex]));
+                    phenotypeDataMap.get(strains[strainIndex]));
         }
         
-        return emmaScan(strainCount, phenotypeMeans, genos, kinship);
+        return phenotypeMeans;
     }
     
+    // The native function is declared synchronized so that only one thread
+    // is ever inside the EMMA library at a time. Nothing documents the
+    // library as reentrant or free of static state, so exact scans run one
+    // chromosome at a time and the concurrent genome scans always use the
+    // approximate mode which never calls native code while scanning
+    
     /**
      * Native function for performing an EMMA scan
      * @param strainCount   the number of strains
@@ -378,21 +1727,73 @@ public class EMMAAssociationTest
      *                      genotypes
      * @return              the resulting (flattened) pvalue matrix
      */
-    private static native double[] emmaScan(
+    private static synchronized native double[] emmaScan(
             int strainCount,
             double[] phenos,
             double[] genos,
             double[] kinship);
     
     /**
-     * Native function for performing an EMMA scan
-     * @param strainCount   the number of strains
-     * @param genos         the (flattened) genotype matrix
-     * @return              the resulting (flattened) kinship matrix
+     * Create the writer for the command line output
      */
-    private static native double[] calculateKinship(
-            int strainCount,
-            double[] genos);
+    private static ScanResultWriter createResultWriter(
+            String outFileName,
+            boolean binaryOutput,
+            boolean gzip,
+            String[] phenotypeNames,
+            FlatFileGenotypeReader genoReader,
+            int snpIdColumn,
+            int chromosomeColumn,
+            int positionColumn)
+    throws IllegalFormatException, IOException
+    {
+        FlatFileGenotypeReader.SnpIdentifierReader snpIdentifierReader = null;
+        if(snpIdColumn != -1 || chromosomeColumn != -1 || positionColumn != -1)
+        {
+            snpIdentifierReader = genoReader.openSnpIdentifierReader(
+                    snpIdColumn,
+                    chromosomeColumn,
+                    positionColumn);
+        }
+        
+        if(binaryOutput)
+        {
+            return new BinaryScanResultFile.Writer(
+                    new File(outFileName),
+                    phenotypeNames,
+                    snpIdentifierReader);
+        }
+        else
+        {
+            OutputStream out = new FileOutputStream(outFileName);
+            if(gzip)
+            {
+                out = new GZIPOutputStream(out);
+            }
+            return new CsvScanResultWriter(
+                    out,
+                    phenotypeNames,
+                    snpIdentifierReader);
+        }
+    }
+    
+    /**
+     * Write in memory scan results a block at a time so that the writer
+     * reads SNP identifiers in blocks too
+     */
+    private static void writeResults(
+            double[][] scanResults,
+            int snpCount,
+            ScanResultWriter resultWriter) throws IOException
+    {
+        for(int offset = 0; offset < snpCount; offset += SCAN_BLOCK_SNP_COUNT)
+        {
+            resultWriter.writePValues(
+                    scanResults,
+                    offset,
+                    Math.min(SCAN_BLOCK_SNP_COUNT, snpCount - offset));
+        }
+    }
     
     /**
      * the main entry point
@@ -474,13 +1875,28 @@ public class EMMAAssociationTest
         
         final Option phenoNameOption;
         {
-            phenoNameOption = new Option("phenoname", "[optional] the name of the phenotype to scan");
+            phenoNameOption = new Option(
+                    "phenoname",
+                    "[optional] the name of the phenotype to scan. More than " +
+                    "one name can be given in which case the genotypes are " +
+                    "only loaded once and there is a p-value column for " +
+                    "each phenotype");
             phenoNameOption.setRequired(false);
-            phenoNameOption.setArgs(1);
+            phenoNameOption.setArgs(Option.UNLIMITED_VALUES);
             phenoNameOption.setArgName("name");
             options.addOption(phenoNameOption);
         }
         
+        final Option allPhenosOption;
+        {
+            allPhenosOption = new Option(
+                    "allphenos",
+                    "[optional] scan every phenotype in the phenotype file " +
+                    "writing a p-value column for each phenotype");
+            allPhenosOption.setRequired(false);
+            options.addOption(allPhenosOption);
+        }
+        
         final Option sexOption;
         {
             sexOption = new Option(
@@ -502,6 +1918,104 @@ public class EMMAAssociationTest
             options.addOption(outputFileOption);
         }
         
+        final Option kinshipCacheOption;
+        {
+            kinshipCacheOption = new Option(
+                    "kinshipcache",
+                    "[optional] a directory used to cache kinship matrices " +
+                    "between scans of the same genotype file");
+            kinshipCacheOption.setRequired(false);
+            kinshipCacheOption.setArgs(1);
+            kinshipCacheOption.setArgName("directory");
+            options.addOption(kinshipCacheOption);
+        }
+        
+        final Option scanModeOption;
+        {
+            scanModeOption = new Option(
+                    "scanmode",
+                    "[optional] exact re-estimates the variance components " +
+                    "for every SNP (the EMMA default). approximate estimates " +
+                    "them once under the null model (EMMAX) which is much " +
+                    "faster for large panels.");
+            scanModeOption.setRequired(false);
+            scanModeOption.setArgs(1);
+            scanModeOption.setArgName("exact/approximate");
+            options.addOption(scanModeOption);
+        }
+        
+        final Option chunkSizeOption;
+        {
+            chunkSizeOption = new Option(
+                    "chunksize",
+                    "[optional] scan the genotypes this many SNPs at a time " +
+                    "writing p-values as they are calculated so that the " +
+                    "whole genotype file never has to fit in memory. Only " +
+                    "supported when scanning a single phenotype");
+            chunkSizeOption.setRequired(false);
+            chunkSizeOption.setArgs(1);
+            chunkSizeOption.setArgName("SNP count");
+            options.addOption(chunkSizeOption);
+        }
+        
+        final Option outFormatOption;
+        {
+            outFormatOption = new Option(
+                    "outformat",
+                    "[optional] csv (the default) or binary. The binary " +
+                    "format is a columnar file that can be memory mapped " +
+                    "(see BinaryScanResultFile)");
+            outFormatOption.setRequired(false);
+            outFormatOption.setArgs(1);
+            outFormatOption.setArgName("csv/binary");
+            options.addOption(outFormatOption);
+        }
+        
+        final Option gzipOption;
+        {
+            gzipOption = new Option(
+                    "gzip",
+                    "[optional] gzip compress the CSV output");
+            gzipOption.setRequired(false);
+            options.addOption(gzipOption);
+        }
+        
+        final Option snpIdColumnOption;
+        {
+            snpIdColumnOption = new Option(
+                    "snpidcol",
+                    "[optional] the SNP ID column # (one-based index) to " +
+                    "copy into the output");
+            snpIdColumnOption.setRequired(false);
+            snpIdColumnOption.setArgs(1);
+            snpIdColumnOption.setArgName("column #");
+            options.addOption(snpIdColumnOption);
+        }
+        
+        final Option chromosomeColumnOption;
+        {
+            chromosomeColumnOption = new Option(
+                    "chrcol",
+                    "[optional] the chromosome column # (one-based index) " +
+                    "to copy into the output");
+            chromosomeColumnOption.setRequired(false);
+            chromosomeColumnOption.setArgs(1);
+            chromosomeColumnOption.setArgName("column #");
+            options.addOption(chromosomeColumnOption);
+        }
+        
+        final Option positionColumnOption;
+        {
+            positionColumnOption = new Option(
+                    "poscol",
+                    "[optional] the base pair position column # (one-based " +
+                    "index) to copy into the output");
+            positionColumnOption.setRequired(false);
+            positionColumnOption.setArgs(1);
+            positionColumnOption.setArgName("column #");
+            options.addOption(positionColumnOption);
+        }
+        
         try
         {
             commandLine = parser.parse(options, args);
@@ -520,9 +2034,18 @@ public class EMMAAssociationTest
                 final String fstGenoColStr = commandLine.getOptionValue(firstGenoColumnOption.getOpt());
                 final String lstGenoColStr = commandLine.getOptionValue(lastGenoColumnOption.getOpt());
                 final String phenoFileName = commandLine.getOptionValue(phenoFileOption.getOpt());
-                final String phenotype = commandLine.getOptionValue(phenoNameOption.getOpt());
+                final String[] phenotypes = commandLine.getOptionValues(phenoNameOption.getOpt());
+                final boolean allPhenos = commandLine.hasOption(allPhenosOption.getOpt());
                 final String sexStr = commandLine.getOptionValue(sexOption.getOpt());
                 final String outFileName = commandLine.getOptionValue(outputFileOption.getOpt());
+                final String kinshipCacheDir = commandLine.getOptionValue(kinshipCacheOption.getOpt());
+                final String chunkSizeStr = commandLine.getOptionValue(chunkSizeOption.getOpt());
+                final String scanModeStr = commandLine.getOptionValue(scanModeOption.getOpt());
+                final String outFormatStr = commandLine.getOptionValue(outFormatOption.getOpt());
+                final boolean gzip = commandLine.hasOption(gzipOption.getOpt());
+                final String snpIdColStr = commandLine.getOptionValue(snpIdColumnOption.getOpt());
+                final String chrColStr = commandLine.getOptionValue(chromosomeColumnOption.getOpt());
+                final String posColStr = commandLine.getOptionValue(positionColumnOption.getOpt());
                 
                 final SexFilter sexToScan;
                 if(sexStr == null || sexStr.toLowerCase().equals("agnostic"))
@@ -542,24 +2065,198 @@ public class EMMAAssociationTest
                     throw new ParseException("sex option cannot be: " + sexStr);
                 }
                 
+                final EMMAScanMode scanMode;
+                if(scanModeStr == null || scanModeStr.toLowerCase().equals("exact"))
+                {
+                    scanMode = EMMAScanMode.EXACT;
+                }
+                else if(scanModeStr.toLowerCase().equals("approximate"))
+                {
+                    scanMode = EMMAScanMode.APPROXIMATE;
+                }
+                else
+                {
+                    throw new ParseException("scan mode option cannot be: " + scanModeStr);
+                }
+                
+                final boolean binaryOutput;
+                if(outFormatStr == null || outFormatStr.toLowerCase().equals("csv"))
+                {
+                    binaryOutput = false;
+                }
+                else if(outFormatStr.toLowerCase().equals("binary"))
+                {
+                    binaryOutput = true;
+                    if(gzip)
+                    {
+                        throw new ParseException(
+                                "the gzip option can only be used with CSV output");
+                    }
+                }
+                else
+                {
+                    throw new ParseException("output format cannot be: " + outFormatStr);
+                }
+                
                 EMMAAssociationTest emmaTest = new EMMAAssociationTest();
-                double[] scanResults = emmaTest.emmaScan(
+                emmaTest.setScanMode(scanMode);
+                if(kinshipCacheDir != null)
+                {
+                    emmaTest.setKinshipCache(new KinshipCache(new File(kinshipCacheDir)));
+                }
+                final int aAlleleColumn = Integer.parseInt(aColStr.trim()) - 1;
+                final int bAlleleColumn = Integer.parseInt(bColStr.trim()) - 1;
+                final int firstGenoColumn = Integer.parseInt(fstGenoColStr.trim()) - 1;
+                final int lastGenoColumn =
+                    lstGenoColStr == null ? -1 : Integer.parseInt(lstGenoColStr.trim());
+                final int snpIdColumn =
+                    snpIdColStr == null ? -1 : Integer.parseInt(snpIdColStr.trim()) - 1;
+                final int chromosomeColumn =
+                    chrColStr == null ? -1 : Integer.parseInt(chrColStr.trim()) - 1;
+                final int positionColumn =
+                    posColStr == null ? -1 : Integer.parseInt(posColStr.trim()) - 1;
+                final FlatFileGenotypeReader genoReader = new FlatFileGenotypeReader(
                         genoFileName,
-                        Integer.parseInt(aColStr.trim()) - 1,
-                        Integer.parseInt(bColStr.trim()) - 1,
-                        Integer.parseInt(fstGenoColStr.trim()) - 1,
-                        lstGenoColStr == null ? -1 : Integer.parseInt(lstGenoColStr.trim()),
-                        phenoFileName,
-                        phenotype,
-                        sexToScan);
+                        aAlleleColumn,
+                        bAlleleColumn,
+                        firstGenoColumn,
+                        lastGenoColumn);
                 
-                PrintStream out = new PrintStream(outFileName);
-                out.println("pValue");
-                for(int i = 0; i < scanResults.length; i++)
+                final boolean batchMode =
+                    allPhenos || (phenotypes != null && phenotypes.length > 1);
+                if(chunkSizeStr != null)
+                {
+                    if(batchMode)
+                    {
+                        throw new ParseException(
+                                "the chunk size option can only be used when " +
+                                "scanning a single phenotype");
+                    }
+                    
+                    final int chunkSnpCount = Integer.parseInt(chunkSizeStr.trim());
+                    if(chunkSnpCount < 1)
+                    {
+                        throw new ParseException(
+                                "the chunk size must be positive but was: " +
+                                chunkSizeStr);
+                    }
+                    
+                    ScanResultWriter resultWriter = createResultWriter(
+                            outFileName,
+                            binaryOutput,
+                            gzip,
+                            new String[] {"pValue"},
+                            genoReader,
+                            snpIdColumn,
+                            chromosomeColumn,
+                            positionColumn);
+                    try
+                    {
+                        emmaTest.emmaScan(
+                                genoFileName,
+                                aAlleleColumn,
+                                bAlleleColumn,
+                                firstGenoColumn,
+                                lastGenoColumn,
+                                phenoFileName,
+                                phenotypes == null ? null : phenotypes[0],
+                                sexToScan,
+                                chunkSnpCount,
+                                resultWriter);
+                    }
+                    finally
+                    {
+                        resultWriter.close();
+                    }
+                }
+                else if(batchMode)
+                {
+                    // batch mode: one p-value column per phenotype
+                    final String[] phenotypesToScan;
+                    if(allPhenos)
+                    {
+                        FileInputStream phenoIn = new FileInputStream(phenoFileName);
+                        Set<String> availablePhenos;
+                        try
+                        {
+                            availablePhenos =
+                                new MPDIndividualStrainPhenotypeParser().parseAvailablePhenotypes(
+                                        phenoIn);
+                        }
+                        finally
+                        {
+                            phenoIn.close();
+                        }
+                        phenotypesToScan = availablePhenos.toArray(new String[0]);
+                        Arrays.sort(phenotypesToScan);
+                    }
+                    else
+                    {
+                        phenotypesToScan = phenotypes;
+                    }
+                    
+                    double[][] scanResults = emmaTest.emmaScan(
+                            genoFileName,
+                            aAlleleColumn,
+                            bAlleleColumn,
+                            firstGenoColumn,
+                            lastGenoColumn,
+                            phenoFileName,
+                            phenotypesToScan,
+                            sexToScan);
+                    
+                    ScanResultWriter resultWriter = createResultWriter(
+                            outFileName,
+                            binaryOutput,
+                            gzip,
+                            phenotypesToScan,
+                            genoReader,
+                            snpIdColumn,
+                            chromosomeColumn,
+                            positionColumn);
+                    try
+                    {
+                        int snpCount = phenotypesToScan.length == 0 ? 0 : scanResults[0].length;
+                        writeResults(scanResults, snpCount, resultWriter);
+                    }
+                    finally
+                    {
+                        resultWriter.close();
+                    }
+                }
+                else
                 {
-                    out.println(scanResults[i]);
+                    double[] scanResults = emmaTest.emmaScan(
+                            genoFileName,
+                            aAlleleColumn,
+                            bAlleleColumn,
+                            firstGenoColumn,
+                            lastGenoColumn,
+                            phenoFileName,
+                            phenotypes == null ? null : phenotypes[0],
+                            sexToScan);
+                    
+                    ScanResultWriter resultWriter = createResultWriter(
+                            outFileName,
+                            binaryOutput,
+                            gzip,
+                            new String[] {"pValue"},
+                            genoReader,
+                            snpIdColumn,
+                            chromosomeColumn,
+                            positionColumn);
+                    try
+                    {
+                        writeResults(
+                                new double[][] {scanResults},
+                                scanResults.length,
+                                resultWriter);
+                    }
+                    finally
+                    {
+                        resultWriter.close();
+                    }
                 }
-                out.close();
             }
         }
         catch(ParseException ex)
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.haplotype.analysis;
+
+/**
+ * how an {@link EMMAAssociationTest} handles the variance components of
+ * the mixed model
+ */
+public enum EMMAScanMode
+{
+    /**
+     * estimate the variance components separately for every SNP using the
+     * native EMMA library
+     */
+    EXACT
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            return "Exact (EMMA)";
+        }
+    },
+    
+    /**
+     * estimate the variance components once under the null model and test
+     * each SNP by generalized least squares (see {@link EMMAXScanner})
+     */
+    APPROXIMATE
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            return "Approximate (EMMAX)";
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+/**
+ * A fast approximation of the EMMA scan in the style of EMMAX. The ratio
+ * of the error and genetic variance components (delta) is estimated once
+ * by REML under the null model (intercept only) instead of once per SNP.
+ * The phenotypes and each SNP are then rotated by the eigenvectors of the
+ * kinship matrix scaled by 1 / sqrt(eigenvalue + delta) which decorrelates
+ * them, so each SNP only needs an ordinary two column least squares fit and
+ * a t-test with (strain count - 2) degrees of freedom. The null model is
+ * never changed after construction and {@link #scanSnps(double[], int)}
+ * allocates its own working storage so a single scanner can be shared by
+ * any number of threads.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class EMMAXScanner
+{
+    /**
+     * the number of intervals in the log(delta) grid searched for the
+     * REML estimate (the same defaults as the EMMA R package)
+     */
+    private static final int REML_GRID_INTERVAL_COUNT = 100;
+    
+    private static final double MIN_LOG_DELTA = -10.0;
+    
+    private static final double MAX_LOG_DELTA = 10.0;
+    
+    private static final double GOLDEN_SECTION_TOLERANCE = 1e-8;
+    
+    private static final double GOLDEN_RATIO_CONJUGATE = (Math.sqrt(5.0) - 1.0) / 2.0;
+    
+    private final int strainCount;
+    
+    private final double delta;
+    
+    /**
+     * flattened rotation matrix. row i is eigenvector i of the kinship
+     * matrix divided by sqrt(eigenvalue i + delta)
+     */
+    private final double[] rotation;
+    
+    private final double[] rotatedPhenotypes;
+    
+    private final double[] rotatedIntercept;
+    
+    private final double interceptDotIntercept;
+    
+    private final double interceptDotPhenotypes;
+    
+    private final double phenotypesDotPhenotypes;
+    
+    private final PValueCalculator pValueCalculator = new PValueCalculator();
+    
+    /**
+     * Constructor which fits the null model
+     * @param phenotypes
+     *          the phenotype value for each strain
+     * @param kinship
+     *          the flattened kinship matrix for the same strains
+     */
+    public EMMAXScanner(double[] phenotypes, double[] kinship)
+    {
+        final int n = phenotypes.length;
+        if(n < 3)
+        {
+            throw new IllegalArgumentException(
+                    "at least 3 strains are needed to scan but there are " + n);
+        }
+        else if(kinship.length != n * n)
+        {
+            throw new IllegalArgumentException(
+                    "expected a kinship matrix of length " + (n * n) +
+                    " but got " + kinship.length);
+        }
+        
+        this.strainCount = n;
+        this.delta = estimateNullDelta(phenotypes, kinship);
+        
+        SymmetricEigenDecomposition kinshipEigen =
+            new SymmetricEigenDecomposition(kinship, n);
+        double[] eigenvalues = kinshipEigen.getEigenvalues();
+        double[] eigenvectors = kinshipEigen.getEigenvectors();
+        this.rotation = new double[n * n];
+        for(int i = 0; i < n; i++)
+        {
+            // kinship is positive semi-definite so anything below zero is
+            // rounding error
+            double scale = 1.0 / Math.sqrt(Math.max(eigenvalues[i], 0.0) + this.delta);
+            for(int j = 0; j < n; j++)
+            {
+                this.rotation[i * n + j] = eigenvectors[j * n + i] * scale;
+            }
+        }
+        
+        double[] intercept = new double[n];
+        for(int i = 0; i < n; i++)
+        {
+            intercept[i] = 1.0;
+        }
+        this.rotatedIntercept = this.rotate(intercept, new double[n]);
+        this.rotatedPhenotypes = this.rotate(phenotypes, new double[n]);
+        this.interceptDotIntercept = dot(this.rotatedIntercept, this.rotatedIntercept);
+        this.interceptDotPhenotypes = dot(this.rotatedIntercept, this.rotatedPhenotypes);
+        this.phenotypesDotPhenotypes = dot(this.rotatedPhenotypes, this.rotatedPhenotypes);
+    }
+    
+    /**
+     * Get the REML estimate of the ratio of error variance to genetic
+     * variance under the null model
+     * @return
+     *          delta
+     */
+    public double getDelta()
+    {
+        return this.delta;
+    }
+    
+    /**
+     * Getter for the strain count
+     * @return the strainCount
+     */
+    public int getStrainCount()
+    {
+        return this.strainCount;
+    }
+    
+    /**
+     * Test the given SNPs
+     * @param genos
+     *          the flattened SNP-major genotype matrix (1.0 for A, 0.0 for
+     *          B, 0.5 for H and NaN for no call). Missing calls are
+     *          replaced by the SNP's mean call
+     * @param snpCount
+     *          the number of SNPs to test starting with the 1st row
+     * @return
+     *          the p-values. SNPs with no variation have a p-value of NaN
+     */
+    public double[] scanSnps(double[] genos, int snpCount)
+    {
+        double[] pValues = new double[snpCount];
+        final int n = this.strainCount;
+        final double[] snpCalls = new double[n];
+        final double[] rotatedCalls = new double[n];
+        for(int snpIndex = 0; snpIndex < snpCount; snpIndex++)
+        {
+            // mean impute missing calls
+            final int rowOffset = snpIndex * n;
+            double callSum = 0.0;
+            int callCount = 0;
+            for(int i = 0; i < n; i++)
+            {
+                double currCall = genos[rowOffset + i];
+                if(!Double.isNaN(currCall))
+                {
+                    callSum += currCall;
+                    callCount++;
+                }
+            }
+            
+            if(callCount == 0)
+            {
+                pValues[snpIndex] = Double.NaN;
+                continue;
+            }
+            
+            double meanCall = callSum / callCount;
+            for(int i = 0; i < n; i++)
+            {
+                double currCall = genos[rowOffset + i];
+                snpCalls[i] = Double.isNaN(currCall) ? meanCall : currCall;
+            }
+            
+            this.rotate(snpCalls, rotatedCalls);
+            pValues[snpIndex] = this.tTest(rotatedCalls);
+        }
+        
+        return pValues;
+    }
+    
+    /**
+     * Least squares fit of the rotated phenotypes on the rotated intercept
+     * and SNP followed by a two sided t-test on the SNP coefficient
+     */
+    private double tTest(double[] rotatedCalls)
+    {
+        final double cc = this.interceptDotIntercept;
+        final double cy = this.interceptDotPhenotypes;
+        final double yy = this.phenotypesDotPhenotypes;
+        final double cx = dot(this.rotatedIntercept, rotatedCalls);
+        final double xx = dot(rotatedCalls, rotatedCalls);
+        final double xy = dot(rotatedCalls, this.rotatedPhenotypes);
+        
+        final double determinant = cc * xx - cx * cx;
+        if(!(determinant > 1e-12 * cc * xx))
+        {
+            // the SNP is (numerically) collinear with the intercept
+            return Double.NaN;
+        }
+        
+        final double snpCoefficient = (cc * xy - cx * cy) / determinant;
+        final double interceptCoefficient = (xx * cy - cx * xy) / determinant;
+        final double residualSumOfSquares = Math.max(
+                0.0,
+                yy - interceptCoefficient * cy - snpCoefficient * xy);
+        final double residualVariance = residualSumOfSquares / (this.strainCount - 2);
+        final double standardError = Math.sqrt(residualVariance * cc / determinant);
+        final double t = snpCoefficient / standardError;
+        return this.pValueCalculator.studentTPValue(t, this.strainCount - 2);
+    }
+    
+    /**
+     * multiply the given vector by the rotation matrix
+     */
+    private double[] rotate(double[] vector, double[] rotatedVector)
+    {
+        final int n = this.strainCount;
+        final double[] rotation = this.rotation;
+        for(int i = 0; i < n; i++)
+        {
+            final int rowOffset = i * n;
+            double sum = 0.0;
+            for(int j = 0; j < n; j++)
+            {
+                sum += rotation[rowOffset + j] * vector[j];
+            }
+            rotatedVector[i] = sum;
+        }
+        
+        return rotatedVector;
+    }
+    
+    private static double dot(double[] a, double[] b)
+    {
+        double sum = 0.0;
+        for(int i = 0; i < a.length; i++)
+        {
+            sum += a[i] * b[i];
+        }
+        
+        return sum;
+    }
+    
+    /**
+     * REML estimate of delta for the intercept only model following EMMA:
+     * the eigen decomposition of S(K + I)S (where S projects out the
+     * intercept) gives the n - 1 eigenvalues and vectors needed to
+     * evaluate the restricted likelihood cheaply for any delta. A grid over
+     * log(delta) is searched and the best grid point is refined with a
+     * golden section search
+     */
+    private static double estimateNullDelta(double[] phenotypes, double[] kinship)
+    {
+        final int n = phenotypes.length;
+        
+        // build S(K + I)S where S = I - J/n
+        double[] rowMeans = new double[n];
+        double grandMean = 0.0;
+        for(int i = 0; i < n; i++)
+        {
+            double rowSum = 1.0;
+            for(int j = 0; j < n; j++)
+            {
+                rowSum += kinship[i * n + j];
+            }
+            rowMeans[i] = rowSum / n;
+            grandMean += rowMeans[i];
+        }
+        grandMean /= n;
+        
+        double[] projected = new double[n * n];
+        for(int i = 0; i < n; i++)
+        {
+            for(int j = 0; j < n; j++)
+            {
+                double kPlusI = kinship[i * n + j] + (i == j ? 1.0 : 0.0);
+                projected[i * n + j] = kPlusI - rowMeans[i] - rowMeans[j] + grandMean;
+            }
+        }
+        
+        // the smallest eigenvalue belongs to the intercept so drop it and
+        // undo the +I shift for the rest
+        SymmetricEigenDecomposition eigen = new SymmetricEigenDecomposition(projected, n);
+        double[] eigenvalues = eigen.getEigenvalues();
+        double[] eigenvectors = eigen.getEigenvectors();
+        final int restrictedCount = n - 1;
+        double[] lambdas = new double[restrictedCount];
+        double[] etaSquares = new double[restrictedCount];
+        for(int k = 0; k < restrictedCount; k++)
+        {
+            int eigenIndex = k + 1;
+            lambdas[k] = eigenvalues[eigenIndex] - 1.0;
+            double eta = 0.0;
+            for(int i = 0; i < n; i++)
+            {
+                eta += eigenvectors[i * n + eigenIndex] * phenotypes[i];
+            }
+            etaSquares[k] = eta * eta;
+        }
+        
+        // grid search
+        double bestLogDelta = MIN_LOG_DELTA;
+        double bestLogLikelihood = Double.NEGATIVE_INFINITY;
+        int bestGridIndex = 0;
+        final double gridStep = (MAX_LOG_DELTA - MIN_LOG_DELTA) / REML_GRID_INTERVAL_COUNT;
+        for(int gridIndex = 0; gridIndex <= REML_GRID_INTERVAL_COUNT; gridIndex++)
+        {
+            double logDelta = MIN_LOG_DELTA + gridIndex * gridStep;
+            double logLikelihood = restrictedLogLikelihood(logDelta, lambdas, etaSquares);
+            if(logLikelihood > bestLogLikelihood)
+            {
+                bestLogLikelihood = logLikelihood;
+                bestLogDelta = logDelta;
+                bestGridIndex = gridIndex;
+            }
+        }
+        
+        // golden section refinement between the neighboring grid points
+        double lower = MIN_LOG_DELTA + Math.max(0, bestGridIndex - 1) * gridStep;
+        double upper = MIN_LOG_DELTA +
+            Math.min(REML_GRID_INTERVAL_COUNT, bestGridIndex + 1) * gridStep;
+        double x1 = upper - GOLDEN_RATIO_CONJUGATE * (upper - lower);
+        double x2 = lower + GOLDEN_RATIO_CONJUGATE * (upper - lower);
+        double f1 = restrictedLogLikelihood(x1, lambdas, etaSquares);
+        double f2 = restrictedLogLikelihood(x2, lambdas, etaSquares);
+        while(upper - lower > GOLDEN_SECTION_TOLERANCE)
+        {
+            if(f1 < f2)
+            {
+                lower = x1;
+                x1 = x2;
+                f1 = f2;
+                x2 = lower + GOLDEN_RATIO_CONJUGATE * (upper - lower);
+                f2 = restrictedLogLikelihood(x2, lambdas, etaSquares);
+            }
+            else
+            {
+                upper = x2;
+                x2 = x1;
+                f2 = f1;
+                x1 = upper - GOLDEN_RATIO_CONJUGATE * (upper - lower);
+                f1 = restrictedLogLikelihood(x1, lambdas, etaSquares);
+            }
+        }
+        
+        double refinedLogDelta = (lower + upper) / 2.0;
+        if(restrictedLogLikelihood(refinedLogDelta, lambdas, etaSquares) >= bestLogLikelihood)
+        {
+            bestLogDelta = refinedLogDelta;
+        }
+        
+        return Math.exp(bestLogDelta);
+    }
+    
+    /**
+     * The restricted log likelihood for the given log(delta)
+     */
+    private static double restrictedLogLikelihood(
+            double logDelta,
+            double[] lambdas,
+            double[] etaSquares)
+    {
+        final double delta = Math.exp(logDelta);
+        final int restrictedCount = lambdas.length;
+        double weightedEtaSum = 0.0;
+        double logSum = 0.0;
+        for(int k = 0; k < restrictedCount; k++)
+        {
+            double lambdaPlusDelta = lambdas[k] + delta;
+            if(!(lambdaPlusDelta > 0.0))
+            {
+                return Double.NEGATIVE_INFINITY;
+            }
+            weightedEtaSum += etaSquares[k] / lambdaPlusDelta;
+            logSum += Math.log(lambdaPlusDelta);
+        }
+        
+        return 0.5 * (restrictedCount * (Math.log(restrictedCount / (2.0 * Math.PI)) -
+                                         1.0 -
+                                         Math.log(weightedEtaSum)) -
+                      logSum);
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jax.util.io.CommonFlatFileFormat;
+import org.jax.util.io.FlatFileReader;
+import org.jax.util.io.IllegalFormatException;
+
+/**
+ * Reads the SNP genotype calls in a flat (CSV) genotype file into a single
+ * packed SNP-major call matrix (or a chunk of SNPs at a time, see
+ * {@link #openChunkReader(int[])}). The number of rows is counted with a
+ * cheap pass over the raw bytes first so that the matrix is allocated once
+ * at its final size and no per-SNP arrays are created.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class FlatFileGenotypeReader
+{
+    private static final int LINE_COUNT_BUFFER_SIZE = 64 * 1024;
+    
+    private final String genoFileName;
+    
+    private final int aAlleleColumn;
+    
+    private final int bAlleleColumn;
+    
+    private final int firstGenotypeColumn;
+    
+    private final int lastGenotypeColumnExclusive;
+    
+    private String[] headerRow = null;
+    
+    /**
+     * Constructor
+     * @param genoFileName
+     *          the genotype file
+     * @param aAlleleColumn
+     *          the column index for the A allele
+     * @param bAlleleColumn
+     *          the column index for the B allele
+     * @param firstGenotypeColumn
+     *          the 1st genotype column
+     * @param lastGenotypeColumnExclusive
+     *          the index after the last genotype column. You can use -1 to indicate that
+     *          all of the remaining columns after firstGenotypeColumn are
+     *          genotype columns
+     */
+    public FlatFileGenotypeReader(
+            String genoFileName,
+            int aAlleleColumn,
+            int bAlleleColumn,
+            int firstGenotypeColumn,
+            int lastGenotypeColumnExclusive)
+    {
+        this.genoFileName = genoFileName;
+        this.aAlleleColumn = aAlleleColumn;
+        this.bAlleleColumn = bAlleleColumn;
+        this.firstGenotypeColumn = firstGenotypeColumn;
+        this.lastGenotypeColumnExclusive = lastGenotypeColumnExclusive;
+    }
+    
+    /**
+     * Getter for the genotype file name
+     * @return the genoFileName
+     */
+    public String getGenoFileName()
+    {
+        return this.genoFileName;
+    }
+    
+    /**
+     * Get the full header row of the genotype file
+     * @return
+     *          the header row
+     * @throws IllegalFormatException
+     *          if the header can't be read
+     * @throws IOException
+     *          if there is a problem with file IO
+     */
+    public String[] getHeaderRow() throws IllegalFormatException, IOException
+    {
+        if(this.headerRow == null)
+        {
+            FileReader fileReader = new FileReader(this.genoFileName);
+            try
+            {
+                FlatFileReader genoFFR = new FlatFileReader(
+                        fileReader,
+                        CommonFlatFileFormat.CSV_UNIX);
+                this.headerRow = this.readHeader(genoFFR);
+            }
+            finally
+            {
+                fileReader.close();
+            }
+        }
+        
+        return this.headerRow;
+    }
+    
+    /**
+     * Get the strain names from the genotype columns of the header
+     * @return
+     *          the header strains
+     * @throws IllegalFormatException
+     *          if the header can't be read
+     * @throws IOException
+     *          if there is a problem with file IO
+     */
+    public String[] getHeaderStrains() throws IllegalFormatException, IOException
+    {
+        String[] header = this.getHeaderRow();
+        int lastColumnExclusive = this.lastGenotypeColumnExclusive == -1 ?
+                header.length :
+                this.lastGenotypeColumnExclusive;
+        String[] headerStrains = new String[lastColumnExclusive - this.firstGenotypeColumn];
+        for(int i = 0; i < headerStrains.length; i++)
+        {
+            headerStrains[i] = header[i + this.firstGenotypeColumn];
+        }
+        
+        return headerStrains;
+    }
+    
+    /**
+     * Read the genotype calls for the given strain columns into a 2-bit
+     * packed matrix. Calls are A, B, H or no call as decoded by
+     * {@link GenotypeCallCodec}
+     * @param strainColumns
+     *          the genotype columns to read (in the order that they should
+     *          appear in the matrix)
+     * @return
+     *          the packed call matrix
+     * @throws IllegalFormatException
+     *          if there is a problem with how with how the file is formatted
+     * @throws IOException
+     *          if there is a problem with file IO while reading the flat file
+     */
+    public PackedGenotypeMatrix readPackedCalls(int[] strainColumns)
+    throws IllegalFormatException, IOException
+    {
+        final int strainCount = strainColumns.length;
+        PackedGenotypeMatrix packedCalls = new PackedGenotypeMatrix(
+                strainCount,
+                this.countDataRows());
+        
+        FileReader fileReader = new FileReader(this.genoFileName);
+        try
+        {
+            FlatFileReader genoFFR = new FlatFileReader(
+                    fileReader,
+                    CommonFlatFileFormat.CSV_UNIX);
+            this.readHeader(genoFFR);
+            
+            GenotypeCallCodec codec = new GenotypeCallCodec();
+            byte[] snpCallCodes = new byte[strainCount];
+            String[] currRow;
+            while((currRow = genoFFR.readRow()) != null)
+            {
+                codec.setAlleles(
+                        currRow[this.aAlleleColumn],
+                        currRow[this.bAlleleColumn]);
+                for(int strainIndex = 0; strainIndex < strainCount; strainIndex++)
+                {
+                    snpCallCodes[strainIndex] = codec.toCallCode(
+                            currRow[strainColumns[strainIndex]]);
+                }
+                packedCalls.addSnp(snpCallCodes);
+            }
+        }
+        finally
+        {
+            fileReader.close();
+        }
+        
+        // only does anything if the line count was off
+        packedCalls.trimToSize();
+        
+        return packedCalls;
+    }
+    
+    /**
+     * Open a reader that returns the genotype calls for the given strain
+     * columns a chunk of SNPs at a time so that the full matrix never
+     * needs to be held in memory
+     * @see #readPackedCalls(int[])
+     * @param strainColumns
+     *          the genotype columns to read (in the order that they should
+     *          appear in each chunk)
+     * @return
+     *          the chunk reader which must be closed by the caller
+     * @throws IllegalFormatException
+     *          if the header can't be read
+     * @throws IOException
+     *          if there is a problem with file IO
+     */
+    public ChunkReader openChunkReader(int[] strainColumns)
+    throws IllegalFormatException, IOException
+    {
+        return new ChunkReader(strainColumns);
+    }
+    
+    /**
+     * Reads SNP-major genotype calls a chunk of rows at a time into a
+     * caller supplied array
+     */
+    public class ChunkReader
+    {
+        private final int[] strainColumns;
+        
+        private final FileReader fileReader;
+        
+        private final FlatFileReader genoFFR;
+        
+        private final GenotypeCallCodec codec = new GenotypeCallCodec();
+        
+        private ChunkReader(int[] strainColumns)
+        throws IllegalFormatException, IOException
+        {
+            this.strainColumns = strainColumns;
+            this.fileReader = new FileReader(FlatFileGenotypeReader.this.genoFileName);
+            boolean opened = false;
+            try
+            {
+                this.genoFFR = new FlatFileReader(
+                        this.fileReader,
+                        CommonFlatFileFormat.CSV_UNIX);
+                FlatFileGenotypeReader.this.readHeader(this.genoFFR);
+                opened = true;
+            }
+            finally
+            {
+                if(!opened)
+                {
+                    this.fileReader.close();
+                }
+            }
+        }
+        
+        /**
+         * Read the next chunk of SNPs
+         * @param callValues
+         *          the flattened SNP-major array to read into. Its length
+         *          must be a multiple of the strain column count and the
+         *          chunk size is its length divided by the strain column
+         *          count
+         * @return
+         *          the number of SNP rows read which is only less than the
+         *          chunk size at the end of the file
+         * @throws IllegalFormatException
+         *          if there is a problem with how the file is formatted
+         * @throws IOException
+         *          if there is a problem with file IO
+         */
+        public int readChunk(double[] callValues)
+        throws IllegalFormatException, IOException
+        {
+            final int[] strainColumns = this.strainColumns;
+            final int strainCount = strainColumns.length;
+            final int aAlleleColumn = FlatFileGenotypeReader.this.aAlleleColumn;
+            final int bAlleleColumn = FlatFileGenotypeReader.this.bAlleleColumn;
+            final int chunkSnpCapacity = callValues.length / strainCount;
+            
+            int snpCount = 0;
+            String[] currRow;
+            while(snpCount < chunkSnpCapacity &&
+                  (currRow = this.genoFFR.readRow()) != null)
+            {
+                this.codec.setAlleles(
+                        currRow[aAlleleColumn],
+                        currRow[bAlleleColumn]);
+                int rowOffset = snpCount * strainCount;
+                for(int strainIndex = 0; strainIndex < strainCount; strainIndex++)
+                {
+                    callValues[rowOffset + strainIndex] = this.codec.toCallValue(
+                            currRow[strainColumns[strainIndex]]);
+                }
+                snpCount++;
+            }
+            
+            return snpCount;
+        }
+        
+        /**
+         * Close the underlying file
+         * @throws IOException
+         *          if the close fails
+         */
+        public void close() throws IOException
+        {
+            this.fileReader.close();
+        }
+    }
+    
+    /**
+     * Open a reader for the SNP identifying columns of the genotype file.
+     * The SNPs are returned in the same order that the scans return
+     * p-values so result writers can read the identifiers in step with the
+     * results
+     * @param snpIdColumn
+     *          the SNP ID column or -1 if there isn't one
+     * @param chromosomeColumn
+     *          the chromosome column or -1 if there isn't one
+     * @param positionColumn
+     *          the base pair position column or -1 if there isn't one
+     * @return
+     *          the reader which must be closed by the caller
+     * @throws IllegalFormatException
+     *          if the header can't be read
+     * @throws IOException
+     *          if there is a problem with file IO
+     */
+    public SnpIdentifierReader openSnpIdentifierReader(
+            int snpIdColumn,
+            int chromosomeColumn,
+            int positionColumn)
+    throws IllegalFormatException, IOException
+    {
+        return new SnpIdentifierReader(snpIdColumn, chromosomeColumn, positionColumn);
+    }
+    
+    /**
+     * Reads the identifying columns of the genotype file a block of SNPs at
+     * a time
+     */
+    public class SnpIdentifierReader
+    {
+        private final int snpIdColumn;
+        
+        private final int chromosomeColumn;
+        
+        private final int positionColumn;
+        
+        private final FileReader fileReader;
+        
+        private final FlatFileReader genoFFR;
+        
+        private SnpIdentifierReader(
+                int snpIdColumn,
+                int chromosomeColumn,
+                int positionColumn)
+        throws IllegalFormatException, IOException
+        {
+            this.snpIdColumn = snpIdColumn;
+            this.chromosomeColumn = chromosomeColumn;
+            this.positionColumn = positionColumn;
+            this.fileReader = new FileReader(FlatFileGenotypeReader.this.genoFileName);
+            boolean opened = false;
+            try
+            {
+                this.genoFFR = new FlatFileReader(
+                        this.fileReader,
+                        CommonFlatFileFormat.CSV_UNIX);
+                FlatFileGenotypeReader.this.readHeader(this.genoFFR);
+                opened = true;
+            }
+            finally
+            {
+                if(!opened)
+                {
+                    this.fileReader.close();
+                }
+            }
+        }
+        
+        /**
+         * Create a holder with room for the given number of SNPs and with
+         * the columns that this reader reads
+         * @param capacity
+         *          the capacity
+         * @return
+         *          the holder
+         */
+        public SnpIdentifiers createSnpIdentifiers(int capacity)
+        {
+            return new SnpIdentifiers(
+                    capacity,
+                    this.snpIdColumn != -1,
+                    this.chromosomeColumn != -1,
+                    this.positionColumn != -1);
+        }
+        
+        /**
+         * Read the identifiers for the next SNPs
+         * @param snpIdentifiers
+         *          the holder to read into (see
+         *          {@link #createSnpIdentifiers(int)}). its SNP count is
+         *          set to the number of SNPs read
+         * @param snpCount
+         *          the number of SNPs to read
+         * @throws IOException
+         *          if there is a problem with file IO, if the file has
+         *          fewer than snpCount remaining SNPs or if a position
+         *          isn't a number
+         */
+        public void read(SnpIdentifiers snpIdentifiers, int snpCount) throws IOException
+        {
+            String[] snpIds = snpIdentifiers.getSnpIds();
+            String[] chromosomes = snpIdentifiers.getChromosomes();
+            long[] positions = snpIdentifiers.getPositions();
+            for(int i = 0; i < snpCount; i++)
+            {
+                String[] currRow = this.genoFFR.readRow();
+                if(currRow == null)
+                {
+                    throw new IOException(
+                            "the genotype file ended before the SNP " +
+                            "identifiers for all of the results were read");
+                }
+                
+                if(snpIds != null)
+                {
+                    snpIds[i] = currRow[this.snpIdColumn];
+                }
+                
+                if(chromosomes != null)
+                {
+                    chromosomes[i] = currRow[this.chromosomeColumn];
+                }
+                
+                if(positions != null)
+                {
+                    String positionString = currRow[this.positionColumn].trim();
+                    try
+                    {
+                        positions[i] = positionString.length() == 0 ?
+                                -1L :
+                                Long.parseLong(positionString);
+                    }
+                    catch(NumberFormatException ex)
+                    {
+                        throw new IOException(
+                                "bad SNP position: \"" + positionString + "\"");
+                    }
+                }
+            }
+            
+            snpIdentifiers.setSnpCount(snpCount);
+        }
+        
+        /**
+         * Close the underlying file
+         * @throws IOException
+         *          if the close fails
+         */
+        public void close() throws IOException
+        {
+            this.fileReader.close();
+        }
+    }
+    
+    /**
+     * Read the header row using the given reader
+     */
+    private String[] readHeader(FlatFileReader genoFFR)
+    throws IllegalFormatException, IOException
+    {
+        String[] header = genoFFR.readRow();
+        if(header == null)
+        {
+            throw new IllegalFormatException("Failed to read the header");
+        }
+        
+        return header;
+    }
+    
+    /**
+     * Count the data rows (excluding the header) by scanning for line
+     * terminators in the raw bytes
+     */
+    private int countDataRows() throws IOException
+    {
+        InputStream in = new BufferedInputStream(
+                new FileInputStream(this.genoFileName),
+                LINE_COUNT_BUFFER_SIZE);
+        try
+        {
+            byte[] buffer = new byte[LINE_COUNT_BUFFER_SIZE];
+            int lineCount = 0;
+            int lastByte = '\n';
+            int bytesRead;
+            while((bytesRead = in.read(buffer)) != -1)
+            {
+                for(int i = 0; i < bytesRead; i++)
+                {
+                    if(buffer[i] == '\n')
+                    {
+                        lineCount++;
+                    }
+                }
+                
+                if(bytesRead > 0)
+                {
+                    lastByte = buffer[bytesRead - 1];
+                }
+            }
+            
+            if(lastByte != '\n')
+            {
+                // the last line has no terminator
+                lineCount++;
+            }
+            
+            // don't count the header
+            return Math.max(0, lineCount - 1);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
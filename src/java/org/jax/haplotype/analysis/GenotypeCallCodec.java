@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+/**
+ * Converts flat file genotype calls into byte call codes. The A and B
+ * alleles are resolved once per SNP row with {@link #setAlleles(String, String)}
+ * after which every genotype cell in the row is classified by comparing
+ * its raw characters through a case folding table, so no strings are
+ * allocated per cell. Instances hold per-row state and should not be
+ * shared between threads.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class GenotypeCallCodec
+{
+    /**
+     * call code for a genotype matching the A allele
+     */
+    public static final byte A_CALL = 0;
+    
+    /**
+     * call code for a genotype matching the B allele
+     */
+    public static final byte B_CALL = 1;
+    
+    /**
+     * call code for a heterozygous genotype
+     */
+    public static final byte H_CALL = 2;
+    
+    /**
+     * call code for a missing or unrecognized genotype
+     */
+    public static final byte N_CALL = 3;
+    
+    /**
+     * the numeric value used by EMMA for each call code (indexed by code)
+     */
+    private static final double[] CALL_VALUES = {1.0, 0.0, 0.5, Double.NaN};
+    
+    private static final char[] ASCII_UPPER_CASE = new char[128];
+    static
+    {
+        for(char c = 0; c < ASCII_UPPER_CASE.length; c++)
+        {
+            ASCII_UPPER_CASE[c] = Character.toUpperCase(c);
+        }
+    }
+    
+    private char[] aAllele = new char[4];
+    private int aAlleleLength = 0;
+    
+    private char[] bAllele = new char[4];
+    private int bAlleleLength = 0;
+    
+    /**
+     * Set the alleles for the current SNP row
+     * @param aAllele
+     *          the A allele
+     * @param bAllele
+     *          the B allele
+     */
+    public void setAlleles(String aAllele, String bAllele)
+    {
+        this.aAlleleLength = aAllele.length();
+        if(this.aAllele.length < this.aAlleleLength)
+        {
+            this.aAllele = new char[this.aAlleleLength];
+        }
+        for(int i = 0; i < this.aAlleleLength; i++)
+        {
+            this.aAllele[i] = toUpperCase(aAllele.charAt(i));
+        }
+        
+        this.bAlleleLength = bAllele.length();
+        if(this.bAllele.length < this.bAlleleLength)
+        {
+            this.bAllele = new char[this.bAlleleLength];
+        }
+        for(int i = 0; i < this.bAlleleLength; i++)
+        {
+            this.bAllele[i] = toUpperCase(bAllele.charAt(i));
+        }
+    }
+    
+    /**
+     * Get the call code for the given genotype using the alleles from the
+     * last call to {@link #setAlleles(String, String)}. Matching is case
+     * insensitive. Anything that isn't A, B, "H" or "HH" is treated as
+     * a no call
+     * @param genoCall
+     *          the genotype call
+     * @return
+     *          one of {@link #A_CALL}, {@link #B_CALL}, {@link #H_CALL} or
+     *          {@link #N_CALL}
+     */
+    public byte toCallCode(String genoCall)
+    {
+        final int length = genoCall.length();
+        if(matches(genoCall, length, this.aAllele, this.aAlleleLength))
+        {
+            return A_CALL;
+        }
+        else if(matches(genoCall, length, this.bAllele, this.bAlleleLength))
+        {
+            return B_CALL;
+        }
+        else if((length == 1 || length == 2) &&
+                toUpperCase(genoCall.charAt(0)) == 'H' &&
+                (length == 1 || toUpperCase(genoCall.charAt(1)) == 'H'))
+        {
+            return H_CALL;
+        }
+        else
+        {
+            // this includes "", "N", "NN", "-" and anything we don't
+            // recognize
+            return N_CALL;
+        }
+    }
+    
+    /**
+     * Get the EMMA call value for the given genotype using the alleles from
+     * the last call to {@link #setAlleles(String, String)}
+     * @param genoCall
+     *          the genotype call
+     * @return
+     *          1.0 for A, 0.0 for B, 0.5 for H and NaN for no call
+     */
+    public double toCallValue(String genoCall)
+    {
+        return CALL_VALUES[this.toCallCode(genoCall)];
+    }
+    
+    /**
+     * Get the EMMA call value for the given call code
+     * @param callCode
+     *          the call code
+     * @return
+     *          1.0 for A, 0.0 for B, 0.5 for H and NaN for no call
+     */
+    public static double toCallValue(byte callCode)
+    {
+        return CALL_VALUES[callCode];
+    }
+    
+    private static boolean matches(
+            String genoCall,
+            int genoCallLength,
+            char[] allele,
+            int alleleLength)
+    {
+        if(genoCallLength != alleleLength)
+        {
+            return false;
+        }
+        
+        for(int i = 0; i < alleleLength; i++)
+        {
+            if(toUpperCase(genoCall.charAt(i)) != allele[i])
+            {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static char toUpperCase(char c)
+    {
+        return c < ASCII_UPPER_CASE.length ?
+               ASCII_UPPER_CASE[c] :
+               Character.toUpperCase(c);
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.haplotype.data.ChromosomeDataSource;
+import org.jax.haplotype.data.GenomeDataSource;
+import org.jax.haplotype.io.SdpInputStream;
+
+/**
+ * An on-disk store for kinship matrices. Matrices are keyed on a
+ * fingerprint of the genotype data that they were calculated from along
+ * with the sorted list of strains, so a kinship matrix only needs to be
+ * calculated once no matter how many phenotypes are scanned against the
+ * same genotypes. Fingerprints are built from cheap metadata unless
+ * {@link #setVerifyGenotypes(boolean)} is turned on.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class KinshipCache
+{
+    private static final Logger LOG = Logger.getLogger(
+            KinshipCache.class.getName());
+    
+    private static final String CACHE_FILE_PREFIX = "kinship-";
+    
+    private static final String CACHE_FILE_EXTENSION = ".kin";
+    
+    private static final int CACHE_FILE_MAGIC_NUMBER = 0x4B494E31;
+    
+    /**
+     * part of every cache key. This must be incremented whenever a change to
+     * one of the kinship calculators changes the matrices that it produces
+     * so that matrices calculated the old way are never reused
+     */
+    private static final int KINSHIP_ALGORITHM_VERSION = 3;
+    
+    protected static final String CONCATINATION_STRING = "&";
+    
+    private final File cacheDirectory;
+    
+    private volatile boolean verifyGenotypes = false;
+    
+    /**
+     * Constructor
+     * @param cacheDirectory
+     *          the directory to store kinship matrices in. It will be
+     *          created if it doesn't exist yet
+     */
+    public KinshipCache(File cacheDirectory)
+    {
+        this.cacheDirectory = cacheDirectory;
+    }
+    
+    /**
+     * Getter for the cache directory
+     * @return the cacheDirectory
+     */
+    public File getCacheDirectory()
+    {
+        return this.cacheDirectory;
+    }
+    
+    /**
+     * Determines if the genotype fingerprints include a digest of every
+     * SDP. See {@link #setVerifyGenotypes(boolean)}
+     * @return the verifyGenotypes flag
+     */
+    public boolean isVerifyGenotypes()
+    {
+        return this.verifyGenotypes;
+    }
+    
+    /**
+     * Setter for the verify genotypes flag. By default genotype data is
+     * fingerprinted using only its strains and SNP counts which doesn't
+     * read any SDPs. Turning this on adds a digest of every SDP to the
+     * fingerprint so that two genotype builds with the same strains and
+     * SNP counts never share cached matrices. The cost is a full pass over
+     * the SDPs for every lookup
+     * @param verifyGenotypes
+     *          the verifyGenotypes flag
+     */
+    public void setVerifyGenotypes(boolean verifyGenotypes)
+    {
+        this.verifyGenotypes = verifyGenotypes;
+    }
+    
+    /**
+     * Get the fingerprint to use as a cache key for the given genome. This
+     * is {@link #fingerprint(GenomeDataSource)} plus a digest of the SDPs
+     * if {@link #isVerifyGenotypes()} is set
+     * @param genomeDataSource
+     *          the genome
+     * @return
+     *          the fingerprint
+     * @throws IOException
+     *          if we fail to read the genome
+     */
+    public String getGenotypeFingerprint(GenomeDataSource genomeDataSource)
+    throws IOException
+    {
+        String fingerprint = fingerprint(genomeDataSource);
+        if(this.verifyGenotypes)
+        {
+            String[] sortedStrains = toSortedStrains(
+                    genomeDataSource.getAvailableStrains());
+            MessageDigest digest = newMD5Digest();
+            Map<Integer, ? extends ChromosomeDataSource> chromosomeDataSources =
+                genomeDataSource.getChromosomeDataSources();
+            for(Integer chromosomeNumber: toSortedChromosomeNumbers(chromosomeDataSources))
+            {
+                updateDigest(
+                        digest,
+                        chromosomeDataSources.get(chromosomeNumber),
+                        sortedStrains);
+            }
+            fingerprint += CONCATINATION_STRING + toHex(digest.digest());
+        }
+        
+        return fingerprint;
+    }
+    
+    /**
+     * Get the fingerprint to use as a cache key for the given chromosome.
+     * This is {@link #fingerprint(ChromosomeDataSource)} plus a digest of
+     * the SDPs if {@link #isVerifyGenotypes()} is set
+     * @param chrDataSource
+     *          the chromosome
+     * @return
+     *          the fingerprint
+     * @throws IOException
+     *          if we fail to read the chromosome
+     */
+    public String getGenotypeFingerprint(ChromosomeDataSource chrDataSource)
+    throws IOException
+    {
+        String fingerprint = fingerprint(chrDataSource);
+        if(this.verifyGenotypes)
+        {
+            MessageDigest digest = newMD5Digest();
+            updateDigest(
+                    digest,
+                    chrDataSource,
+                    toSortedStrains(chrDataSource.getAvailableStrains()));
+            fingerprint += CONCATINATION_STRING + toHex(digest.digest());
+        }
+        
+        return fingerprint;
+    }
+    
+    /**
+     * Get the cached kinship matrix
+     * @param genotypeFingerprint
+     *          the fingerprint of the genotype data
+     * @param sortedStrains
+     *          the sorted strains that the kinship covers
+     * @return
+     *          the flattened kinship matrix or null if it isn't cached
+     */
+    public synchronized double[] getKinship(
+            String genotypeFingerprint,
+            String[] sortedStrains)
+    {
+        File cacheFile = this.getCacheFile(genotypeFingerprint, sortedStrains);
+        if(!cacheFile.isFile())
+        {
+            return null;
+        }
+        
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(cacheFile)));
+            try
+            {
+                int magicNumber = in.readInt();
+                int strainCount = in.readInt();
+                if(magicNumber != CACHE_FILE_MAGIC_NUMBER ||
+                   strainCount != sortedStrains.length)
+                {
+                    LOG.warning(
+                            "ignoring kinship cache file with an unexpected " +
+                            "header: " + cacheFile.getAbsolutePath());
+                    return null;
+                }
+                
+                double[] kinship = new double[strainCount * strainCount];
+                for(int i = 0; i < kinship.length; i++)
+                {
+                    kinship[i] = in.readDouble();
+                }
+                
+                if(LOG.isLoggable(Level.FINE))
+                {
+                    LOG.fine("read cached kinship from: " + cacheFile.getAbsolutePath());
+                }
+                
+                return kinship;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch(IOException ex)
+        {
+            LOG.log(Level.WARNING,
+                    "failed to read cached kinship: " + cacheFile.getAbsolutePath(),
+                    ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Store the given kinship matrix. Failures are logged rather than thrown
+     * since the cache is only an optimization
+     * @param genotypeFingerprint
+     *          the fingerprint of the genotype data
+     * @param sortedStrains
+     *          the sorted strains that the kinship covers
+     * @param kinship
+     *          the flattened kinship matrix
+     */
+    public synchronized void putKinship(
+            String genotypeFingerprint,
+            String[] sortedStrains,
+            double[] kinship)
+    {
+        if(kinship.length != sortedStrains.length * sortedStrains.length)
+        {
+            throw new IllegalArgumentException(
+                    "expected a kinship matrix of length " +
+                    (sortedStrains.length * sortedStrains.length) + " but got " +
+                    kinship.length);
+        }
+        
+        File cacheFile = this.getCacheFile(genotypeFingerprint, sortedStrains);
+        try
+        {
+            if(!this.cacheDirectory.isDirectory() && !this.cacheDirectory.mkdirs())
+            {
+                throw new IOException(
+                        "failed to create kinship cache directory: " +
+                        this.cacheDirectory.getAbsolutePath());
+            }
+            
+            // write to a temp file first so that a partially written matrix
+            // is never picked up by another run
+            File tempFile = File.createTempFile(
+                    CACHE_FILE_PREFIX,
+                    ".tmp",
+                    this.cacheDirectory);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempFile)));
+            try
+            {
+                out.writeInt(CACHE_FILE_MAGIC_NUMBER);
+                out.writeInt(sortedStrains.length);
+                for(double currKinship: kinship)
+                {
+                    out.writeDouble(currKinship);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            
+            cacheFile.delete();
+            if(!tempFile.renameTo(cacheFile))
+            {
+                tempFile.delete();
+                throw new IOException(
+                        "failed to rename " + tempFile.getAbsolutePath() +
+                        " to " + cacheFile.getAbsolutePath());
+            }
+        }
+        catch(IOException ex)
+        {
+            LOG.log(Level.WARNING,
+                    "failed to cache kinship: " + cacheFile.getAbsolutePath(),
+                    ex);
+        }
+    }
+    
+    /**
+     * Get the file used to cache the kinship for the given key. This function
+     * will not create the file on disk
+     */
+    private File getCacheFile(
+            String genotypeFingerprint,
+            String[] sortedStrains)
+    {
+        String cacheKeyString =
+            "v" + KINSHIP_ALGORITHM_VERSION + CONCATINATION_STRING +
+            genotypeFingerprint + CONCATINATION_STRING +
+            Arrays.toString(sortedStrains);
+        
+        return new File(
+                this.cacheDirectory,
+                CACHE_FILE_PREFIX + md5Hex(cacheKeyString) + CACHE_FILE_EXTENSION);
+    }
+    
+    /**
+     * Create a fingerprint for the given genome from its strains and the
+     * SNP count of every chromosome. Like {@link #fingerprint(File)} this
+     * only looks at metadata so it doesn't read any SDPs
+     * @param genomeDataSource
+     *          the genome
+     * @return
+     *          the fingerprint
+     * @throws IOException
+     *          if we fail to get the SNP counts
+     */
+    public static String fingerprint(GenomeDataSource genomeDataSource)
+    throws IOException
+    {
+        StringBuffer metadata = new StringBuffer("genome");
+        metadata.append(CONCATINATION_STRING);
+        metadata.append(Arrays.toString(toSortedStrains(
+                genomeDataSource.getAvailableStrains())));
+        
+        Map<Integer, ? extends ChromosomeDataSource> chromosomeDataSources =
+            genomeDataSource.getChromosomeDataSources();
+        for(Integer chromosomeNumber: toSortedChromosomeNumbers(chromosomeDataSources))
+        {
+            metadata.append(CONCATINATION_STRING);
+            metadata.append(chromosomeNumber);
+            metadata.append(':');
+            metadata.append(chromosomeDataSources.get(
+                    chromosomeNumber).getSnpPositionInputStream().getSnpCount());
+        }
+        
+        return md5Hex(metadata.toString());
+    }
+    
+    /**
+     * Create a fingerprint for a flat genotype file using its location,
+     * size and modification time
+     * @param genoFile
+     *          the genotype file
+     * @return
+     *          the fingerprint
+     */
+    public static String fingerprint(File genoFile)
+    {
+        return md5Hex(
+                "file" + CONCATINATION_STRING +
+                genoFile.getAbsolutePath() + CONCATINATION_STRING +
+                genoFile.length() + CONCATINATION_STRING +
+                genoFile.lastModified());
+    }
+    
+    /**
+     * Create a fingerprint for a single chromosome from its strains and
+     * SNP count. This doesn't read any SDPs
+     * @param chrDataSource
+     *          the chromosome
+     * @return
+     *          the fingerprint
+     * @throws IOException
+     *          if we fail to get the SNP count
+     */
+    public static String fingerprint(ChromosomeDataSource chrDataSource)
+    throws IOException
+    {
+        return md5Hex(
+                "chromosome" + CONCATINATION_STRING +
+                Arrays.toString(toSortedStrains(chrDataSource.getAvailableStrains())) +
+                CONCATINATION_STRING +
+                chrDataSource.getSnpPositionInputStream().getSnpCount());
+    }
+    
+    /**
+     * Update the digest with the SNP count and every SDP of a chromosome
+     */
+    private static void updateDigest(
+            MessageDigest digest,
+            ChromosomeDataSource chrDataSource,
+            String[] sortedStrains)
+    throws IOException
+    {
+        long snpCount = chrDataSource.getSnpPositionInputStream().getSnpCount();
+        updateDigest(digest, snpCount);
+        
+        byte[] sdpBytes = new byte[(sortedStrains.length + 7) / 8];
+        SdpInputStream sdpStream = chrDataSource.getSdpInputStream(sortedStrains);
+        for(long snpIndex = 0; snpIndex < snpCount; snpIndex++)
+        {
+            updateDigest(digest, sdpStream.getNextSdp(), sdpBytes);
+        }
+    }
+    
+    /**
+     * Update the digest with an SDP
+     * @param digest
+     *          the digest
+     * @param sdp
+     *          the SDP
+     * @param sdpBytes
+     *          scratch space which also determines how many strain bits
+     *          are digested (8 per byte)
+     */
+    private static void updateDigest(MessageDigest digest, BitSet sdp, byte[] sdpBytes)
+    {
+        Arrays.fill(sdpBytes, (byte)0);
+        final int bitCount = sdpBytes.length * 8;
+        for(int bit = sdp.nextSetBit(0);
+            bit >= 0 && bit < bitCount;
+            bit = sdp.nextSetBit(bit + 1))
+        {
+            sdpBytes[bit >>> 3] |= (byte)(1 << (bit & 7));
+        }
+        digest.update(sdpBytes);
+    }
+    
+    private static void updateDigest(MessageDigest digest, long value)
+    {
+        for(int shift = 56; shift >= 0; shift -= 8)
+        {
+            digest.update((byte)(value >>> shift));
+        }
+    }
+    
+    private static String[] toSortedStrains(Collection<String> strains)
+    {
+        String[] sortedStrains = strains.toArray(new String[0]);
+        Arrays.sort(sortedStrains);
+        
+        return sortedStrains;
+    }
+    
+    private static List<Integer> toSortedChromosomeNumbers(
+            Map<Integer, ? extends ChromosomeDataSource> chromosomeDataSources)
+    {
+        List<Integer> chromosomeNumbers = new ArrayList<Integer>(
+                chromosomeDataSources.keySet());
+        Collections.sort(chromosomeNumbers);
+        
+        return chromosomeNumbers;
+    }
+    
+    private static String md5Hex(String string)
+    {
+        try
+        {
+            return toHex(newMD5Digest().digest(string.getBytes("UTF-8")));
+        }
+        catch(UnsupportedEncodingException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private static MessageDigest newMD5Digest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch(NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private static String toHex(byte[] bytes)
+    {
+        StringBuffer hex = new StringBuffer(bytes.length * 2);
+        for(byte currByte: bytes)
+        {
+            hex.append(Character.forDigit((currByte >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(currByte & 0xF, 16));
+        }
+        
+        return hex.toString();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+/**
+ * One-way ANOVA F-test of strain responses grouped by a multi-group
+ * partition. The count, sum and sum of squares of each group are
+ * accumulated into small arrays indexed by group ID, so no responses are
+ * boxed and no per-partition maps are built. Like
+ * {@link StrainMultiPartitionSignificanceTester} always has, groups with
+ * fewer than two strains are left out of the test. Responses are centered
+ * on their mean first so that the sums of squares don't lose precision to
+ * large response values.
+ * <p>
+ * Instances hold scratch arrays and so shouldn't be shared between
+ * threads.
+ * </p>
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class OneWayAnovaKernel
+{
+    private static final int MIN_GROUP_SIZE = 2;
+    
+    private static final int INITIAL_GROUP_CAPACITY = 16;
+    
+    private final double[] centeredResponses;
+    
+    private int[] groupCounts = new int[INITIAL_GROUP_CAPACITY];
+    
+    private double[] groupSums = new double[INITIAL_GROUP_CAPACITY];
+    
+    private double[] groupSumsOfSquares = new double[INITIAL_GROUP_CAPACITY];
+    
+    private final PValueCalculator pValueCalculator = new PValueCalculator();
+    
+    /**
+     * Constructor
+     * @param strainResponses
+     *          the per-strain responses
+     */
+    public OneWayAnovaKernel(double[] strainResponses)
+    {
+        final int strainCount = strainResponses.length;
+        double mean = 0.0;
+        for(int i = 0; i < strainCount; i++)
+        {
+            mean += strainResponses[i];
+        }
+        mean /= strainCount;
+        
+        this.centeredResponses = new double[strainCount];
+        for(int i = 0; i < strainCount; i++)
+        {
+            this.centeredResponses[i] = strainResponses[i] - mean;
+        }
+    }
+    
+    /**
+     * Get the number of strains
+     * @return
+     *          the strain count
+     */
+    public int getStrainCount()
+    {
+        return this.centeredResponses.length;
+    }
+    
+    /**
+     * F-test the given grouping of the strains
+     * @param strainGroups
+     *          the group ID of each strain
+     * @return
+     *          the p-value or 1.0 if fewer than two groups have at least
+     *          two strains
+     */
+    public double fTest(short[] strainGroups)
+    {
+        final double[] responses = this.centeredResponses;
+        final int strainCount = responses.length;
+        if(strainGroups.length != strainCount)
+        {
+            throw new IllegalArgumentException(
+                    "Expect the strain group array length to match the strain " +
+                    "response count but " + strainGroups.length + " and " +
+                    strainCount + " do not match");
+        }
+        else if(strainCount == 0)
+        {
+            return 1.0;
+        }
+        
+        // group IDs are offset by the smallest one so that they can index
+        // the accumulator arrays
+        int minGroup = strainGroups[0];
+        int maxGroup = strainGroups[0];
+        for(int i = 1; i < strainCount; i++)
+        {
+            final int currGroup = strainGroups[i];
+            if(currGroup < minGroup)
+            {
+                minGroup = currGroup;
+            }
+            else if(currGroup > maxGroup)
+            {
+                maxGroup = currGroup;
+            }
+        }
+        
+        final int groupRange = maxGroup - minGroup + 1;
+        if(groupRange > this.groupCounts.length)
+        {
+            int newCapacity = Math.max(groupRange, this.groupCounts.length * 2);
+            this.groupCounts = new int[newCapacity];
+            this.groupSums = new double[newCapacity];
+            this.groupSumsOfSquares = new double[newCapacity];
+        }
+        
+        final int[] counts = this.groupCounts;
+        final double[] sums = this.groupSums;
+        final double[] sumsOfSquares = this.groupSumsOfSquares;
+        for(int i = 0; i < groupRange; i++)
+        {
+            counts[i] = 0;
+            sums[i] = 0.0;
+            sumsOfSquares[i] = 0.0;
+        }
+        
+        for(int i = 0; i < strainCount; i++)
+        {
+            final int groupIndex = strainGroups[i] - minGroup;
+            final double currResponse = responses[i];
+            counts[groupIndex]++;
+            sums[groupIndex] += currResponse;
+            sumsOfSquares[groupIndex] += currResponse * currResponse;
+        }
+        
+        int testedGroupCount = 0;
+        int totalCount = 0;
+        double totalSum = 0.0;
+        double totalSumOfSquares = 0.0;
+        double withinGroupSumOfSquares = 0.0;
+        for(int i = 0; i < groupRange; i++)
+        {
+            final int groupCount = counts[i];
+            if(groupCount >= MIN_GROUP_SIZE)
+            {
+                final double groupSum = sums[i];
+                testedGroupCount++;
+                totalCount += groupCount;
+                totalSum += groupSum;
+                totalSumOfSquares += sumsOfSquares[i];
+                withinGroupSumOfSquares +=
+                    sumsOfSquares[i] - groupSum * groupSum / groupCount;
+            }
+        }
+        
+        if(testedGroupCount < 2)
+        {
+            return 1.0;
+        }
+        
+        final double betweenGroupSumOfSquares =
+            totalSumOfSquares - totalSum * totalSum / totalCount -
+            withinGroupSumOfSquares;
+        final int betweenGroupDegreesOfFreedom = testedGroupCount - 1;
+        final int withinGroupDegreesOfFreedom = totalCount - testedGroupCount;
+        final double f =
+            (betweenGroupSumOfSquares / betweenGroupDegreesOfFreedom) /
+            (withinGroupSumOfSquares / withinGroupDegreesOfFreedom);
+        
+        return this.pValueCalculator.fPValue(
+                f,
+                betweenGroupDegreesOfFreedom,
+                withinGroupDegreesOfFreedom);
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.haplotype.analysis;
+
+import java.util.BitSet;
+
+/**
+ * A SNP-major genotype matrix that stores each call as a 2-bit
+ * {@link GenotypeCallCodec} call code, so it is 32 times smaller than the
+ * equivalent flattened matrix of doubles. Calls are only decoded into the
+ * EMMA double values (1.0 for A, 0.0 for B, 0.5 for H and NaN for no
+ * call) a block at a time as they are handed to the test kernel, either
+ * SNP-major with {@link #decodeSnps(int, int, int[], double[])} or
+ * strain-major with {@link #decodeStrain(int, int, int, double[])}.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class PackedGenotypeMatrix
+{
+    private static final int BITS_PER_CALL = 2;
+    
+    private static final int CALLS_PER_WORD = Long.SIZE / BITS_PER_CALL;
+    
+    private static final long CALL_MASK = (1L << BITS_PER_CALL) - 1L;
+    
+    /**
+     * a word where every call is {@link GenotypeCallCodec#B_CALL}
+     */
+    private static final long ALL_B_CALL_WORD = 0x5555555555555555L;
+    
+    private final int strainCount;
+    
+    /**
+     * the number of words used by each SNP row. Rows always start on a new
+     * word so that a row can be read without any shifting across words
+     */
+    private final int wordsPerSnp;
+    
+    private long[] words;
+    
+    private int snpCount = 0;
+    
+    /**
+     * Constructor
+     * @param strainCount
+     *          the number of strains (calls per SNP)
+     * @param snpCapacity
+     *          the number of SNPs to allocate space for up front. The matrix
+     *          grows if more SNPs than this are added
+     */
+    public PackedGenotypeMatrix(int strainCount, int snpCapacity)
+    {
+        this.strainCount = strainCount;
+        this.wordsPerSnp = (strainCount + CALLS_PER_WORD - 1) / CALLS_PER_WORD;
+        this.words = new long[Math.max(0, snpCapacity) * this.wordsPerSnp];
+    }
+    
+    /**
+     * Getter for the strain count
+     * @return the strainCount
+     */
+    public int getStrainCount()
+    {
+        return this.strainCount;
+    }
+    
+    /**
+     * Get the number of SNPs that have been added
+     * @return
+     *          the SNP count
+     */
+    public int getSnpCount()
+    {
+        return this.snpCount;
+    }
+    
+    /**
+     * Add a SNP row
+     * @param callCodes
+     *          the {@link GenotypeCallCodec} call code for each strain
+     */
+    public void addSnp(byte[] callCodes)
+    {
+        if(callCodes.length != this.strainCount)
+        {
+            throw new IllegalArgumentException(
+                    "expected " + this.strainCount + " calls but got " +
+                    callCodes.length);
+        }
+        
+        final int rowOffset = this.allocateSnp();
+        for(int strainIndex = 0; strainIndex < callCodes.length; strainIndex++)
+        {
+            this.words[rowOffset + strainIndex / CALLS_PER_WORD] |=
+                (callCodes[strainIndex] & CALL_MASK) <<
+                (BITS_PER_CALL * (strainIndex % CALLS_PER_WORD));
+        }
+    }
+    
+    /**
+     * Add a SNP row from a strain distribution pattern. Strains whose bit is
+     * set get an A call (1.0) and all other strains get a B call (0.0)
+     * @param sdp
+     *          the SDP
+     */
+    public void addSdp(BitSet sdp)
+    {
+        final int rowOffset = this.allocateSnp();
+        final int lastWordIndex = rowOffset + this.wordsPerSnp - 1;
+        for(int i = rowOffset; i <= lastWordIndex; i++)
+        {
+            this.words[i] = ALL_B_CALL_WORD;
+        }
+        
+        // clear the padding calls past the last strain
+        final int lastWordCallCount =
+            this.strainCount - (this.wordsPerSnp - 1) * CALLS_PER_WORD;
+        if(lastWordCallCount < CALLS_PER_WORD)
+        {
+            this.words[lastWordIndex] &= (1L << (BITS_PER_CALL * lastWordCallCount)) - 1L;
+        }
+        
+        // A_CALL is zero so we just clear the B bit
+        for(int strainIndex = sdp.nextSetBit(0);
+            strainIndex >= 0 && strainIndex < this.strainCount;
+            strainIndex = sdp.nextSetBit(strainIndex + 1))
+        {
+            this.words[rowOffset + strainIndex / CALLS_PER_WORD] &=
+                ~(CALL_MASK << (BITS_PER_CALL * (strainIndex % CALLS_PER_WORD)));
+        }
+    }
+    
+    /**
+     * Get the call code for the given SNP and strain
+     * @param snpIndex
+     *          the SNP index
+     * @param strainIndex
+     *          the strain index
+     * @return
+     *          the {@link GenotypeCallCodec} call code
+     */
+    public byte getCallCode(int snpIndex, int strainIndex)
+    {
+        long word = this.words[
+                snpIndex * this.wordsPerSnp + strainIndex / CALLS_PER_WORD];
+        return (byte)((word >>> (BITS_PER_CALL * (strainIndex % CALLS_PER_WORD))) & CALL_MASK);
+    }
+    
+    /**
+     * Decode a block of SNPs into a flattened SNP-major double matrix
+     * @param firstSnpIndex
+     *          the first SNP to decode
+     * @param snpCount
+     *          the number of SNPs to decode
+     * @param strainIndices
+     *          the strains to decode (in the order that they should appear
+     *          in each decoded row) or null to decode every strain
+     * @param callValues
+     *          the array to decode into. The call for the Nth decoded SNP
+     *          and Mth decoded strain goes at index N * rowLength + M
+     */
+    public void decodeSnps(
+            int firstSnpIndex,
+            int snpCount,
+            int[] strainIndices,
+            double[] callValues)
+    {
+        final long[] words = this.words;
+        final int wordsPerSnp = this.wordsPerSnp;
+        if(strainIndices == null)
+        {
+            final int strainCount = this.strainCount;
+            for(int snp = 0; snp < snpCount; snp++)
+            {
+                final int wordOffset = (firstSnpIndex + snp) * wordsPerSnp;
+                final int rowOffset = snp * strainCount;
+                for(int strainIndex = 0; strainIndex < strainCount; strainIndex++)
+                {
+                    long word = words[wordOffset + strainIndex / CALLS_PER_WORD];
+                    callValues[rowOffset + strainIndex] = GenotypeCallCodec.toCallValue(
+                            (byte)((word >>> (BITS_PER_CALL * (strainIndex % CALLS_PER_WORD))) & CALL_MASK));
+                }
+            }
+        }
+        else
+        {
+            final int rowLength = strainIndices.length;
+            for(int snp = 0; snp < snpCount; snp++)
+            {
+                final int wordOffset = (firstSnpIndex + snp) * wordsPerSnp;
+                final int rowOffset = snp * rowLength;
+                for(int i = 0; i < rowLength; i++)
+                {
+                    final int strainIndex = strainIndices[i];
+                    long word = words[wordOffset + strainIndex / CALLS_PER_WORD];
+                    callValues[rowOffset + i] = GenotypeCallCodec.toCallValue(
+                            (byte)((word >>> (BITS_PER_CALL * (strainIndex % CALLS_PER_WORD))) & CALL_MASK));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Decode a run of calls for a single strain (a strain-major view of
+     * the matrix)
+     * @param strainIndex
+     *          the strain
+     * @param firstSnpIndex
+     *          the first SNP to decode
+     * @param snpCount
+     *          the number of SNPs to decode
+     * @param callValues
+     *          the array to decode into starting at index 0
+     */
+    public void decodeStrain(
+            int strainIndex,
+            int firstSnpIndex,
+            int snpCount,
+            double[] callValues)
+    {
+        final long[] words = this.words;
+        final int wordsPerSnp = this.wordsPerSnp;
+        final int wordInRow = strainIndex / CALLS_PER_WORD;
+        final int shift = BITS_PER_CALL * (strainIndex % CALLS_PER_WORD);
+        for(int snp = 0; snp < snpCount; snp++)
+        {
+            long word = words[(firstSnpIndex + snp) * wordsPerSnp + wordInRow];
+            callValues[snp] = GenotypeCallCodec.toCallValue(
+                    (byte)((word >>> shift) & CALL_MASK));
+        }
+    }
+    
+    /**
+     * Release any unused capacity
+     */
+    public void trimToSize()
+    {
+        int usedWordCount = this.snpCount * this.wordsPerSnp;
+        if(usedWordCount != this.words.length)
+        {
+            long[] newWords = new long[usedWordCount];
+            System.arraycopy(this.words, 0, newWords, 0, usedWordCount);
+            this.words = newWords;
+        }
+    }
+    
+    /**
+     * Make room for one more SNP row (growing if needed) and return the
+     * offset of its first word. The new row is all zeros
+     */
+    private int allocateSnp()
+    {
+        int rowOffset = this.snpCount * this.wordsPerSnp;
+        if(rowOffset + this.wordsPerSnp > this.words.length)
+        {
+            int newSnpCapacity = Math.max(16, this.snpCount + (this.snpCount >> 1));
+            long[] newWords = new long[newSnpCapacity * this.wordsPerSnp];
+            System.arraycopy(this.words, 0, newWords, 0, rowOffset);
+            this.words = newWords;
+        }
+        
+        this.snpCount++;
+        return rowOffset;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.jax.geneticutil.data.BinaryStrainPartition;
+
+/**
+ * An immutable set of strains packed into 64-bit words (strain i is bit
+ * i % 64 of word i / 64). Unlike a {@link BitSet} the length is fixed to
+ * the strain count and the words can be read directly, so tests can
+ * popcount and walk the set strains a word at a time with no bounds
+ * checks past the strain count. Bits at or past the strain count are
+ * always clear.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public final class PackedStrainPartition
+{
+    private final int strainCount;
+    
+    private final long[] words;
+    
+    private final int cardinality;
+    
+    /**
+     * Constructor which takes ownership of the given words
+     */
+    private PackedStrainPartition(int strainCount, long[] words)
+    {
+        this.strainCount = strainCount;
+        this.words = words;
+        
+        int cardinality = 0;
+        for(int i = 0; i < words.length; i++)
+        {
+            cardinality += Long.bitCount(words[i]);
+        }
+        this.cardinality = cardinality;
+    }
+    
+    /**
+     * Create a partition from the given bits
+     * @param strainBits
+     *          the strains in the partition. bits at or past the strain
+     *          count are ignored
+     * @param strainCount
+     *          the number of strains
+     * @return
+     *          the partition
+     */
+    public static PackedStrainPartition fromBitSet(BitSet strainBits, int strainCount)
+    {
+        long[] words = new long[wordCount(strainCount)];
+        for(int strainIndex = strainBits.nextSetBit(0);
+            strainIndex >= 0 && strainIndex < strainCount;
+            strainIndex = strainBits.nextSetBit(strainIndex + 1))
+        {
+            words[strainIndex >>> 6] |= 1L << strainIndex;
+        }
+        
+        return new PackedStrainPartition(strainCount, words);
+    }
+    
+    /**
+     * Create a partition from the strains of a {@link BinaryStrainPartition}
+     * @param partition
+     *          the partition to convert
+     * @param strainCount
+     *          the number of strains
+     * @return
+     *          the packed partition
+     */
+    public static PackedStrainPartition fromPartition(
+            BinaryStrainPartition partition,
+            int strainCount)
+    {
+        return fromBitSet(partition.getStrainBitSet(), strainCount);
+    }
+    
+    /**
+     * Create a partition from packed words
+     * @param words
+     *          the words (which are copied). bits at or past the strain
+     *          count are ignored
+     * @param offset
+     *          the index of the first word to copy
+     * @param strainCount
+     *          the number of strains
+     * @return
+     *          the partition
+     */
+    public static PackedStrainPartition fromWords(
+            long[] words,
+            int offset,
+            int strainCount)
+    {
+        long[] wordsCopy = new long[wordCount(strainCount)];
+        System.arraycopy(words, offset, wordsCopy, 0, wordsCopy.length);
+        if((strainCount & 63) != 0)
+        {
+            wordsCopy[wordsCopy.length - 1] &= (1L << strainCount) - 1L;
+        }
+        
+        return new PackedStrainPartition(strainCount, wordsCopy);
+    }
+    
+    /**
+     * Get the number of words needed for the given number of strains
+     * @param strainCount
+     *          the strain count
+     * @return
+     *          the word count
+     */
+    public static int wordCount(int strainCount)
+    {
+        return (strainCount + Long.SIZE - 1) >>> 6;
+    }
+    
+    /**
+     * Getter for the strain count
+     * @return the strainCount
+     */
+    public int getStrainCount()
+    {
+        return this.strainCount;
+    }
+    
+    /**
+     * Get the number of words
+     * @return
+     *          the word count
+     */
+    public int getWordCount()
+    {
+        return this.words.length;
+    }
+    
+    /**
+     * Get a word of the partition
+     * @param wordIndex
+     *          the word index
+     * @return
+     *          the strain bits for strains [64 * wordIndex, 64 * (wordIndex + 1))
+     */
+    public long getWord(int wordIndex)
+    {
+        return this.words[wordIndex];
+    }
+    
+    /**
+     * Get the number of strains in the partition
+     * @return
+     *          the number of set bits
+     */
+    public int cardinality()
+    {
+        return this.cardinality;
+    }
+    
+    /**
+     * Determine if the given strain is in the partition
+     * @param strainIndex
+     *          the strain
+     * @return
+     *          true if the strain's bit is set
+     */
+    public boolean contains(int strainIndex)
+    {
+        return (this.words[strainIndex >>> 6] & (1L << strainIndex)) != 0L;
+    }
+    
+    /**
+     * Convert this partition to a {@link BitSet}
+     * @return
+     *          a new bit set
+     */
+    public BitSet toBitSet()
+    {
+        BitSet bits = new BitSet(this.strainCount);
+        for(int wordIndex = 0; wordIndex < this.words.length; wordIndex++)
+        {
+            long word = this.words[wordIndex];
+            while(word != 0L)
+            {
+                bits.set((wordIndex << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1L;
+            }
+        }
+        
+        return bits;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object obj)
+    {
+        if(obj instanceof PackedStrainPartition)
+        {
+            PackedStrainPartition otherPartition = (PackedStrainPartition)obj;
+            return this.strainCount == otherPartition.strainCount &&
+                   Arrays.equals(this.words, otherPartition.words);
+        }
+        else
+        {
+            return false;
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(this.words);
+    }
+}
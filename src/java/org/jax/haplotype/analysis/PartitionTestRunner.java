@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.haplotype.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent per-partition tests in contiguous chunks of partitions,
+ * either on the calling thread or spread across an executor. Each chunk
+ * writes into its own range of a shared result array so the results are
+ * exactly the same as running every chunk serially.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class PartitionTestRunner
+{
+    /**
+     * the number of partitions tested by each task
+     */
+    private static final int CHUNK_PARTITION_COUNT = 4096;
+    
+    /**
+     * Tests a range of partitions
+     */
+    static abstract class ChunkTest
+    {
+        /**
+         * Test the partitions in the given range. Implementations must only
+         * write the results for this range and must not share mutable state
+         * with other chunks
+         * @param startPartition
+         *          the first partition to test
+         * @param endPartition
+         *          the partition after the last one to test
+         */
+        public abstract void testChunk(int startPartition, int endPartition);
+    }
+    
+    private PartitionTestRunner()
+    {
+        // static utility class
+    }
+    
+    /**
+     * Test all of the partitions
+     * @param executor
+     *          the executor to spread the chunks over or null to test
+     *          them all on the calling thread
+     * @param partitionCount
+     *          the number of partitions
+     * @param chunkTest
+     *          the test
+     */
+    static void testPartitions(
+            ExecutorService executor,
+            int partitionCount,
+            final ChunkTest chunkTest)
+    {
+        if(executor == null || partitionCount <= CHUNK_PARTITION_COUNT)
+        {
+            chunkTest.testChunk(0, partitionCount);
+        }
+        else
+        {
+            List<Future<?>> chunkFutures = new ArrayList<Future<?>>(
+                    (partitionCount + CHUNK_PARTITION_COUNT - 1) / CHUNK_PARTITION_COUNT);
+            try
+            {
+                for(int start = 0; start < partitionCount; start += CHUNK_PARTITION_COUNT)
+                {
+                    final int chunkStart = start;
+                    final int chunkEnd = Math.min(
+                            start + CHUNK_PARTITION_COUNT,
+                            partitionCount);
+                    chunkFutures.add(executor.submit(new Callable<Object>()
+                    {
+                        public Object call()
+                        {
+                            chunkTest.testChunk(chunkStart, chunkEnd);
+                            return null;
+                        }
+                    }));
+                }
+                
+                for(Future<?> chunkFuture: chunkFutures)
+                {
+                    waitForChunk(chunkFuture);
+                }
+            }
+            finally
+            {
+                // don't leave chunks running if one of them failed
+                for(Future<?> chunkFuture: chunkFutures)
+                {
+                    chunkFuture.cancel(true);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Wait for the given chunk passing on any failure
+     */
+    private static void waitForChunk(Future<?> chunkFuture)
+    {
+        try
+        {
+            chunkFuture.get();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+        catch(ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if(cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            else if(cause instanceof Error)
+            {
+                throw (Error)cause;
+            }
+            else
+            {
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+}
@@ -159,6 +159,8 @@ public class PhylogenyAssociationTest implements Serializable
         
         Map<Integer, List<PhylogenyInterval>> phyloData = this.phylogenyDataSource.getPhylogenyData(
                 phenotypeDataMap.keySet());
+        PhylogenyEdgePValueCache edgePValueCache = new PhylogenyEdgePValueCache(
+                new StrainDictionary(phenotypeDataMap));
         Map<Integer, List<PhylogenyTestResult>> testResults =
             new HashMap<Integer, List<PhylogenyTestResult>>(phyloData.size());
         for(Entry<Integer, List<PhylogenyInterval>> phyloEntry: phyloData.entrySet())
@@ -170,7 +172,7 @@ public class PhylogenyAssociationTest implements Serializable
             {
                 PhylogenyTreeNode phylogenyWithPValue = phyloTester.testMultipleResponseSignificance(
                         currPhyloInterval.getPhylogeny(),
-                        phenotypeDataMap);
+                        edgePValueCache);
                 PhylogenyTreeEdgeWithRealValue smallestEdge = PhylogenyTreeEdgeWithRealValue.getEdgeWithMininumValue(
                         phylogenyWithPValue);
                 
@@ -207,6 +209,8 @@ public class PhylogenyAssociationTest implements Serializable
         Map<Integer, List<PhylogenyInterval>> phyloData = this.phylogenyDataSource.getPhylogenyData(
                 phenotypeDataMap.keySet(),
                 Collections.singleton(chromosomeNumber));
+        PhylogenyEdgePValueCache edgePValueCache = new PhylogenyEdgePValueCache(
+                new StrainDictionary(phenotypeDataMap));
         Map<Integer, List<PhylogenyTestResult>> testResults =
             new HashMap<Integer, List<PhylogenyTestResult>>(phyloData.size());
         for(Entry<Integer, List<PhylogenyInterval>> phyloEntry: phyloData.entrySet())
@@ -219,7 +223,7 @@ public class PhylogenyAssociationTest implements Serializable
                 PhylogenyTreeNode phylogenyWithPValue =
                     PHYLOGENY_TESTER.testMultipleResponseSignificance(
                             currPhyloInterval.getPhylogeny(),
-                            phenotypeDataMap);
+                            edgePValueCache);
                 PhylogenyTreeEdgeWithRealValue smallestEdge =
                     PhylogenyTreeEdgeWithRealValue.getEdgeWithMininumValue(
                             phylogenyWithPValue);
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers phylogeny edge p-values by the edge's SDP bits. Neighboring
+ * phylogeny intervals along a chromosome share a lot of edges which split
+ * the strains in exactly the same way, so when a run of phylogenies is
+ * tested against one phenotype only the first edge with a given SDP needs
+ * to be t-tested. A cache is tied to a single {@link StrainDictionary}
+ * (one phenotype and strain set) and the SDP bits of every phylogeny
+ * tested with it have to use the same strain ordering. This isn't thread
+ * safe.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class PhylogenyEdgePValueCache
+{
+    private final StrainDictionary strainDictionary;
+    
+    private final Map<BitSet, CachedEdgeTest> edgeTests =
+        new HashMap<BitSet, CachedEdgeTest>();
+    
+    /**
+     * Constructor
+     * @param strainDictionary
+     *          the strains and phenotype that the cached p-values are for
+     */
+    public PhylogenyEdgePValueCache(StrainDictionary strainDictionary)
+    {
+        this.strainDictionary = strainDictionary;
+    }
+    
+    /**
+     * Getter for the strain dictionary
+     * @return the strainDictionary
+     */
+    public StrainDictionary getStrainDictionary()
+    {
+        return this.strainDictionary;
+    }
+    
+    /**
+     * Get the number of edge p-values cached
+     * @return
+     *          the edge count
+     */
+    public int getCachedEdgeCount()
+    {
+        return this.edgeTests.size();
+    }
+    
+    /**
+     * Look up the p-value for an edge
+     * @param sdpBits
+     *          the edge's SDP bits
+     * @param inPhyloCount
+     *          the number of strains under the edge. This is used as a
+     *          sanity check that the cached split is really the same
+     * @return
+     *          the p-value or null if it isn't cached
+     */
+    Double getPValue(BitSet sdpBits, int inPhyloCount)
+    {
+        CachedEdgeTest edgeTest = this.edgeTests.get(sdpBits);
+        if(edgeTest == null || edgeTest.inPhyloCount != inPhyloCount)
+        {
+            return null;
+        }
+        else
+        {
+            return edgeTest.pValue;
+        }
+    }
+    
+    /**
+     * Cache the p-value for an edge
+     * @param sdpBits
+     *          the edge's SDP bits
+     * @param inPhyloCount
+     *          the number of strains under the edge
+     * @param pValue
+     *          the p-value
+     */
+    void putPValue(BitSet sdpBits, int inPhyloCount, double pValue)
+    {
+        // copy since we don't own the edge's bits
+        this.edgeTests.put(
+                (BitSet)sdpBits.clone(),
+                new CachedEdgeTest(inPhyloCount, pValue));
+    }
+    
+    /**
+     * Add all of the p-values from another cache to this one
+     * @param other
+     *          the other cache
+     */
+    void putAll(PhylogenyEdgePValueCache other)
+    {
+        this.edgeTests.putAll(other.edgeTests);
+    }
+    
+    /**
+     * A cached edge test result
+     */
+    private static final class CachedEdgeTest
+    {
+        private final int inPhyloCount;
+        
+        private final double pValue;
+        
+        public CachedEdgeTest(int inPhyloCount, double pValue)
+        {
+            this.inPhyloCount = inPhyloCount;
+            this.pValue = pValue;
+        }
+    }
+}
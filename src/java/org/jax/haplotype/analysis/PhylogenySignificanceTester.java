@@ -5,12 +5,12 @@
  * it under the terms of the GNU General Public License as published by
  * the Free Software Foundation, either version 3 of the License, or
  * (at your option) any later version.
- *
+ * 
  * This software is distributed in the hope that it will be useful,
  * but WITHOUT ANY WARRANTY; without even the implied warranty of
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
  * GNU General Public License for more details.
- *
+ * 
  * You should have received a copy of the GNU General Public License
  * along with this software.  If not, see <http://www.gnu.org/licenses/>.
  */
@@ -18,22 +18,16 @@
 package org.jax.haplotype.analysis;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.commons.math.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math.stat.inference.TTest;
-import org.apache.commons.math.stat.inference.TTestImpl;
 import org.jax.haplotype.phylogeny.data.PhylogenyTreeEdge;
 import org.jax.haplotype.phylogeny.data.PhylogenyTreeEdgeWithRealValue;
 import org.jax.haplotype.phylogeny.data.PhylogenyTreeNode;
-import org.jax.util.math.StatisticUtilities;
 
 /**
  * A phylogeny significance tester
@@ -44,8 +38,6 @@ public class PhylogenySignificanceTester
     private static final Logger LOG = Logger.getLogger(
             PhylogenySignificanceTester.class.getName());
     
-    private final TTest tTest = new TTestImpl();
-    
     /**
      * Test the given phylogeny tree's edges
      * @param phylogeny
@@ -60,41 +52,91 @@ public class PhylogenySignificanceTester
             PhylogenyTreeNode phylogeny,
             Map<String, List<Double>> phenotypeData)
     {
-        // check that we have a phenotype for each phylogeny
-        List<String> allPhyloStrains = phylogeny.getAllStrains();
-        if(allPhyloStrains.size() != phenotypeData.size() ||
-           !phenotypeData.keySet().containsAll(allPhyloStrains))
-        {
-            LOG.severe(
-                    "Strain miss-match: " + allPhyloStrains.size() + " vs " +
-                    phenotypeData.size());
-            List<String> phenoStrains = new ArrayList<String>(
-                    phenotypeData.keySet());
-            Collections.sort(phenoStrains);
-            Collections.sort(allPhyloStrains);
-            StringBuffer phenoBuff = new StringBuffer();
-            for(String strain: phenoStrains)
-            {
-                phenoBuff.append(strain);
-                phenoBuff.append(',');
-            }
-            
-            StringBuffer phyloBuff = new StringBuffer();
-            for(String strain: allPhyloStrains)
-            {
-                phyloBuff.append(strain);
-                phyloBuff.append(',');
-            }
-            
-            LOG.severe("Pheno Strains: " + phenoBuff.toString());
-            LOG.severe("Phylo Strains: " + phyloBuff.toString());
-            LOG.severe("Phylo Tree:    " + phylogeny.toNewickFormat());
-            
-            throw new IllegalArgumentException(
-                    "the strains in the phylogeny tree and the phenotype " +
-                    "data do not match up");
+        return this.testMultipleResponseSignificance(
+                phylogeny,
+                new StrainDictionary(phenotypeData));
+    }
+    
+    /**
+     * Test the given phylogeny tree's edges. When testing many phylogenies
+     * against the same phenotype this is cheaper than
+     * {@link #testMultipleResponseSignificance(PhylogenyTreeNode, Map)}
+     * since the strain dictionary only needs to be built once
+     * @param phylogeny
+     *          the phylogeny to test
+     * @param strainDictionary
+     *          the strain dictionary for the phenotype
+     * @return
+     *          the phylogeny with a p-value for every edge
+     */
+    public PhylogenyTreeNode testMultipleResponseSignificance(
+            PhylogenyTreeNode phylogeny,
+            StrainDictionary strainDictionary)
+    {
+        return this.testMultipleResponseSignificance(
+                phylogeny,
+                strainDictionary,
+                null);
+    }
+    
+    /**
+     * Test the given phylogeny tree's edges reusing the p-values of any
+     * edges whose SDPs were already tested with the given cache. New edge
+     * p-values are added to the cache
+     * @param phylogeny
+     *          the phylogeny to test
+     * @param edgePValueCache
+     *          the edge p-value cache for the phenotype
+     * @return
+     *          the phylogeny with a p-value for every edge
+     */
+    public PhylogenyTreeNode testMultipleResponseSignificance(
+            PhylogenyTreeNode phylogeny,
+            PhylogenyEdgePValueCache edgePValueCache)
+    {
+        return this.testMultipleResponseSignificance(
+                phylogeny,
+                edgePValueCache.getStrainDictionary(),
+                edgePValueCache);
+    }
+    
+    /**
+     * Test the given phylogeny tree's edges
+     * @param phylogeny
+     *          the phylogeny to test
+     * @param strainDictionary
+     *          the strain dictionary for the phenotype
+     * @param edgePValueCache
+     *          the edge p-value cache or null to test every edge
+     * @return
+     *          the phylogeny with a p-value for every edge
+     */
+    private PhylogenyTreeNode testMultipleResponseSignificance(
+            PhylogenyTreeNode phylogeny,
+            StrainDictionary strainDictionary,
+            PhylogenyEdgePValueCache edgePValueCache)
+    {
+        // center the strain means on the overall mean so that the subtree
+        // sums of squares don't lose precision when they're subtracted
+        // from the totals
+        final int strainCount = strainDictionary.getStrainCount();
+        double meanOfMeans = 0.0;
+        for(int i = 0; i < strainCount; i++)
+        {
+            meanOfMeans += strainDictionary.getStrainMean(i);
+        }
+        meanOfMeans /= strainCount;
+        
+        TreeTest treeTest = new TreeTest(
+                strainDictionary,
+                meanOfMeans,
+                edgePValueCache);
+        for(int i = 0; i < strainCount; i++)
+        {
+            treeTest.totalSums.add(strainDictionary.getStrainMean(i) - meanOfMeans);
         }
         
+        StrainSums rootSums = new StrainSums();
         List<PhylogenyTreeEdge> childEdgesWithPValue =
             new ArrayList<PhylogenyTreeEdge>(
                     phylogeny.getChildEdges().size());
@@ -102,80 +144,142 @@ public class PhylogenySignificanceTester
         {
             childEdgesWithPValue.add(this.testMultipleResponseSignificanceRecursive(
                     edge,
-                    phenotypeData));
+                    treeTest,
+                    rootSums));
+        }
+        treeTest.addStrains(phylogeny.getStrains(), rootSums);
+        
+        // check that we have a phenotype for each phylogeny
+        if(treeTest.strainMissMatch || rootSums.count != strainCount)
+        {
+            this.logStrainMissMatch(phylogeny, strainDictionary);
+            throw new IllegalArgumentException(
+                    "the strains in the phylogeny tree and the phenotype " +
+                    "data do not match up");
         }
+        else if(edgePValueCache != null)
+        {
+            edgePValueCache.putAll(treeTest.newEdgePValues);
+        }
+        
         PhylogenyTreeNode newNode = new PhylogenyTreeNode(
                 childEdgesWithPValue,
                 phylogeny.getStrains());
         return newNode;
     }
-
+    
+    /**
+     * Log the details of a phylogeny whose strains don't match the
+     * phenotype strains
+     */
+    private void logStrainMissMatch(
+            PhylogenyTreeNode phylogeny,
+            StrainDictionary strainDictionary)
+    {
+        List<String> allPhyloStrains = phylogeny.getAllStrains();
+        LOG.severe(
+                "Strain miss-match: " + allPhyloStrains.size() + " vs " +
+                strainDictionary.getStrainCount());
+        List<String> phenoStrains = new ArrayList<String>(
+                strainDictionary.getStrainCount());
+        for(int i = 0; i < strainDictionary.getStrainCount(); i++)
+        {
+            phenoStrains.add(strainDictionary.getStrainName(i));
+        }
+        Collections.sort(phenoStrains);
+        Collections.sort(allPhyloStrains);
+        StringBuffer phenoBuff = new StringBuffer();
+        for(String strain: phenoStrains)
+        {
+            phenoBuff.append(strain);
+            phenoBuff.append(',');
+        }
+        
+        StringBuffer phyloBuff = new StringBuffer();
+        for(String strain: allPhyloStrains)
+        {
+            phyloBuff.append(strain);
+            phyloBuff.append(',');
+        }
+        
+        LOG.severe("Pheno Strains: " + phenoBuff.toString());
+        LOG.severe("Phylo Strains: " + phyloBuff.toString());
+        LOG.severe("Phylo Tree:    " + phylogeny.toNewickFormat());
+    }
+    
     /**
-     * Recursive function that fills in the list of significance values
+     * Recursive function that tests the given edge and all of the edges
+     * below it in a single post-order pass
      * @param phylogenyEdge
      *          the edge to test
+     * @param treeTest
+     *          the state shared by the whole tree
+     * @param parentSums
+     *          the sums for the strains in this edge's subtree are added
+     *          to these
      * @return
-     *          the cumulative strain set
+     *          the edge with its p-value
      */
     private PhylogenyTreeEdgeWithRealValue testMultipleResponseSignificanceRecursive(
             PhylogenyTreeEdge phylogenyEdge,
-            Map<String, List<Double>> phenotypeData)
+            TreeTest treeTest,
+            StrainSums parentSums)
     {
         PhylogenyTreeNode node = phylogenyEdge.getNode();
         
-        Set<String> cumulativeBranchStrains = new HashSet<String>();
+        StrainSums inPhyloSums = new StrainSums();
         List<PhylogenyTreeEdge> childEdgesWithPValue =
             new ArrayList<PhylogenyTreeEdge>(
                     node.getChildEdges().size());
         for(PhylogenyTreeEdge edge: node.getChildEdges())
         {
-            PhylogenyTreeEdgeWithRealValue newEdgeWithPValue =
-                this.testMultipleResponseSignificanceRecursive(
-                        edge,
-                        phenotypeData);
-            childEdgesWithPValue.add(newEdgeWithPValue);
-            
-            // TODO make me more efficient
-            // This is really inefficient. We're repeating a lot of
-            // work that was done in the recursive calls here...
-            cumulativeBranchStrains.addAll(
-                    newEdgeWithPValue.getNode().getAllStrains());
+            childEdgesWithPValue.add(this.testMultipleResponseSignificanceRecursive(
+                    edge,
+                    treeTest,
+                    inPhyloSums));
         }
         
-        cumulativeBranchStrains.addAll(node.getStrains());
+        treeTest.addStrains(node.getStrains(), inPhyloSums);
         
+        final StrainSums totalSums = treeTest.totalSums;
         double significanceValue = 1.0;
-        int inPhyloCount = cumulativeBranchStrains.size();
-        if(inPhyloCount >= 2 && (phenotypeData.size() - inPhyloCount) >= 2)
+        int inPhyloCount = inPhyloSums.count;
+        int outPhyloCount = totalSums.count - inPhyloCount;
+        if(inPhyloCount >= 2 && outPhyloCount >= 2)
         {
-            DescriptiveStatistics inPhyloStats = new DescriptiveStatistics();
-            DescriptiveStatistics outPhyloStats = new DescriptiveStatistics();
-            
-            for(Entry<String, List<Double>> entry: phenotypeData.entrySet())
+            BitSet sdpBits = phylogenyEdge.getSdpBits();
+            Double cachedPValue = treeTest.getCachedPValue(sdpBits, inPhyloCount);
+            if(cachedPValue != null)
+            {
+                significanceValue = cachedPValue.doubleValue();
+            }
+            else
             {
-                if(cumulativeBranchStrains.contains(entry.getKey()))
+                double outPhyloSum = totalSums.sum - inPhyloSums.sum;
+                double outPhyloSumOfSquares =
+                    totalSums.sumOfSquares - inPhyloSums.sumOfSquares;
+                
+                try
                 {
-                    inPhyloStats.addValue(StatisticUtilities.calculateMean(
-                            entry.getValue()));
+                    significanceValue = treeTest.pValueCalculator.welchTTestPValue(
+                            inPhyloSums.sum / inPhyloCount,
+                            variance(inPhyloCount, inPhyloSums.sum, inPhyloSums.sumOfSquares),
+                            inPhyloCount,
+                            outPhyloSum / outPhyloCount,
+                            variance(outPhyloCount, outPhyloSum, outPhyloSumOfSquares),
+                            outPhyloCount);
+                    treeTest.cachePValue(sdpBits, inPhyloCount, significanceValue);
                 }
-                else
+                catch(Exception ex)
                 {
-                    outPhyloStats.addValue(StatisticUtilities.calculateMean(
-                            entry.getValue()));
+                    LOG.log(Level.SEVERE,
+                            "t test failed",
+                            ex);
                 }
             }
-            
-            try
-            {
-                significanceValue = this.tTest.tTest(inPhyloStats, outPhyloStats);
-            }
-            catch(Exception ex)
-            {
-                LOG.log(Level.SEVERE,
-                        "t test failed",
-                        ex);
-            }
         }
+        parentSums.add(inPhyloSums);
+        
         PhylogenyTreeNode newNode = new PhylogenyTreeNode(
                 childEdgesWithPValue,
                 node.getStrains());
@@ -185,4 +289,135 @@ public class PhylogenySignificanceTester
                     phylogenyEdge.getEdgeLength(),
                     significanceValue);
     }
+    
+    /**
+     * Calculate the sample variance from sums
+     */
+    private static double variance(int count, double sum, double sumOfSquares)
+    {
+        double variance = (sumOfSquares - sum * sum / count) / (count - 1);
+        
+        // rounding can push a zero variance slightly negative
+        return variance < 0.0 ? 0.0 : variance;
+    }
+    
+    /**
+     * The state shared by all of the edge tests in one tree
+     */
+    private static final class TreeTest
+    {
+        private final StrainDictionary strainDictionary;
+        
+        private final double meanOfMeans;
+        
+        private final PValueCalculator pValueCalculator = new PValueCalculator();
+        
+        private final StrainSums totalSums = new StrainSums();
+        
+        /**
+         * indexed by strain ID. used to catch strains that show up more
+         * than once in the tree
+         */
+        private final boolean[] strainsSeen;
+        
+        private boolean strainMissMatch = false;
+        
+        private final PhylogenyEdgePValueCache edgePValueCache;
+        
+        /**
+         * the p-values calculated for this tree. these are only added to
+         * the shared cache once we know that the tree's strains match
+         */
+        private final PhylogenyEdgePValueCache newEdgePValues;
+        
+        public TreeTest(
+                StrainDictionary strainDictionary,
+                double meanOfMeans,
+                PhylogenyEdgePValueCache edgePValueCache)
+        {
+            this.strainDictionary = strainDictionary;
+            this.meanOfMeans = meanOfMeans;
+            this.strainsSeen = new boolean[strainDictionary.getStrainCount()];
+            this.edgePValueCache = edgePValueCache;
+            this.newEdgePValues = edgePValueCache == null ?
+                    null : new PhylogenyEdgePValueCache(strainDictionary);
+        }
+        
+        /**
+         * Get the cached p-value for an edge
+         * @return
+         *          the p-value or null if there isn't one
+         */
+        public Double getCachedPValue(BitSet sdpBits, int inPhyloCount)
+        {
+            if(this.edgePValueCache == null || sdpBits == null)
+            {
+                return null;
+            }
+            else
+            {
+                return this.edgePValueCache.getPValue(sdpBits, inPhyloCount);
+            }
+        }
+        
+        /**
+         * Remember the p-value for an edge
+         */
+        public void cachePValue(BitSet sdpBits, int inPhyloCount, double pValue)
+        {
+            if(this.newEdgePValues != null && sdpBits != null)
+            {
+                this.newEdgePValues.putPValue(sdpBits, inPhyloCount, pValue);
+            }
+        }
+        
+        /**
+         * Translate the given strain names to IDs and add their centered
+         * means to the sums
+         */
+        public void addStrains(List<String> strainNames, StrainSums sums)
+        {
+            for(String strain: strainNames)
+            {
+                int strainIndex = this.strainDictionary.getStrainIndex(strain);
+                if(strainIndex == -1 || this.strainsSeen[strainIndex])
+                {
+                    this.strainMissMatch = true;
+                }
+                else
+                {
+                    this.strainsSeen[strainIndex] = true;
+                    sums.add(
+                            this.strainDictionary.getStrainMean(strainIndex) -
+                            this.meanOfMeans);
+                }
+            }
+        }
+    }
+    
+    /**
+     * The count, sum and sum of squares of the strain means in a subtree
+     */
+    private static final class StrainSums
+    {
+        private int count = 0;
+        
+        private double sum = 0.0;
+        
+        private double sumOfSquares = 0.0;
+        
+        public void add(double value)
+        {
+            this.count++;
+            this.sum += value;
+            this.sumOfSquares += value * value;
+        }
+        
+        public void add(StrainSums other)
+        {
+            this.count += other.count;
+            this.sum += other.sum;
+            this.sumOfSquares += other.sumOfSquares;
+        }
+    }
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.haplotype.analysis;
+
+import java.io.IOException;
+
+/**
+ * Receives scan p-values in SNP order as they are calculated so that scans
+ * don't have to hold the results for the whole genome in memory
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public interface ScanResultWriter
+{
+    /**
+     * Write the p-values for the next SNPs
+     * @param pValues
+     *          the p-values with one array per phenotype column (in the
+     *          same order as the writer's columns)
+     * @param offset
+     *          the index of the first SNP to write within each array
+     * @param count
+     *          the number of SNPs to write
+     * @throws IOException
+     *          if the write fails
+     */
+    public void writePValues(double[][] pValues, int offset, int count) throws IOException;
+    
+    /**
+     * Flush and close this writer
+     * @throws IOException
+     *          if the close fails
+     */
+    public void close() throws IOException;
+}
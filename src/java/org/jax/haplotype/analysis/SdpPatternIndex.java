@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.haplotype.analysis;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups SNPs by their strain distribution pattern. In inbred strain
+ * panels long runs of SNPs share a pattern and since the scan statistics
+ * only depend on the pattern each unique pattern only needs to be tested
+ * once. The unique patterns are kept in a {@link PackedGenotypeMatrix}
+ * (in order of first appearance) and every SNP remembers the index of its
+ * pattern so that test results can be fanned back out with
+ * {@link #expandPValues(double[])}.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class SdpPatternIndex
+{
+    private final int strainCount;
+    
+    private final Map<BitSet, Integer> uniquePatternIndices =
+        new HashMap<BitSet, Integer>();
+    
+    private final List<BitSet> uniquePatternList = new ArrayList<BitSet>();
+    
+    private final PackedGenotypeMatrix uniquePatterns;
+    
+    private int[] snpPatternIndices;
+    
+    private int snpCount = 0;
+    
+    /**
+     * Constructor
+     * @param strainCount
+     *          the number of strains in each SDP
+     * @param snpCapacity
+     *          the number of SNPs to allocate space for up front. The index
+     *          grows if more SNPs than this are added
+     */
+    public SdpPatternIndex(int strainCount, int snpCapacity)
+    {
+        this.strainCount = strainCount;
+        this.uniquePatterns = new PackedGenotypeMatrix(strainCount, 0);
+        this.snpPatternIndices = new int[Math.max(0, snpCapacity)];
+    }
+    
+    /**
+     * Getter for the strain count
+     * @return the strainCount
+     */
+    public int getStrainCount()
+    {
+        return this.strainCount;
+    }
+    
+    /**
+     * Get the number of SNPs added
+     * @return
+     *          the SNP count
+     */
+    public int getSnpCount()
+    {
+        return this.snpCount;
+    }
+    
+    /**
+     * Get the number of distinct patterns among the SNPs added
+     * @return
+     *          the unique pattern count
+     */
+    public int getUniquePatternCount()
+    {
+        return this.uniquePatternList.size();
+    }
+    
+    /**
+     * Get the unique patterns where strains whose bit is set have an A call
+     * (1.0) and the others have a B call (0.0)
+     * @return
+     *          the unique patterns in order of first appearance
+     */
+    public PackedGenotypeMatrix getUniquePatterns()
+    {
+        return this.uniquePatterns;
+    }
+    
+    /**
+     * Add the next SNP
+     * @param sdp
+     *          the SNP's strain distribution pattern. bits past the strain
+     *          count are ignored
+     */
+    public void addSdp(BitSet sdp)
+    {
+        if(sdp.length() > this.strainCount)
+        {
+            sdp = sdp.get(0, this.strainCount);
+        }
+        
+        Integer patternIndex = this.uniquePatternIndices.get(sdp);
+        if(patternIndex == null)
+        {
+            // copy since the caller is free to reuse the bit set
+            BitSet pattern = (BitSet)sdp.clone();
+            patternIndex = this.uniquePatternList.size();
+            this.uniquePatternIndices.put(pattern, patternIndex);
+            this.uniquePatternList.add(pattern);
+            this.uniquePatterns.addSdp(pattern);
+        }
+        
+        if(this.snpCount == this.snpPatternIndices.length)
+        {
+            int newCapacity = Math.max(16, this.snpCount + (this.snpCount >> 1));
+            int[] newIndices = new int[newCapacity];
+            System.arraycopy(this.snpPatternIndices, 0, newIndices, 0, this.snpCount);
+            this.snpPatternIndices = newIndices;
+        }
+        this.snpPatternIndices[this.snpCount] = patternIndex.intValue();
+        this.snpCount++;
+    }
+    
+    /**
+     * Fan the results for the unique patterns back out to every SNP
+     * @param uniquePValues
+     *          the p-value for each unique pattern
+     * @return
+     *          the p-value for each SNP
+     */
+    public double[] expandPValues(double[] uniquePValues)
+    {
+        double[] pValues = new double[this.snpCount];
+        for(int snpIndex = 0; snpIndex < this.snpCount; snpIndex++)
+        {
+            pValues[snpIndex] = uniquePValues[this.snpPatternIndices[snpIndex]];
+        }
+        
+        return pValues;
+    }
+    
+    /**
+     * Add every SNP (not just the unique patterns) to the given kinship
+     * calculator
+     * @param kinshipCalculator
+     *          the kinship calculator
+     */
+    public void addSdpsTo(BitPackedKinshipCalculator kinshipCalculator)
+    {
+        for(int snpIndex = 0; snpIndex < this.snpCount; snpIndex++)
+        {
+            kinshipCalculator.addSdp(this.uniquePatternList.get(
+                    this.snpPatternIndices[snpIndex]));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.haplotype.analysis;
+
+/**
+ * Holds the identifying columns (SNP ID, chromosome and base pair position)
+ * for a block of consecutive SNPs. Any of the columns can be missing in
+ * which case its getter returns null.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class SnpIdentifiers
+{
+    private final String[] snpIds;
+    
+    private final String[] chromosomes;
+    
+    private final long[] positions;
+    
+    private int snpCount = 0;
+    
+    /**
+     * Constructor
+     * @param capacity
+     *          the maximum number of SNPs held at once
+     * @param hasSnpIds
+     *          true if SNP IDs are held
+     * @param hasChromosomes
+     *          true if chromosomes are held
+     * @param hasPositions
+     *          true if positions are held
+     */
+    public SnpIdentifiers(
+            int capacity,
+            boolean hasSnpIds,
+            boolean hasChromosomes,
+            boolean hasPositions)
+    {
+        this.snpIds = hasSnpIds ? new String[capacity] : null;
+        this.chromosomes = hasChromosomes ? new String[capacity] : null;
+        this.positions = hasPositions ? new long[capacity] : null;
+    }
+    
+    /**
+     * Get the number of SNPs that can be held
+     * @return
+     *          the capacity
+     */
+    public int getCapacity()
+    {
+        if(this.snpIds != null)
+        {
+            return this.snpIds.length;
+        }
+        else if(this.chromosomes != null)
+        {
+            return this.chromosomes.length;
+        }
+        else if(this.positions != null)
+        {
+            return this.positions.length;
+        }
+        else
+        {
+            return Integer.MAX_VALUE;
+        }
+    }
+    
+    /**
+     * Get the number of SNPs currently held
+     * @return the snpCount
+     */
+    public int getSnpCount()
+    {
+        return this.snpCount;
+    }
+    
+    /**
+     * Setter for the number of SNPs currently held
+     * @param snpCount the snpCount to set
+     */
+    public void setSnpCount(int snpCount)
+    {
+        this.snpCount = snpCount;
+    }
+    
+    /**
+     * Getter for the SNP IDs
+     * @return the SNP IDs or null if they aren't held
+     */
+    public String[] getSnpIds()
+    {
+        return this.snpIds;
+    }
+    
+    /**
+     * Getter for the chromosomes
+     * @return the chromosomes or null if they aren't held
+     */
+    public String[] getChromosomes()
+    {
+        return this.chromosomes;
+    }
+    
+    /**
+     * Getter for the base pair positions. Missing positions are -1
+     * @return the positions or null if they aren't held
+     */
+    public long[] getPositions()
+    {
+        return this.positions;
+    }
+}
@@ -5,25 +5,21 @@
  * it under the terms of the GNU General Public License as published by
  * the Free Software Foundation, either version 3 of the License, or
  * (at your option) any later version.
- *
+ * 
  * This software is distributed in the hope that it will be useful,
  * but WITHOUT ANY WARRANTY; without even the implied warranty of
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
  * GNU General Public License for more details.
- *
+ * 
  * You should have received a copy of the GNU General Public License
  * along with this software.  If not, see <http://www.gnu.org/licenses/>.
  */
 
 package org.jax.haplotype.analysis;
 
-import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
-import org.apache.commons.math.MathException;
-import org.apache.commons.math.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math.stat.inference.TTest;
-import org.apache.commons.math.stat.inference.TTestImpl;
 import org.jax.geneticutil.data.BinaryStrainPartition;
 import org.jax.geneticutil.data.PartitionedIntervalSet;
 import org.jax.util.math.StatisticUtilities;
@@ -34,10 +30,31 @@ import org.jax.util.math.StatisticUtilities;
  */
 public class StrainBinaryPartitionSignificanceTester
 {
+    private volatile ExecutorService executor = null;
+    
     /**
-     * T-Test for significance
+     * Getter for the executor
+     * @return
+     *          the executor that partitions are tested on or null if they
+     *          are tested on the calling thread
      */
-    private final TTest tTester = new TTestImpl();
+    public ExecutorService getExecutor()
+    {
+        return this.executor;
+    }
+    
+    /**
+     * Setter for the executor. When set, large partition lists are split
+     * into chunks which are tested concurrently on the executor. The
+     * p-values are identical to the ones calculated on a single thread.
+     * The caller owns the executor and is responsible for shutting it down
+     * @param executor
+     *          the executor or null to test on the calling thread
+     */
+    public void setExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
     
     /**
      * Test the significance of the given responses
@@ -80,90 +97,130 @@ public class StrainBinaryPartitionSignificanceTester
      */
     public double[] tTestSingleResponseSignificance(
             List<? extends BinaryStrainPartition> strainPartitions,
-            double[] strainResponses)
+            final double[] strainResponses)
     {
-        double[] significanceValues =
-            new double[strainPartitions.size()];
-        for(int currPartitionIndex = 0;
-            currPartitionIndex < strainPartitions.size();
-            currPartitionIndex++)
-        {
-            BinaryStrainPartition currPartition =
-                strainPartitions.get(currPartitionIndex);
-            
-            // segregate the responses
-            BitSet currStrainBitSet = currPartition.getStrainBitSet();
-            int currStrainCount = currStrainBitSet.cardinality();
-            double[] insidePartitionResponses =
-                new double[currStrainCount];
-            double[] outsidePartitionResponses =
-                new double[strainResponses.length - currStrainCount];
-            
-            int currInsidePartitionCursor = 0;
-            int currOutsidePartitionCursor = 0;
-            for(int responseIndex = 0;
-                responseIndex < strainResponses.length;
-                responseIndex++)
-            {
-                if(currStrainBitSet.get(responseIndex))
-                {
-                    // this response is in the partition
-                    insidePartitionResponses[currInsidePartitionCursor] =
-                        strainResponses[responseIndex];
-                    currInsidePartitionCursor++;
-                }
-                else
-                {
-                    // this response is outside the partition
-                    outsidePartitionResponses[currOutsidePartitionCursor] =
-                        strainResponses[responseIndex];
-                    currOutsidePartitionCursor++;
-                }
-            }
-            
-            assert currInsidePartitionCursor == insidePartitionResponses.length;
-            assert currOutsidePartitionCursor == outsidePartitionResponses.length;
-            
-            // perform t-test on segregated responses
-            if(insidePartitionResponses.length <= 2 ||
-               outsidePartitionResponses.length <= 2)
-            {
-                significanceValues[currPartitionIndex] = 1.0;
-            }
-            else
-            {
-                DescriptiveStatistics insidePartitionResponseSummary =
-                    new DescriptiveStatistics();
-                for(double currInsideResponseValue: insidePartitionResponses)
-                {
-                    insidePartitionResponseSummary.addValue(currInsideResponseValue);
-                }
-                
-                DescriptiveStatistics outsidePartitionResponseSummary =
-                    new DescriptiveStatistics();
-                for(double currOutsideResponseValue: outsidePartitionResponses)
-                {
-                    outsidePartitionResponseSummary.addValue(currOutsideResponseValue);
-                }
-                
-                try
+        // partitions that share strains share a p-value so each distinct
+        // pattern is only tested once
+        int[] partitionPatterns = new int[strainPartitions.size()];
+        final PackedStrainPartition[] patterns = indexPatterns(
+                strainPartitions,
+                strainResponses.length,
+                partitionPatterns);
+        final double[] patternPValues = new double[patterns.length];
+        PartitionTestRunner.testPartitions(
+                this.executor,
+                patternPValues.length,
+                new PartitionTestRunner.ChunkTest()
                 {
-                    double pValue = this.tTester.tTest(
-                            insidePartitionResponseSummary,
-                            outsidePartitionResponseSummary);
-                    
-                    significanceValues[currPartitionIndex] = pValue;
-                }
-                catch(MathException ex)
+                    @Override
+                    public void testChunk(int startPattern, int endPattern)
+                    {
+                        WelchTTestKernel tTestKernel =
+                            new WelchTTestKernel(strainResponses);
+                        for(int i = startPattern; i < endPattern; i++)
+                        {
+                            patternPValues[i] = tTestKernel.tTest(patterns[i]);
+                        }
+                    }
+                });
+        
+        double[] significanceValues = new double[partitionPatterns.length];
+        for(int i = 0; i < significanceValues.length; i++)
+        {
+            significanceValues[i] = patternPValues[partitionPatterns[i]];
+        }
+        
+        return significanceValues;
+    }
+    
+    /**
+     * Test the significance of the given partitions against a panel of
+     * phenotypes in a single pass over the partitions. This gives the same
+     * p-values as calling
+     * {@link #tTestSingleResponseSignificance(List, double[])} once per
+     * phenotype
+     * @param strainPartitions
+     *          the partitions to test
+     * @param strainPhenotypeResponses
+     *          the responses. major index is for strains minor index is
+     *          for phenotypes. every strain needs a response for every
+     *          phenotype
+     * @return
+     *          test p-values. the major index is for partitions (as long
+     *          as the input partitions) and the minor index is for
+     *          phenotypes
+     */
+    public double[][] tTestMultiplePhenotypeSignificance(
+            List<? extends BinaryStrainPartition> strainPartitions,
+            final double[][] strainPhenotypeResponses)
+    {
+        final int phenotypeCount = strainPhenotypeResponses.length == 0 ?
+                0 : strainPhenotypeResponses[0].length;
+        int[] partitionPatterns = new int[strainPartitions.size()];
+        final PackedStrainPartition[] patterns = indexPatterns(
+                strainPartitions,
+                strainPhenotypeResponses.length,
+                partitionPatterns);
+        final double[][] patternPValues =
+            new double[patterns.length][phenotypeCount];
+        PartitionTestRunner.testPartitions(
+                this.executor,
+                patternPValues.length,
+                new PartitionTestRunner.ChunkTest()
                 {
-                    throw new IllegalStateException(ex);
-                }
-            }
+                    @Override
+                    public void testChunk(int startPattern, int endPattern)
+                    {
+                        WelchTTestKernel tTestKernel =
+                            new WelchTTestKernel(strainPhenotypeResponses);
+                        for(int i = startPattern; i < endPattern; i++)
+                        {
+                            tTestKernel.tTest(patterns[i], patternPValues[i]);
+                        }
+                    }
+                });
+        
+        double[][] significanceValues = new double[partitionPatterns.length][];
+        for(int i = 0; i < significanceValues.length; i++)
+        {
+            significanceValues[i] = patternPValues[partitionPatterns[i]].clone();
         }
         
         return significanceValues;
     }
     
+    /**
+     * Find the distinct strain patterns of the given partitions
+     * @param strainPartitions
+     *          the partitions
+     * @param strainCount
+     *          the number of strains
+     * @param partitionPatterns
+     *          filled in with the pattern index of each partition
+     * @return
+     *          the distinct patterns packed for testing
+     */
+    private static PackedStrainPartition[] indexPatterns(
+            List<? extends BinaryStrainPartition> strainPartitions,
+            int strainCount,
+            int[] partitionPatterns)
+    {
+        BitPatternIndex patternIndex = new BitPatternIndex(strainCount);
+        for(int i = 0; i < partitionPatterns.length; i++)
+        {
+            partitionPatterns[i] = patternIndex.add(
+                    strainPartitions.get(i).getStrainBitSet());
+        }
+        
+        PackedStrainPartition[] patterns =
+            new PackedStrainPartition[patternIndex.getPatternCount()];
+        for(int i = 0; i < patterns.length; i++)
+        {
+            patterns[i] = patternIndex.getPattern(i);
+        }
+        return patterns;
+    }
+    
     /**
      * Test the significance of the given responses
      * @param genomicPartitions
@@ -203,89 +260,46 @@ public class StrainBinaryPartitionSignificanceTester
      */
     public double[] normalizedTestSingleResponseSignificance(
             List<? extends PartitionedIntervalSet> genomicPartitions,
-            double[] strainResponses)
+            final double[] strainResponses)
     {
-        double[] sinificanceValues =
-            new double[genomicPartitions.size()];
-        for(int currPartitionIndex = 0;
-            currPartitionIndex < genomicPartitions.size();
-            currPartitionIndex++)
-        {
-            BinaryStrainPartition currPartition =
-                genomicPartitions.get(currPartitionIndex);
-            
-            // segregate the responses
-            BitSet currPartitionStrainBitSet = currPartition.getStrainBitSet();
-            int currPartitionChromoCount = currPartitionStrainBitSet.cardinality();
-            double[] insidePartitionResponses =
-                new double[currPartitionChromoCount];
-            double[] outsidePartitionResponses =
-                new double[strainResponses.length - currPartitionChromoCount];
-            
-            int currInsidePartitionCursor = 0;
-            int currOutsidePartitionCursor = 0;
-            for(int responseIndex = 0;
-                responseIndex < strainResponses.length;
-                responseIndex++)
-            {
-                if(currPartitionStrainBitSet.get(responseIndex))
-                {
-                    // this response is in the partition
-                    insidePartitionResponses[currInsidePartitionCursor] =
-                        strainResponses[responseIndex];
-                    currInsidePartitionCursor++;
-                }
-                else
+        // partitions that share strains share a t-test so each distinct
+        // pattern is only tested once
+        int[] partitionPatterns = new int[genomicPartitions.size()];
+        final PackedStrainPartition[] patterns = indexPatterns(
+                genomicPartitions,
+                strainResponses.length,
+                partitionPatterns);
+        final double[] patternPValues = new double[patterns.length];
+        final boolean[] patternsTestable = new boolean[patterns.length];
+        PartitionTestRunner.testPartitions(
+                this.executor,
+                patternPValues.length,
+                new PartitionTestRunner.ChunkTest()
                 {
-                    // this response is outside the partition
-                    outsidePartitionResponses[currOutsidePartitionCursor] =
-                        strainResponses[responseIndex];
-                    currOutsidePartitionCursor++;
-                }
-            }
-            
-            assert currInsidePartitionCursor == insidePartitionResponses.length;
-            assert currOutsidePartitionCursor == outsidePartitionResponses.length;
-            
-            // perform t-test on segregated responses
-            if(insidePartitionResponses.length <= 2 ||
-               outsidePartitionResponses.length <= 2)
-            {
-                sinificanceValues[currPartitionIndex] = 1.0;
-            }
-            else
+                    @Override
+                    public void testChunk(int startPattern, int endPattern)
+                    {
+                        WelchTTestKernel tTestKernel =
+                            new WelchTTestKernel(strainResponses);
+                        for(int i = startPattern; i < endPattern; i++)
+                        {
+                            patternPValues[i] = tTestKernel.tTest(patterns[i]);
+                            patternsTestable[i] = tTestKernel.isTestable(patterns[i]);
+                        }
+                    }
+                });
+        
+        double[] sinificanceValues = new double[partitionPatterns.length];
+        for(int i = 0; i < sinificanceValues.length; i++)
+        {
+            int currPattern = partitionPatterns[i];
+            double pValue = patternPValues[currPattern];
+            if(patternsTestable[currPattern])
             {
-                DescriptiveStatistics insidePartitionResponseSummary =
-                    new DescriptiveStatistics();
-                for(double currInsideResponseValue: insidePartitionResponses)
-                {
-                    insidePartitionResponseSummary.addValue(currInsideResponseValue);
-                }
-                
-                DescriptiveStatistics outsidePartitionResponseSummary =
-                    new DescriptiveStatistics();
-                for(double currOutsideResponseValue: outsidePartitionResponses)
-                {
-                    outsidePartitionResponseSummary.addValue(currOutsideResponseValue);
-                }
-                
-                try
-                {
-                    double pValue = this.tTester.tTest(
-                            insidePartitionResponseSummary,
-                            outsidePartitionResponseSummary);
-                    
-                    // reduce the pValue relative to cumulative extent
-                    pValue /=
-                        genomicPartitions.get(currPartitionIndex).getCumulativeExtentInBasePairs();
-                    
-                    sinificanceValues[currPartitionIndex] = pValue;
-                }
-                catch(MathException ex)
-                {
-                    throw new IllegalStateException(ex);
-                }
+                // reduce the pValue relative to cumulative extent
+                pValue /= genomicPartitions.get(i).getCumulativeExtentInBasePairs();
             }
+            sinificanceValues[i] = pValue;
         }
         
         return sinificanceValues;
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.jax.util.math.StatisticUtilities;
+
+/**
+ * Maps strain names to dense integer IDs (0 to strain count - 1) and holds
+ * the mean response of each strain in an array indexed by strain ID. This
+ * is built once per phenotype so that testing many phylogenies against the
+ * same phenotype only has to translate strain names to IDs and never
+ * recalculates strain means.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class StrainDictionary
+{
+    private final Map<String, Integer> strainIndices;
+    
+    private final String[] strainNames;
+    
+    private final double[] strainMeans;
+    
+    /**
+     * Constructor
+     * @param phenotypeData
+     *          the strain name to phenotype data map. Strain IDs are
+     *          assigned in the map's iteration order
+     */
+    public StrainDictionary(Map<String, List<Double>> phenotypeData)
+    {
+        int strainCount = phenotypeData.size();
+        this.strainIndices = new HashMap<String, Integer>(strainCount * 2);
+        this.strainNames = new String[strainCount];
+        this.strainMeans = new double[strainCount];
+        
+        int strainIndex = 0;
+        for(Entry<String, List<Double>> entry: phenotypeData.entrySet())
+        {
+            this.strainIndices.put(entry.getKey(), strainIndex);
+            this.strainNames[strainIndex] = entry.getKey();
+            this.strainMeans[strainIndex] = StatisticUtilities.calculateMean(
+                    entry.getValue());
+            strainIndex++;
+        }
+    }
+    
+    /**
+     * Get the number of strains
+     * @return
+     *          the strain count
+     */
+    public int getStrainCount()
+    {
+        return this.strainNames.length;
+    }
+    
+    /**
+     * Get the ID for the given strain
+     * @param strainName
+     *          the strain name
+     * @return
+     *          the strain's ID or -1 if the strain isn't in this dictionary
+     */
+    public int getStrainIndex(String strainName)
+    {
+        Integer strainIndex = this.strainIndices.get(strainName);
+        return strainIndex == null ? -1 : strainIndex.intValue();
+    }
+    
+    /**
+     * Get the name of the strain with the given ID
+     * @param strainIndex
+     *          the strain ID
+     * @return
+     *          the strain name
+     */
+    public String getStrainName(int strainIndex)
+    {
+        return this.strainNames[strainIndex];
+    }
+    
+    /**
+     * Determine if the given strain is in this dictionary
+     * @param strainName
+     *          the strain name
+     * @return
+     *          true if it is
+     */
+    public boolean containsStrain(String strainName)
+    {
+        return this.strainIndices.containsKey(strainName);
+    }
+    
+    /**
+     * Get the mean response of the strain with the given ID
+     * @param strainIndex
+     *          the strain ID
+     * @return
+     *          the mean
+     */
+    public double getStrainMean(int strainIndex)
+    {
+        return this.strainMeans[strainIndex];
+    }
+}
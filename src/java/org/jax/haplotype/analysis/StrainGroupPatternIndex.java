@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Assigns a dense index (in order of first appearance) to each distinct
+ * grouping of strains. Group labels are arbitrary so groupings are first
+ * put in canonical form by relabeling the groups 0, 1, 2... in the order
+ * that they first appear. Two partitions that split the strains the same
+ * way but with different labels then get the same index. Like
+ * {@link BitPatternIndex} the canonical patterns are stored flat and
+ * looked up in an open addressing table of ints so nothing is allocated
+ * for a repeated grouping.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class StrainGroupPatternIndex
+{
+    private static final int INITIAL_TABLE_SIZE = 1024;
+    
+    private static final int LABEL_COUNT = 1 << Short.SIZE;
+    
+    private final int strainCount;
+    
+    /**
+     * the canonical groups for pattern i are at
+     * [i * strainCount, (i + 1) * strainCount)
+     */
+    private short[] patternGroups;
+    
+    private int[] patternHashes;
+    
+    private int patternCount = 0;
+    
+    /**
+     * open addressing table holding pattern index + 1 (0 means empty).
+     * The size is a power of two and is kept at least twice the pattern
+     * count
+     */
+    private int[] table = new int[INITIAL_TABLE_SIZE];
+    
+    /**
+     * scratch space for the canonical form of the grouping being looked up
+     */
+    private final short[] canonicalGroups;
+    
+    /**
+     * the canonical label for each original label (offset by
+     * -Short.MIN_VALUE). an entry is only valid if its stamp matches
+     * {@link #currentStamp} which saves clearing the map for every lookup
+     */
+    private final short[] canonicalLabels = new short[LABEL_COUNT];
+    
+    private final int[] canonicalLabelStamps = new int[LABEL_COUNT];
+    
+    /**
+     * the stamp for the current lookup. This is package visible so that
+     * tests can push it up to the point where it wraps around
+     */
+    int currentStamp = 0;
+    
+    /**
+     * Constructor
+     * @param strainCount
+     *          the number of strains in each grouping
+     */
+    public StrainGroupPatternIndex(int strainCount)
+    {
+        this.strainCount = strainCount;
+        this.canonicalGroups = new short[strainCount];
+        this.patternGroups = new short[INITIAL_TABLE_SIZE / 2 * strainCount];
+        this.patternHashes = new int[INITIAL_TABLE_SIZE / 2];
+    }
+    
+    /**
+     * Get the number of distinct groupings
+     * @return
+     *          the pattern count
+     */
+    public int getPatternCount()
+    {
+        return this.patternCount;
+    }
+    
+    /**
+     * Get the canonical form of one of the groupings
+     * @param patternIndex
+     *          the index of the pattern (see {@link #add(short[])})
+     * @return
+     *          a copy of the grouping with groups labeled in order of
+     *          first appearance
+     */
+    public short[] getPattern(int patternIndex)
+    {
+        short[] groups = new short[this.strainCount];
+        System.arraycopy(
+                this.patternGroups,
+                patternIndex * this.strainCount,
+                groups,
+                0,
+                this.strainCount);
+        return groups;
+    }
+    
+    /**
+     * Get the index of the given grouping adding it if we haven't seen it
+     * (or a relabeling of it) before. This isn't thread safe
+     * @param strainGroups
+     *          the group of each strain
+     * @return
+     *          the index of the grouping
+     * @throws IllegalArgumentException
+     *          if the grouping doesn't have one group per strain
+     */
+    public int add(short[] strainGroups)
+    {
+        if(strainGroups.length != this.strainCount)
+        {
+            throw new IllegalArgumentException(
+                    "Expect the strain group array length to match the strain " +
+                    "count but " + strainGroups.length + " and " +
+                    this.strainCount + " do not match");
+        }
+        
+        this.canonicalize(strainGroups);
+        
+        final short[] groups = this.canonicalGroups;
+        final int hash = hash(groups);
+        final int mask = this.table.length - 1;
+        for(int slot = hash & mask; ; slot = (slot + 1) & mask)
+        {
+            int entry = this.table[slot];
+            if(entry == 0)
+            {
+                int patternIndex = this.addPattern(groups, hash);
+                this.table[slot] = patternIndex + 1;
+                if(this.patternCount * 2 > this.table.length)
+                {
+                    this.growTable();
+                }
+                return patternIndex;
+            }
+            else if(this.patternHashes[entry - 1] == hash &&
+                    this.patternEquals(entry - 1, groups))
+            {
+                return entry - 1;
+            }
+        }
+    }
+    
+    /**
+     * Relabel the groups in order of first appearance into
+     * {@link #canonicalGroups}
+     */
+    private void canonicalize(short[] strainGroups)
+    {
+        this.currentStamp++;
+        if(this.currentStamp == 0)
+        {
+            // the stamp wrapped around so old entries could look valid
+            Arrays.fill(this.canonicalLabelStamps, 0);
+            this.currentStamp = 1;
+        }
+        
+        final int stamp = this.currentStamp;
+        final short[] labels = this.canonicalLabels;
+        final int[] stamps = this.canonicalLabelStamps;
+        short nextLabel = 0;
+        for(int i = 0; i < strainGroups.length; i++)
+        {
+            final int labelIndex = strainGroups[i] - Short.MIN_VALUE;
+            if(stamps[labelIndex] != stamp)
+            {
+                stamps[labelIndex] = stamp;
+                labels[labelIndex] = nextLabel;
+                nextLabel++;
+            }
+            this.canonicalGroups[i] = labels[labelIndex];
+        }
+    }
+    
+    private boolean patternEquals(int patternIndex, short[] groups)
+    {
+        final int offset = patternIndex * this.strainCount;
+        for(int i = 0; i < groups.length; i++)
+        {
+            if(this.patternGroups[offset + i] != groups[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private int addPattern(short[] groups, int hash)
+    {
+        final int patternIndex = this.patternCount;
+        if(patternIndex == this.patternHashes.length)
+        {
+            int newCapacity = patternIndex * 2;
+            short[] newPatternGroups = new short[newCapacity * this.strainCount];
+            System.arraycopy(
+                    this.patternGroups,
+                    0,
+                    newPatternGroups,
+                    0,
+                    patternIndex * this.strainCount);
+            this.patternGroups = newPatternGroups;
+            
+            int[] newPatternHashes = new int[newCapacity];
+            System.arraycopy(this.patternHashes, 0, newPatternHashes, 0, patternIndex);
+            this.patternHashes = newPatternHashes;
+        }
+        
+        System.arraycopy(
+                groups,
+                0,
+                this.patternGroups,
+                patternIndex * this.strainCount,
+                groups.length);
+        this.patternHashes[patternIndex] = hash;
+        this.patternCount++;
+        return patternIndex;
+    }
+    
+    private void growTable()
+    {
+        final int[] newTable = new int[this.table.length * 2];
+        final int mask = newTable.length - 1;
+        for(int patternIndex = 0; patternIndex < this.patternCount; patternIndex++)
+        {
+            int slot = this.patternHashes[patternIndex] & mask;
+            while(newTable[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = patternIndex + 1;
+        }
+        this.table = newTable;
+    }
+    
+    private static int hash(short[] groups)
+    {
+        long hash = 0L;
+        for(int i = 0; i < groups.length; i++)
+        {
+            hash = (hash ^ groups[i]) * 0x9E3779B97F4A7C15L;
+        }
+        
+        // mix the high bits down since the table only uses the low ones
+        hash ^= hash >>> 32;
+        hash ^= hash >>> 16;
+        return (int)hash;
+    }
+}
@@ -5,28 +5,22 @@
  * it under the terms of the GNU General Public License as published by
  * the Free Software Foundation, either version 3 of the License, or
  * (at your option) any later version.
- *
+ * 
  * This software is distributed in the hope that it will be useful,
  * but WITHOUT ANY WARRANTY; without even the implied warranty of
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
  * GNU General Public License for more details.
- *
+ * 
  * You should have received a copy of the GNU General Public License
  * along with this software.  If not, see <http://www.gnu.org/licenses/>.
  */
 
 package org.jax.haplotype.analysis;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
-import org.apache.commons.math.MathException;
-import org.apache.commons.math.stat.inference.OneWayAnova;
-import org.apache.commons.math.stat.inference.OneWayAnovaImpl;
 import org.jax.geneticutil.data.MultiGroupStrainPartition;
-import org.jax.util.datastructure.SequenceUtilities;
 import org.jax.util.math.StatisticUtilities;
 
 /**
@@ -35,7 +29,31 @@ import org.jax.util.math.StatisticUtilities;
  */
 public class StrainMultiPartitionSignificanceTester
 {
-    private final OneWayAnova oneWayAnova = new OneWayAnovaImpl();
+    private volatile ExecutorService executor = null;
+    
+    /**
+     * Getter for the executor
+     * @return
+     *          the executor that partitions are tested on or null if they
+     *          are tested on the calling thread
+     */
+    public ExecutorService getExecutor()
+    {
+        return this.executor;
+    }
+    
+    /**
+     * Setter for the executor. When set, large partition lists are split
+     * into chunks which are tested concurrently on the executor. The
+     * p-values are identical to the ones calculated on a single thread.
+     * The caller owns the executor and is responsible for shutting it down
+     * @param executor
+     *          the executor or null to test on the calling thread
+     */
+    public void setExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
     
     /**
      * Test the significance of the given responses
@@ -78,72 +96,73 @@ public class StrainMultiPartitionSignificanceTester
      */
     public double[] fTestSingleResponseSignificance(
             List<? extends MultiGroupStrainPartition> strainPartitions,
-            double[] strainResponses)
+            final double[] strainResponses)
     {
-        double[] significanceValues =
-            new double[strainPartitions.size()];
-        for(int currPartitionIndex = 0;
-            currPartitionIndex < strainPartitions.size();
-            currPartitionIndex++)
-        {
-            MultiGroupStrainPartition currPartition =
-                strainPartitions.get(currPartitionIndex);
-            
-            // segregate the responses
-            short[] strainGroups = currPartition.getStrainGroups();
-            if(strainGroups.length != strainResponses.length)
-            {
-                throw new IllegalArgumentException(
-                        "Expect the strain group array length to match the strain " +
-                        "response count but " + strainGroups.length + " and " +
-                        strainResponses.length + " do not match");
-            }
-            
-            Map<Short, List<Double>> segregatedResponseLists =
-                new HashMap<Short, List<Double>>();
-            for(int i = 0; i < strainGroups.length; i++)
-            {
-                List<Double> groupResponses =
-                    segregatedResponseLists.get(strainGroups[i]);
-                if(groupResponses == null)
-                {
-                    groupResponses = new ArrayList<Double>();
-                    segregatedResponseLists.put(strainGroups[i], groupResponses);
-                }
-                
-                groupResponses.add(strainResponses[i]);
-            }
-            
-            List<double[]> segregatedResponses = new ArrayList<double[]>(
-                    segregatedResponseLists.size());
-            for(List<Double> groupResponses: segregatedResponseLists.values())
-            {
-                if(groupResponses.size() >= 2)
-                {
-                    segregatedResponses.add(SequenceUtilities.toDoubleArray(
-                            groupResponses));
-                }
-            }
-            
-            // perform F-test on segregated responses
-            if(segregatedResponses.size() < 2)
-            {
-                significanceValues[currPartitionIndex] = 1.0;
-            }
-            else
-            {
-                try
-                {
-                    significanceValues[currPartitionIndex] =
-                        this.oneWayAnova.anovaPValue(segregatedResponses);
-                }
-                catch(MathException ex)
+        // partitions along a chromosome often group the strains the same
+        // way with different labels so only F-test each canonical grouping
+        // once
+        int[] partitionPatterns = new int[strainPartitions.size()];
+        final short[][] patterns = indexPatterns(
+                strainPartitions,
+                strainResponses.length,
+                partitionPatterns);
+        final double[] patternPValues = new double[patterns.length];
+        PartitionTestRunner.testPartitions(
+                this.executor,
+                patternPValues.length,
+                new PartitionTestRunner.ChunkTest()
                 {
-                    throw new IllegalStateException(ex);
-                }
-            }
+                    @Override
+                    public void testChunk(int startPattern, int endPattern)
+                    {
+                        OneWayAnovaKernel anovaKernel =
+                            new OneWayAnovaKernel(strainResponses);
+                        for(int i = startPattern; i < endPattern; i++)
+                        {
+                            patternPValues[i] = anovaKernel.fTest(patterns[i]);
+                        }
+                    }
+                });
+        
+        double[] significanceValues = new double[partitionPatterns.length];
+        for(int i = 0; i < significanceValues.length; i++)
+        {
+            significanceValues[i] = patternPValues[partitionPatterns[i]];
         }
         
         return significanceValues;
     }
+    
+    /**
+     * Find the distinct strain groupings of the given partitions ignoring
+     * group labels
+     * @param strainPartitions
+     *          the partitions
+     * @param strainCount
+     *          the number of strains
+     * @param partitionPatterns
+     *          filled in with the pattern index of each partition
+     * @return
+     *          the distinct groupings in canonical form
+     */
+    private static short[][] indexPatterns(
+            List<? extends MultiGroupStrainPartition> strainPartitions,
+            int strainCount,
+            int[] partitionPatterns)
+    {
+        StrainGroupPatternIndex patternIndex =
+            new StrainGroupPatternIndex(strainCount);
+        for(int i = 0; i < partitionPatterns.length; i++)
+        {
+            partitionPatterns[i] = patternIndex.add(
+                    strainPartitions.get(i).getStrainGroups());
+        }
+        
+        short[][] patterns = new short[patternIndex.getPatternCount()][];
+        for(int i = 0; i < patterns.length; i++)
+        {
+            patterns[i] = patternIndex.getPattern(i);
+        }
+        return patterns;
+    }
 }
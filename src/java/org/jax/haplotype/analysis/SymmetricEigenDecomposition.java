@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jax.haplotype.analysis;
+
+/**
+ * Eigen decomposition of a real symmetric matrix using Householder
+ * tridiagonalization followed by the implicit QL algorithm (the tred2 and
+ * tql2 routines from EISPACK as adapted by the public domain JAMA
+ * package). Eigenvalues are sorted in ascending order.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class SymmetricEigenDecomposition
+{
+    private final int size;
+    
+    /**
+     * the eigenvalues in ascending order
+     */
+    private final double[] eigenvalues;
+    
+    /**
+     * the eigenvectors as columns: element i of eigenvector j is at
+     * index i * size + j
+     */
+    private final double[] eigenvectors;
+    
+    /**
+     * the off diagonal of the tridiagonal matrix (working storage)
+     */
+    private final double[] offDiagonal;
+    
+    /**
+     * Constructor
+     * @param matrix
+     *          the flattened row-major symmetric matrix. only the lower
+     *          triangle is read and the array is not modified
+     * @param size
+     *          the number of rows (and columns) in the matrix
+     */
+    public SymmetricEigenDecomposition(double[] matrix, int size)
+    {
+        if(matrix.length != size * size)
+        {
+            throw new IllegalArgumentException(
+                    "expected a " + size + "x" + size + " matrix but the " +
+                    "array length is " + matrix.length);
+        }
+        
+        this.size = size;
+        this.eigenvalues = new double[size];
+        this.offDiagonal = new double[size];
+        this.eigenvectors = new double[size * size];
+        System.arraycopy(matrix, 0, this.eigenvectors, 0, matrix.length);
+        
+        this.tridiagonalize();
+        this.diagonalize();
+    }
+    
+    /**
+     * Getter for the matrix size
+     * @return the size
+     */
+    public int getSize()
+    {
+        return this.size;
+    }
+    
+    /**
+     * Get the eigenvalues
+     * @return
+     *          the eigenvalues in ascending order. The array is not copied
+     *          so it should not be modified
+     */
+    public double[] getEigenvalues()
+    {
+        return this.eigenvalues;
+    }
+    
+    /**
+     * Get the eigenvectors
+     * @return
+     *          the orthonormal eigenvectors stored as the columns of a
+     *          flattened row-major matrix so that element i of the
+     *          eigenvector for eigenvalue j is at index i * size + j. The
+     *          array is not copied so it should not be modified
+     */
+    public double[] getEigenvectors()
+    {
+        return this.eigenvectors;
+    }
+    
+    /**
+     * Symmetric Householder reduction to tridiagonal form (tred2)
+     */
+    private void tridiagonalize()
+    {
+        final int n = this.size;
+        final double[] v = this.eigenvectors;
+        final double[] d = this.eigenvalues;
+        final double[] e = this.offDiagonal;
+        if(n == 0)
+        {
+            return;
+        }
+        
+        for(int j = 0; j < n; j++)
+        {
+            d[j] = v[(n - 1) * n + j];
+        }
+        
+        for(int i = n - 1; i > 0; i--)
+        {
+            // scale to avoid under/overflow
+            double scale = 0.0;
+            double h = 0.0;
+            for(int k = 0; k < i; k++)
+            {
+                scale += Math.abs(d[k]);
+            }
+            
+            if(scale == 0.0)
+            {
+                e[i] = d[i - 1];
+                for(int j = 0; j < i; j++)
+                {
+                    d[j] = v[(i - 1) * n + j];
+                    v[i * n + j] = 0.0;
+                    v[j * n + i] = 0.0;
+                }
+            }
+            else
+            {
+                // generate the Householder vector
+                for(int k = 0; k < i; k++)
+                {
+                    d[k] /= scale;
+                    h += d[k] * d[k];
+                }
+                
+                double f = d[i - 1];
+                double g = Math.sqrt(h);
+                if(f > 0)
+                {
+                    g = -g;
+                }
+                e[i] = scale * g;
+                h = h - f * g;
+                d[i - 1] = f - g;
+                for(int j = 0; j < i; j++)
+                {
+                    e[j] = 0.0;
+                }
+                
+                // apply the similarity transformation to the remaining
+                // columns
+                for(int j = 0; j < i; j++)
+                {
+                    f = d[j];
+                    v[j * n + i] = f;
+                    g = e[j] + v[j * n + j] * f;
+                    for(int k = j + 1; k <= i - 1; k++)
+                    {
+                        g += v[k * n + j] * d[k];
+                        e[k] += v[k * n + j] * f;
+                    }
+                    e[j] = g;
+                }
+                
+                f = 0.0;
+                for(int j = 0; j < i; j++)
+                {
+                    e[j] /= h;
+                    f += e[j] * d[j];
+                }
+                
+                double hh = f / (h + h);
+                for(int j = 0; j < i; j++)
+                {
+                    e[j] -= hh * d[j];
+                }
+                
+                for(int j = 0; j < i; j++)
+                {
+                    f = d[j];
+                    g = e[j];
+                    for(int k = j; k <= i - 1; k++)
+                    {
+                        v[k * n + j] -= (f * e[k] + g * d[k]);
+                    }
+                    d[j] = v[(i - 1) * n + j];
+                    v[i * n + j] = 0.0;
+                }
+            }
+            d[i] = h;
+        }
+        
+        // accumulate the transformations
+        for(int i = 0; i < n - 1; i++)
+        {
+            v[(n - 1) * n + i] = v[i * n + i];
+            v[i * n + i] = 1.0;
+            double h = d[i + 1];
+            if(h != 0.0)
+            {
+                for(int k = 0; k <= i; k++)
+                {
+                    d[k] = v[k * n + i + 1] / h;
+                }
+                
+                for(int j = 0; j <= i; j++)
+                {
+                    double g = 0.0;
+                    for(int k = 0; k <= i; k++)
+                    {
+                        g += v[k * n + i + 1] * v[k * n + j];
+                    }
+                    for(int k = 0; k <= i; k++)
+                    {
+                        v[k * n + j] -= g * d[k];
+                    }
+                }
+            }
+            
+            for(int k = 0; k <= i; k++)
+            {
+                v[k * n + i + 1] = 0.0;
+            }
+        }
+        
+        for(int j = 0; j < n; j++)
+        {
+            d[j] = v[(n - 1) * n + j];
+            v[(n - 1) * n + j] = 0.0;
+        }
+        v[(n - 1) * n + n - 1] = 1.0;
+        e[0] = 0.0;
+    }
+    
+    /**
+     * Symmetric tridiagonal QL algorithm (tql2) followed by sorting the
+     * eigenvalues and eigenvectors into ascending order
+     */
+    private void diagonalize()
+    {
+        final int n = this.size;
+        final double[] v = this.eigenvectors;
+        final double[] d = this.eigenvalues;
+        final double[] e = this.offDiagonal;
+        if(n == 0)
+        {
+            return;
+        }
+        
+        for(int i = 1; i < n; i++)
+        {
+            e[i - 1] = e[i];
+        }
+        e[n - 1] = 0.0;
+        
+        double f = 0.0;
+        double tst1 = 0.0;
+        final double eps = Math.pow(2.0, -52.0);
+        for(int l = 0; l < n; l++)
+        {
+            // find a small subdiagonal element
+            tst1 = Math.max(tst1, Math.abs(d[l]) + Math.abs(e[l]));
+            int m = l;
+            while(m < n)
+            {
+                if(Math.abs(e[m]) <= eps * tst1)
+                {
+                    break;
+                }
+                m++;
+            }
+            
+            // if m == l then d[l] is already an eigenvalue, otherwise
+            // iterate
+            if(m > l)
+            {
+                do
+                {
+                    // compute the implicit shift
+                    double g = d[l];
+                    double p = (d[l + 1] - g) / (2.0 * e[l]);
+                    double r = hypot(p, 1.0);
+                    if(p < 0)
+                    {
+                        r = -r;
+                    }
+                    d[l] = e[l] / (p + r);
+                    d[l + 1] = e[l] * (p + r);
+                    double dl1 = d[l + 1];
+                    double h = g - d[l];
+                    for(int i = l + 2; i < n; i++)
+                    {
+                        d[i] -= h;
+                    }
+                    f += h;
+                    
+                    // implicit QL transformation
+                    p = d[m];
+                    double c = 1.0;
+                    double c2 = c;
+                    double c3 = c;
+                    double el1 = e[l + 1];
+                    double s = 0.0;
+                    double s2 = 0.0;
+                    for(int i = m - 1; i >= l; i--)
+                    {
+                        c3 = c2;
+                        c2 = c;
+                        s2 = s;
+                        g = c * e[i];
+                        h = c * p;
+                        r = hypot(p, e[i]);
+                        e[i + 1] = s * r;
+                        s = e[i] / r;
+                        c = p / r;
+                        p = c * d[i] - s * g;
+                        d[i + 1] = h + s * (c * g + s * d[i]);
+                        
+                        // accumulate the transformation
+                        for(int k = 0; k < n; k++)
+                        {
+                            h = v[k * n + i + 1];
+                            v[k * n + i + 1] = s * v[k * n + i] + c * h;
+                            v[k * n + i] = c * v[k * n + i] - s * h;
+                        }
+                    }
+                    p = -s * s2 * c3 * el1 * e[l] / dl1;
+                    e[l] = s * p;
+                    d[l] = c * p;
+                } while(Math.abs(e[l]) > eps * tst1);
+            }
+            d[l] = d[l] + f;
+            e[l] = 0.0;
+        }
+        
+        // selection sort the eigenvalues and vectors into ascending order
+        for(int i = 0; i < n - 1; i++)
+        {
+            int k = i;
+            double p = d[i];
+            for(int j = i + 1; j < n; j++)
+            {
+                if(d[j] < p)
+                {
+                    k = j;
+                    p = d[j];
+                }
+            }
+            
+            if(k != i)
+            {
+                d[k] = d[i];
+                d[i] = p;
+                for(int j = 0; j < n; j++)
+                {
+                    p = v[j * n + i];
+                    v[j * n + i] = v[j * n + k];
+                    v[j * n + k] = p;
+                }
+            }
+        }
+    }
+    
+    /**
+     * sqrt(a^2 + b^2) without under/overflow
+     */
+    private static double hypot(double a, double b)
+    {
+        double absA = Math.abs(a);
+        double absB = Math.abs(b);
+        if(absA > absB)
+        {
+            double ratio = b / a;
+            return absA * Math.sqrt(1.0 + ratio * ratio);
+        }
+        else if(absB != 0.0)
+        {
+            double ratio = a / b;
+            return absB * Math.sqrt(1.0 + ratio * ratio);
+        }
+        else
+        {
+            return 0.0;
+        }
+    }
+}
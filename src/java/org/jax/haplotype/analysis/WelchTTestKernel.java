@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+/**
+ * Welch's (unequal variance) two sample t-test between the strains inside
+ * a partition and the strains outside of it. This gives the same result as
+ * commons-math's {@link org.apache.commons.math.stat.inference.TTest}
+ * (within the tolerance of {@link PValueCalculator}) without allocating
+ * anything per partition: the sum and sum of squares
+ * of all of the responses are calculated once, only the inside sums are
+ * accumulated for each partition and the outside sums are what's left
+ * over. Responses are centered on their mean first so that the sum of
+ * squares doesn't lose precision to large response values.
+ * <p>
+ * The kernel can hold several phenotypes (one column of responses each).
+ * Responses are stored strain-major so testing a partition against every
+ * phenotype at once is a single pass adding the response rows of the
+ * strains inside the partition, which is the product of the partition's
+ * membership vector with the response matrix.
+ * </p>
+ * <p>
+ * Instances hold scratch sums and so shouldn't be shared between
+ * threads.
+ * </p>
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class WelchTTestKernel
+{
+    /**
+     * partitions with this many strains or fewer on either side aren't
+     * tested
+     */
+    private static final int MIN_UNTESTED_GROUP_SIZE = 2;
+    
+    private final int strainCount;
+    
+    private final int phenotypeCount;
+    
+    /**
+     * the centered response for strain i and phenotype j is at
+     * i * phenotypeCount + j
+     */
+    private final double[] centeredResponses;
+    
+    /**
+     * the squares of {@link #centeredResponses}
+     */
+    private final double[] squaredResponses;
+    
+    private final double[] totalSums;
+    
+    private final double[] totalSumsOfSquares;
+    
+    private final double[] insideSums;
+    
+    private final double[] insideSumsOfSquares;
+    
+    private final PValueCalculator pValueCalculator = new PValueCalculator();
+    
+    /**
+     * Constructor for a single phenotype
+     * @param strainResponses
+     *          the per-strain responses. strain i is bit i of the partitions
+     */
+    public WelchTTestKernel(double[] strainResponses)
+    {
+        this(strainResponses.clone(), strainResponses.length, 1);
+    }
+    
+    /**
+     * Constructor for testing several phenotypes at once
+     * @param strainPhenotypeResponses
+     *          the response matrix where the major index is for strains
+     *          (strain i is bit i of the partitions) and the minor index is
+     *          for phenotypes. Every strain must have a response for every
+     *          phenotype
+     */
+    public WelchTTestKernel(double[][] strainPhenotypeResponses)
+    {
+        this(
+            flatten(strainPhenotypeResponses),
+            strainPhenotypeResponses.length,
+            strainPhenotypeResponses.length == 0 ? 0 : strainPhenotypeResponses[0].length);
+    }
+    
+    private WelchTTestKernel(double[] responses, int strainCount, int phenotypeCount)
+    {
+        this.strainCount = strainCount;
+        this.phenotypeCount = phenotypeCount;
+        this.centeredResponses = responses;
+        this.squaredResponses = new double[responses.length];
+        this.totalSums = new double[phenotypeCount];
+        this.totalSumsOfSquares = new double[phenotypeCount];
+        this.insideSums = new double[phenotypeCount];
+        this.insideSumsOfSquares = new double[phenotypeCount];
+        
+        final double[] means = new double[phenotypeCount];
+        for(int i = 0; i < strainCount; i++)
+        {
+            for(int j = 0; j < phenotypeCount; j++)
+            {
+                means[j] += responses[i * phenotypeCount + j];
+            }
+        }
+        for(int j = 0; j < phenotypeCount; j++)
+        {
+            means[j] /= strainCount;
+        }
+        
+        for(int i = 0; i < strainCount; i++)
+        {
+            for(int j = 0; j < phenotypeCount; j++)
+            {
+                int index = i * phenotypeCount + j;
+                double currResponse = responses[index] - means[j];
+                double currSquare = currResponse * currResponse;
+                this.centeredResponses[index] = currResponse;
+                this.squaredResponses[index] = currSquare;
+                this.totalSums[j] += currResponse;
+                this.totalSumsOfSquares[j] += currSquare;
+            }
+        }
+    }
+    
+    private static double[] flatten(double[][] strainPhenotypeResponses)
+    {
+        final int strainCount = strainPhenotypeResponses.length;
+        final int phenotypeCount =
+            strainCount == 0 ? 0 : strainPhenotypeResponses[0].length;
+        double[] responses = new double[strainCount * phenotypeCount];
+        for(int i = 0; i < strainCount; i++)
+        {
+            if(strainPhenotypeResponses[i].length != phenotypeCount)
+            {
+                throw new IllegalArgumentException(
+                        "expected " + phenotypeCount + " responses for strain " +
+                        i + " but got " + strainPhenotypeResponses[i].length);
+            }
+            System.arraycopy(
+                    strainPhenotypeResponses[i],
+                    0,
+                    responses,
+                    i * phenotypeCount,
+                    phenotypeCount);
+        }
+        return responses;
+    }
+    
+    /**
+     * Get the number of strains
+     * @return
+     *          the strain count
+     */
+    public int getStrainCount()
+    {
+        return this.strainCount;
+    }
+    
+    /**
+     * Get the number of phenotypes
+     * @return
+     *          the phenotype count
+     */
+    public int getPhenotypeCount()
+    {
+        return this.phenotypeCount;
+    }
+    
+    /**
+     * Determine if the given partition has enough strains on both sides
+     * to be tested
+     * @param insideStrains
+     *          the strains inside of the partition
+     * @return
+     *          true if {@link #tTest(PackedStrainPartition)} will actually
+     *          test the partition rather than just returning 1.0
+     */
+    public boolean isTestable(PackedStrainPartition insideStrains)
+    {
+        return this.isTestable(insideStrains.cardinality());
+    }
+    
+    private boolean isTestable(int insideCount)
+    {
+        int outsideCount = this.strainCount - insideCount;
+        return insideCount > MIN_UNTESTED_GROUP_SIZE &&
+               outsideCount > MIN_UNTESTED_GROUP_SIZE;
+    }
+    
+    /**
+     * Test the strains inside of the partition against the strains outside
+     * for a single phenotype kernel. This walks the partition's set bits a
+     * word at a time
+     * @param insideStrains
+     *          the strains inside of the partition which must have the
+     *          same strain count as this kernel
+     * @return
+     *          the two sided p-value or 1.0 if either side has two strains
+     *          or fewer
+     */
+    public double tTest(PackedStrainPartition insideStrains)
+    {
+        this.checkSinglePhenotype();
+        this.checkStrainCount(insideStrains);
+        
+        final double[] responses = this.centeredResponses;
+        final double[] squares = this.squaredResponses;
+        final int wordCount = insideStrains.getWordCount();
+        double insideSum = 0.0;
+        double insideSumOfSquares = 0.0;
+        for(int wordIndex = 0; wordIndex < wordCount; wordIndex++)
+        {
+            final int wordStrainOffset = wordIndex << 6;
+            long word = insideStrains.getWord(wordIndex);
+            while(word != 0L)
+            {
+                final int strainIndex =
+                    wordStrainOffset + Long.numberOfTrailingZeros(word);
+                insideSum += responses[strainIndex];
+                insideSumOfSquares += squares[strainIndex];
+                word &= word - 1L;
+            }
+        }
+        
+        return this.tTest(
+                insideStrains.cardinality(),
+                insideSum,
+                insideSumOfSquares);
+    }
+    
+    /**
+     * Test the strains inside of the partition against the strains outside
+     * for every phenotype. This walks the partition's set bits a word at a
+     * time
+     * @param insideStrains
+     *          the strains inside of the partition which must have the
+     *          same strain count as this kernel
+     * @param pValues
+     *          filled in with the two sided p-value for each phenotype or
+     *          1.0 if either side has two strains or fewer
+     */
+    public void tTest(PackedStrainPartition insideStrains, double[] pValues)
+    {
+        this.checkStrainCount(insideStrains);
+        
+        this.clearInsideSums();
+        final int wordCount = insideStrains.getWordCount();
+        for(int wordIndex = 0; wordIndex < wordCount; wordIndex++)
+        {
+            final int wordStrainOffset = wordIndex << 6;
+            long word = insideStrains.getWord(wordIndex);
+            while(word != 0L)
+            {
+                this.addToInsideSums(
+                        wordStrainOffset + Long.numberOfTrailingZeros(word));
+                word &= word - 1L;
+            }
+        }
+        
+        this.tTest(insideStrains.cardinality(), pValues);
+    }
+    
+    private void checkSinglePhenotype()
+    {
+        if(this.phenotypeCount != 1)
+        {
+            throw new IllegalStateException(
+                    "this kernel has " + this.phenotypeCount + " phenotypes. " +
+                    "Use one of the tTest functions that takes a p-value " +
+                    "array instead");
+        }
+    }
+    
+    private void checkStrainCount(PackedStrainPartition insideStrains)
+    {
+        if(insideStrains.getStrainCount() != this.strainCount)
+        {
+            throw new IllegalArgumentException(
+                    "expected a partition of " + this.strainCount +
+                    " strains but got " + insideStrains.getStrainCount());
+        }
+    }
+    
+    private void clearInsideSums()
+    {
+        final double[] sums = this.insideSums;
+        final double[] sumsOfSquares = this.insideSumsOfSquares;
+        for(int j = 0; j < sums.length; j++)
+        {
+            sums[j] = 0.0;
+            sumsOfSquares[j] = 0.0;
+        }
+    }
+    
+    /**
+     * Add the response row of the given strain to the inside sums
+     */
+    private void addToInsideSums(int strainIndex)
+    {
+        final int phenotypeCount = this.phenotypeCount;
+        final double[] responses = this.centeredResponses;
+        final double[] squares = this.squaredResponses;
+        final double[] sums = this.insideSums;
+        final double[] sumsOfSquares = this.insideSumsOfSquares;
+        final int rowOffset = strainIndex * phenotypeCount;
+        for(int j = 0; j < phenotypeCount; j++)
+        {
+            sums[j] += responses[rowOffset + j];
+            sumsOfSquares[j] += squares[rowOffset + j];
+        }
+    }
+    
+    /**
+     * Single phenotype t-test from the inside sums
+     */
+    private double tTest(int insideCount, double insideSum, double insideSumOfSquares)
+    {
+        if(!this.isTestable(insideCount))
+        {
+            return 1.0;
+        }
+        
+        return this.tTest(
+                insideCount,
+                insideSum,
+                insideSumOfSquares,
+                this.strainCount - insideCount,
+                this.totalSums[0] - insideSum,
+                this.totalSumsOfSquares[0] - insideSumOfSquares);
+    }
+    
+    /**
+     * Every phenotype's t-test from the inside sums
+     */
+    private void tTest(int insideCount, double[] pValues)
+    {
+        final int phenotypeCount = this.phenotypeCount;
+        if(!this.isTestable(insideCount))
+        {
+            for(int j = 0; j < phenotypeCount; j++)
+            {
+                pValues[j] = 1.0;
+            }
+        }
+        else
+        {
+            final int outsideCount = this.strainCount - insideCount;
+            final double[] sums = this.insideSums;
+            final double[] sumsOfSquares = this.insideSumsOfSquares;
+            for(int j = 0; j < phenotypeCount; j++)
+            {
+                pValues[j] = this.tTest(
+                        insideCount,
+                        sums[j],
+                        sumsOfSquares[j],
+                        outsideCount,
+                        this.totalSums[j] - sums[j],
+                        this.totalSumsOfSquares[j] - sumsOfSquares[j]);
+            }
+        }
+    }
+    
+    /**
+     * Welch's t-test from the group sums
+     */
+    private double tTest(
+            int count1,
+            double sum1,
+            double sumOfSquares1,
+            int count2,
+            double sum2,
+            double sumOfSquares2)
+    {
+        final double mean1 = sum1 / count1;
+        final double mean2 = sum2 / count2;
+        
+        // the subtraction can round a little below zero for constant groups
+        final double variance1 =
+            Math.max(sumOfSquares1 - sum1 * mean1, 0.0) / (count1 - 1);
+        final double variance2 =
+            Math.max(sumOfSquares2 - sum2 * mean2, 0.0) / (count2 - 1);
+        
+        return this.pValueCalculator.welchTTestPValue(
+                mean1,
+                variance1,
+                count1,
+                mean2,
+                variance2,
+                count2);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link BinaryScanResultFile}
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class BinaryScanResultFileTest
+{
+    private static final String[] SNP_IDS = new String[] {
+        "rs1", "rs22", "", "rs4444"};
+    
+    private static final String[] CHROMOSOMES = new String[] {
+        "1", "1", "X", "1"};
+    
+    private static final String[] POSITIONS = new String[] {
+        "100", "250", "", "9000000000"};
+    
+    /**
+     * Write results with every identifier column and read them back
+     * @throws Exception
+     */
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        File genoFile = File.createTempFile("genotypes", ".csv");
+        File resultFile = File.createTempFile("scan-results", ".bin");
+        try
+        {
+            Writer genoOut = new FileWriter(genoFile);
+            try
+            {
+                genoOut.write("snpId,chr,pos,A,B,s1,s2,s3\n");
+                for(int i = 0; i < SNP_IDS.length; i++)
+                {
+                    genoOut.write(
+                            SNP_IDS[i] + "," + CHROMOSOMES[i] + "," +
+                            POSITIONS[i] + ",A,T,A,T,A\n");
+                }
+            }
+            finally
+            {
+                genoOut.close();
+            }
+            
+            FlatFileGenotypeReader genoReader =
+                new FlatFileGenotypeReader(genoFile.getPath(), 3, 4, 5, -1);
+            double[][] pValues = new double[][] {
+                {0.5, 0.25, Double.NaN, 1e-300},
+                {1.0, 0.0, 0.125, 0.75}};
+            BinaryScanResultFile.Writer writer = new BinaryScanResultFile.Writer(
+                    resultFile,
+                    new String[] {"bw", "hr"},
+                    genoReader.openSnpIdentifierReader(0, 1, 2));
+            try
+            {
+                // two blocks so that identifiers are read in steps
+                writer.writePValues(pValues, 0, 3);
+                writer.writePValues(pValues, 3, 1);
+            }
+            finally
+            {
+                writer.close();
+            }
+            
+            BinaryScanResultFile results = BinaryScanResultFile.open(resultFile);
+            Assert.assertEquals(SNP_IDS.length, results.getSnpCount());
+            Assert.assertArrayEquals(
+                    new String[] {"bw", "hr"},
+                    results.getPhenotypeNames());
+            Assert.assertTrue(results.hasSnpIds());
+            Assert.assertTrue(results.hasChromosomes());
+            Assert.assertTrue(results.hasPositions());
+            for(int i = 0; i < SNP_IDS.length; i++)
+            {
+                Assert.assertEquals(SNP_IDS[i], results.getSnpId(i));
+                Assert.assertEquals(CHROMOSOMES[i], results.getChromosome(i));
+                Assert.assertEquals(
+                        POSITIONS[i].length() == 0 ? -1L : Long.parseLong(POSITIONS[i]),
+                        results.getPosition(i));
+                for(int phenoIndex = 0; phenoIndex < pValues.length; phenoIndex++)
+                {
+                    Assert.assertEquals(
+                            pValues[phenoIndex][i],
+                            results.getPValue(phenoIndex, i),
+                            0.0);
+                }
+            }
+        }
+        finally
+        {
+            genoFile.delete();
+            resultFile.delete();
+        }
+    }
+}
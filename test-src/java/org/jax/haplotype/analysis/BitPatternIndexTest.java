@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jax.haplotype.analysis;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link BitPatternIndex}
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class BitPatternIndexTest
+{
+    /**
+     * wide enough that patterns take three 64-bit words
+     */
+    private static final int BIT_COUNT = 150;
+    
+    /**
+     * Add a stream of repeated patterns wider than 64 bits with enough
+     * distinct ones to grow the pattern storage and the lookup table a few
+     * times. Every pattern has to map to the index of its first appearance
+     * and read back unchanged
+     */
+    @Test
+    public void testPatternMapping()
+    {
+        final int distinctPatternCount = 5000;
+        Random random = new Random(17L);
+        BitSet[] distinctPatterns = new BitSet[distinctPatternCount];
+        for(int i = 0; i < distinctPatternCount; i++)
+        {
+            distinctPatterns[i] = CommonsMathParity.randomPartition(random, BIT_COUNT);
+        }
+        
+        BitPatternIndex patternIndex = new BitPatternIndex(BIT_COUNT);
+        Map<BitSet, Integer> expectedIndices = new HashMap<BitSet, Integer>();
+        for(int i = 0; i < 4 * distinctPatternCount; i++)
+        {
+            // pick from a window that slides over the patterns so that new
+            // patterns keep turning up between repeated ones
+            int windowEnd = Math.min(distinctPatternCount, i / 2 + 1);
+            BitSet pattern = distinctPatterns[random.nextInt(windowEnd)];
+            
+            Integer expectedIndex = expectedIndices.get(pattern);
+            if(expectedIndex == null)
+            {
+                expectedIndex = expectedIndices.size();
+                expectedIndices.put(pattern, expectedIndex);
+            }
+            Assert.assertEquals(expectedIndex.intValue(), patternIndex.add(pattern));
+        }
+        
+        Assert.assertTrue(expectedIndices.size() > 1024);
+        Assert.assertEquals(expectedIndices.size(), patternIndex.getPatternCount());
+        for(Map.Entry<BitSet, Integer> entry: expectedIndices.entrySet())
+        {
+            PackedStrainPartition pattern = patternIndex.getPattern(entry.getValue());
+            Assert.assertEquals(BIT_COUNT, pattern.getStrainCount());
+            Assert.assertEquals(entry.getKey(), pattern.toBitSet());
+        }
+    }
+    
+    /**
+     * Patterns that only differ past the first word have to get their own
+     * indices and bits at or past the bit count have to be ignored
+     */
+    @Test
+    public void testWidePatterns()
+    {
+        BitPatternIndex patternIndex = new BitPatternIndex(BIT_COUNT);
+        
+        BitSet lowBits = new BitSet(BIT_COUNT);
+        lowBits.set(3);
+        BitSet secondWordBits = (BitSet)lowBits.clone();
+        secondWordBits.set(64);
+        BitSet lastBit = (BitSet)lowBits.clone();
+        lastBit.set(BIT_COUNT - 1);
+        
+        Assert.assertEquals(0, patternIndex.add(lowBits));
+        Assert.assertEquals(1, patternIndex.add(secondWordBits));
+        Assert.assertEquals(2, patternIndex.add(lastBit));
+        
+        BitSet pastBitCount = (BitSet)secondWordBits.clone();
+        pastBitCount.set(BIT_COUNT);
+        pastBitCount.set(BIT_COUNT + 70);
+        Assert.assertEquals(1, patternIndex.add(pastBitCount));
+        Assert.assertEquals(3, patternIndex.getPatternCount());
+        Assert.assertEquals(secondWordBits, patternIndex.getPattern(1).toBitSet());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Assert;
+
+/**
+ * Shared pieces of the tests that check our test kernels against
+ * commons-math
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class CommonsMathParity
+{
+    private static final double RELATIVE_TOLERANCE = 1e-9;
+    
+    /**
+     * commons-math's TTestImpl and OneWayAnovaImpl calculate p-values as 1
+     * minus a probability so small p-values only have an absolute precision
+     * of about 1e-16
+     */
+    private static final double ABSOLUTE_TOLERANCE = 1e-15;
+    
+    private CommonsMathParity()
+    {
+        // static utility class
+    }
+    
+    /**
+     * Assert that our p-value matches the one calculated by commons-math
+     * @param expected
+     *          the commons-math p-value
+     * @param actual
+     *          our p-value
+     */
+    static void assertPValueEquals(double expected, double actual)
+    {
+        Assert.assertEquals(
+                expected,
+                actual,
+                RELATIVE_TOLERANCE * expected + ABSOLUTE_TOLERANCE);
+    }
+    
+    /**
+     * Create a random partition of the strains. The density of the
+     * partition is random too so that some partitions are small
+     * @param random
+     *          the random number source
+     * @param strainCount
+     *          the number of strains
+     * @return
+     *          the strains inside of the partition
+     */
+    static BitSet randomPartition(Random random, int strainCount)
+    {
+        double density = random.nextDouble();
+        BitSet insideBits = new BitSet(strainCount);
+        for(int i = 0; i < strainCount; i++)
+        {
+            if(random.nextDouble() < density)
+            {
+                insideBits.set(i);
+            }
+        }
+        
+        return insideBits;
+    }
+    
+    /**
+     * Split the values into the ones inside and outside of the partition
+     * @param values
+     *          the per-strain values
+     * @param insideBits
+     *          the strains inside of the partition
+     * @return
+     *          the inside values followed by the outside values
+     */
+    static double[][] split(double[] values, BitSet insideBits)
+    {
+        int insideCount = insideBits.cardinality();
+        double[] inside = new double[insideCount];
+        double[] outside = new double[values.length - insideCount];
+        int insideIndex = 0;
+        int outsideIndex = 0;
+        for(int i = 0; i < values.length; i++)
+        {
+            if(insideBits.get(i))
+            {
+                inside[insideIndex++] = values[i];
+            }
+            else
+            {
+                outside[outsideIndex++] = values[i];
+            }
+        }
+        
+        return new double[][] {inside, outside};
+    }
+}
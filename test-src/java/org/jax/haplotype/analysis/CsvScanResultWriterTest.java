@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CsvScanResultWriter}
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class CsvScanResultWriterTest
+{
+    private static final double[][] P_VALUES = new double[][] {
+        {0.5, 0.25},
+        {0.125, 1.0}};
+    
+    /**
+     * A single phenotype without identifier columns gives the same output
+     * as the original unbuffered writer: a pValue header line followed by
+     * one p-value per line
+     * @throws IOException
+     */
+    @Test
+    public void testPValueOnly() throws IOException
+    {
+        StringWriter out = new StringWriter();
+        CsvScanResultWriter writer = new CsvScanResultWriter(
+                out,
+                new String[] {"pValue"},
+                null);
+        writer.writePValues(new double[][] {{0.5, 0.25}}, 0, 2);
+        writer.close();
+        
+        Assert.assertEquals("pValue\n0.5\n0.25\n", out.toString());
+    }
+    
+    /**
+     * Every phenotype gets a column
+     * @throws IOException
+     */
+    @Test
+    public void testPhenotypeColumns() throws IOException
+    {
+        StringWriter out = new StringWriter();
+        CsvScanResultWriter writer = new CsvScanResultWriter(
+                out,
+                new String[] {"a", "b"},
+                null);
+        writer.writePValues(P_VALUES, 0, 2);
+        writer.close();
+        
+        Assert.assertEquals("a,b\n0.5,0.125\n0.25,1.0\n", out.toString());
+    }
+    
+    /**
+     * Header names with commas, quotes or line breaks must be quoted
+     * @throws IOException
+     */
+    @Test
+    public void testQuotedHeader() throws IOException
+    {
+        StringWriter out = new StringWriter();
+        CsvScanResultWriter writer = new CsvScanResultWriter(
+                out,
+                new String[] {"weight, 8wk", "say \"hi\"", "plain"},
+                null);
+        writer.writePValues(
+                new double[][] {{0.5}, {0.25}, {0.125}},
+                0,
+                1);
+        writer.close();
+        
+        Assert.assertEquals(
+                "\"weight, 8wk\",\"say \"\"hi\"\"\",plain\n0.5,0.25,0.125\n",
+                out.toString());
+    }
+}
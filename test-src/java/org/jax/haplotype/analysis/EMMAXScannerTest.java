@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link EMMAXScanner}. The expected values come from a direct
+ * dense matrix implementation of the same model: REML maximized over
+ * log(delta) using the restricted likelihood of y given V = K + delta * I,
+ * followed by a generalized least squares fit of the phenotypes on an
+ * intercept and the SNP using V inverse
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class EMMAXScannerTest
+{
+    private static final int STRAIN_COUNT = 8;
+    
+    /**
+     * SNP-major calls used to build the kinship matrix
+     */
+    private static final double[] KINSHIP_GENOS = new double[] {
+        1, 1, 1, 0, 0, 0, 1, 0,
+        1, 1, 0, 0, 0, 1, 1, 0,
+        0, 0, 1, 1, 1, 0, 0, 1,
+        1, 1, 1, 1, 0, 0, 0, 0,
+        0, 1, 0, 1, 0, 1, 0, 1,
+        1, 1, 0, 0, 1, 1, 0, 0,
+        0, 0, 0, 1, 1, 1, 1, 1,
+        1, 0, 1, 0, 1, 0, 1, 0,
+        1, 1, 1, 0, 0, 0, 0, 1,
+        0, 0, 1, 1, 0, 1, 1, 0};
+    
+    private static final double[] PHENOTYPES = new double[] {
+        0.5, 1.5, 0.7, 2.2, 1.9, 2.6, 1.1, 2.0};
+    
+    /**
+     * the SNPs scanned. The second has a het and a missing call and the
+     * last has no variation
+     */
+    private static final double[] SCAN_GENOS = new double[] {
+        1, 1,   0, 0, 0,          1, 1, 0,
+        1, 0.5, 1, 0, Double.NaN, 0, 1, 0,
+        0, 1,   1, 0, 1,          0, 0, 1,
+        1, 1,   1, 1, 1,          1, 1, 1};
+    
+    private static final double EXPECTED_DELTA = 0.030357416971822447;
+    
+    private static final double[] EXPECTED_P_VALUES = new double[] {
+        0.6242123095464567,
+        0.07459157116086386,
+        0.31149230409596296,
+        Double.NaN};
+    
+    private static double[] createKinship()
+    {
+        CallValueKinshipCalculator kinshipCalculator =
+            new CallValueKinshipCalculator(STRAIN_COUNT);
+        kinshipCalculator.addSnps(
+                KINSHIP_GENOS,
+                KINSHIP_GENOS.length / STRAIN_COUNT);
+        return kinshipCalculator.getKinship();
+    }
+    
+    /**
+     * Test the REML estimate of delta under the null model
+     */
+    @Test
+    public void testNullDelta()
+    {
+        EMMAXScanner scanner = new EMMAXScanner(PHENOTYPES, createKinship());
+        Assert.assertEquals(EXPECTED_DELTA, scanner.getDelta(), 1e-7 * EXPECTED_DELTA);
+    }
+    
+    /**
+     * Test the per SNP p-values including mean imputation of the missing
+     * call and a SNP with no variation
+     */
+    @Test
+    public void testScanSnps()
+    {
+        EMMAXScanner scanner = new EMMAXScanner(PHENOTYPES, createKinship());
+        double[] pValues = scanner.scanSnps(
+                SCAN_GENOS,
+                SCAN_GENOS.length / STRAIN_COUNT);
+        
+        Assert.assertEquals(EXPECTED_P_VALUES.length, pValues.length);
+        for(int i = 0; i < pValues.length; i++)
+        {
+            if(Double.isNaN(EXPECTED_P_VALUES[i]))
+            {
+                Assert.assertTrue(Double.isNaN(pValues[i]));
+            }
+            else
+            {
+                Assert.assertEquals(
+                        EXPECTED_P_VALUES[i],
+                        pValues[i],
+                        1e-7 * EXPECTED_P_VALUES[i]);
+            }
+        }
+    }
+    
+    /**
+     * Scanning only the first rows of a larger block should give the same
+     * p-values as scanning them on their own
+     */
+    @Test
+    public void testPartialBlock()
+    {
+        EMMAXScanner scanner = new EMMAXScanner(PHENOTYPES, createKinship());
+        double[] pValues = scanner.scanSnps(SCAN_GENOS, 2);
+        
+        Assert.assertEquals(2, pValues.length);
+        Assert.assertEquals(EXPECTED_P_VALUES[0], pValues[0], 1e-7 * EXPECTED_P_VALUES[0]);
+        Assert.assertEquals(EXPECTED_P_VALUES[1], pValues[1], 1e-7 * EXPECTED_P_VALUES[1]);
+    }
+}
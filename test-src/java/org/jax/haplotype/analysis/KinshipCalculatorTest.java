@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jax.haplotype.analysis;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the kinship convention shared by {@link CallValueKinshipCalculator}
+ * and {@link BitPackedKinshipCalculator}
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class KinshipCalculatorTest
+{
+    private static final double TOLERANCE = 1e-12;
+    
+    /**
+     * SNP-major biallelic calls for 4 strains and 6 SNPs
+     */
+    private static final double[] BIALLELIC_GENOS = new double[] {
+        1.0, 1.0, 0.0, 0.0,
+        1.0, 0.0, 1.0, 0.0,
+        0.0, 0.0, 0.0, 1.0,
+        1.0, 1.0, 1.0, 0.0,
+        0.0, 1.0, 0.0, 1.0,
+        1.0, 1.0, 0.0, 1.0};
+    
+    /**
+     * Make sure that both calculators give the same matrix for biallelic
+     * calls without any missing data
+     */
+    @Test
+    public void testCalculatorsAgreeOnBiallelicCalls()
+    {
+        final int strainCount = 4;
+        final int snpCount = BIALLELIC_GENOS.length / strainCount;
+        
+        CallValueKinshipCalculator callValueCalculator =
+            new CallValueKinshipCalculator(strainCount);
+        callValueCalculator.addSnps(BIALLELIC_GENOS, snpCount);
+        
+        BitPackedKinshipCalculator bitPackedCalculator =
+            new BitPackedKinshipCalculator(strainCount);
+        for(int snpIndex = 0; snpIndex < snpCount; snpIndex++)
+        {
+            BitSet sdp = new BitSet(strainCount);
+            for(int strainIndex = 0; strainIndex < strainCount; strainIndex++)
+            {
+                if(BIALLELIC_GENOS[snpIndex * strainCount + strainIndex] == 1.0)
+                {
+                    sdp.set(strainIndex);
+                }
+            }
+            bitPackedCalculator.addSdp(sdp);
+        }
+        
+        double[] callValueKinship = callValueCalculator.getKinship();
+        double[] bitPackedKinship = bitPackedCalculator.getKinship();
+        Assert.assertArrayEquals(bitPackedKinship, callValueKinship, TOLERANCE);
+        
+        // strains 0 and 1 agree on 4 of the 6 SNPs
+        Assert.assertEquals(4.0 / 6.0, callValueKinship[0 * strainCount + 1], TOLERANCE);
+        for(int i = 0; i < strainCount; i++)
+        {
+            Assert.assertEquals(1.0, callValueKinship[i * strainCount + i], 0.0);
+        }
+    }
+    
+    /**
+     * Make sure that heterozygous and missing calls are handled the same
+     * way as R EMMA's emma.kinship (see {@link #calculateEmmaKinship})
+     */
+    @Test
+    public void testHetAndMissingCallsMatchEmmaKinship()
+    {
+        final int strainCount = 7;
+        final int snpCount = 300;
+        Random random = new Random(1234L);
+        double[] genos = new double[snpCount * strainCount];
+        for(int i = 0; i < genos.length; i++)
+        {
+            double draw = random.nextDouble();
+            if(draw < 0.1)
+            {
+                genos[i] = Double.NaN;
+            }
+            else if(draw < 0.25)
+            {
+                genos[i] = 0.5;
+            }
+            else
+            {
+                genos[i] = draw < 0.6 ? 0.0 : 1.0;
+            }
+        }
+        
+        // a SNP without any calls has to be skipped
+        for(int i = 0; i < strainCount; i++)
+        {
+            genos[5 * strainCount + i] = Double.NaN;
+        }
+        
+        CallValueKinshipCalculator calculator =
+            new CallValueKinshipCalculator(strainCount);
+        calculator.addSnps(genos, snpCount);
+        double[] kinship = calculator.getKinship();
+        
+        Assert.assertArrayEquals(
+                calculateEmmaKinship(genos, strainCount, snpCount),
+                kinship,
+                TOLERANCE);
+        for(int i = 0; i < strainCount; i++)
+        {
+            Assert.assertEquals(1.0, kinship[i * strainCount + i], 0.0);
+        }
+    }
+    
+    /**
+     * Make sure that streaming a packed matrix through the calculator gives
+     * the same kinship as the decoded calls. The SNP count spans a few of
+     * the calculator's decode blocks
+     */
+    @Test
+    public void testPackedGenotypesMatchCallValues()
+    {
+        final int strainCount = 5;
+        final int snpCount = 2500;
+        final byte[] codes = new byte[] {
+            GenotypeCallCodec.A_CALL,
+            GenotypeCallCodec.B_CALL,
+            GenotypeCallCodec.H_CALL,
+            GenotypeCallCodec.N_CALL};
+        final double[] callValues = new double[] {1.0, 0.0, 0.5, Double.NaN};
+        
+        Random random = new Random(4321L);
+        PackedGenotypeMatrix packedGenos =
+            new PackedGenotypeMatrix(strainCount, snpCount);
+        double[] genos = new double[snpCount * strainCount];
+        byte[] snpCodes = new byte[strainCount];
+        for(int snpIndex = 0; snpIndex < snpCount; snpIndex++)
+        {
+            for(int i = 0; i < strainCount; i++)
+            {
+                int callIndex = random.nextInt(codes.length);
+                snpCodes[i] = codes[callIndex];
+                genos[snpIndex * strainCount + i] = callValues[callIndex];
+            }
+            packedGenos.addSnp(snpCodes);
+        }
+        
+        CallValueKinshipCalculator packedCalculator =
+            new CallValueKinshipCalculator(strainCount);
+        packedCalculator.addSnps(packedGenos);
+        CallValueKinshipCalculator callValueCalculator =
+            new CallValueKinshipCalculator(strainCount);
+        callValueCalculator.addSnps(genos, snpCount);
+        
+        Assert.assertArrayEquals(
+                callValueCalculator.getKinship(),
+                packedCalculator.getKinship(),
+                0.0);
+    }
+    
+    /**
+     * Make sure that taking a chromosome's counts back out of the genome
+     * total gives the same kinship as only adding the other chromosomes.
+     * The chromosomes span a few blocks and don't end on block boundaries
+     */
+    @Test
+    public void testKinshipExcludingMatchesOtherChromosomes()
+    {
+        final int strainCount = 9;
+        final int[] chromosomeSnpCounts = new int[] {1500, 700, 2049};
+        Random random = new Random(5678L);
+        BitSet[][] chromosomeSdps = new BitSet[chromosomeSnpCounts.length][];
+        for(int chrIndex = 0; chrIndex < chromosomeSdps.length; chrIndex++)
+        {
+            chromosomeSdps[chrIndex] = new BitSet[chromosomeSnpCounts[chrIndex]];
+            for(int snpIndex = 0; snpIndex < chromosomeSnpCounts[chrIndex]; snpIndex++)
+            {
+                BitSet sdp = new BitSet(strainCount);
+                for(int i = 0; i < strainCount; i++)
+                {
+                    if(random.nextBoolean())
+                    {
+                        sdp.set(i);
+                    }
+                }
+                chromosomeSdps[chrIndex][snpIndex] = sdp;
+            }
+        }
+        
+        BitPackedKinshipCalculator genomeKinship =
+            new BitPackedKinshipCalculator(strainCount);
+        BitPackedKinshipCalculator[] chromosomeKinships =
+            new BitPackedKinshipCalculator[chromosomeSdps.length];
+        for(int chrIndex = 0; chrIndex < chromosomeSdps.length; chrIndex++)
+        {
+            chromosomeKinships[chrIndex] = new BitPackedKinshipCalculator(strainCount);
+            for(BitSet sdp: chromosomeSdps[chrIndex])
+            {
+                chromosomeKinships[chrIndex].addSdp(sdp);
+            }
+            genomeKinship.add(chromosomeKinships[chrIndex]);
+        }
+        
+        for(int excludedIndex = 0; excludedIndex < chromosomeSdps.length; excludedIndex++)
+        {
+            BitPackedKinshipCalculator otherKinship =
+                new BitPackedKinshipCalculator(strainCount);
+            for(int chrIndex = 0; chrIndex < chromosomeSdps.length; chrIndex++)
+            {
+                if(chrIndex != excludedIndex)
+                {
+                    for(BitSet sdp: chromosomeSdps[chrIndex])
+                    {
+                        otherKinship.addSdp(sdp);
+                    }
+                }
+            }
+            
+            Assert.assertArrayEquals(
+                    otherKinship.getKinship(),
+                    genomeKinship.getKinshipExcluding(chromosomeKinships[excludedIndex]),
+                    0.0);
+        }
+    }
+    
+    /**
+     * Excluding every SNP (LOCO kinship for a genome with one chromosome)
+     * has to fail rather than give a NaN matrix
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testKinshipExcludingEverySnp()
+    {
+        final int strainCount = 3;
+        BitPackedKinshipCalculator chromosomeKinship =
+            new BitPackedKinshipCalculator(strainCount);
+        BitSet sdp = new BitSet(strainCount);
+        sdp.set(1);
+        chromosomeKinship.addSdp(sdp);
+        
+        BitPackedKinshipCalculator genomeKinship =
+            new BitPackedKinshipCalculator(strainCount);
+        genomeKinship.add(chromosomeKinship);
+        genomeKinship.getKinshipExcluding(chromosomeKinship);
+    }
+    
+    /**
+     * A direct transcription of R EMMA's emma.kinship with the default
+     * additive method and use="all". If there are any hets every SNP row is
+     * doubled (hets going to the major call in one copy and the minor call
+     * in the other), missing calls are replaced by their row mean and each
+     * kinship entry is the mean IBS over the rows where it is defined
+     */
+    private static double[] calculateEmmaKinship(
+            double[] genos,
+            int strainCount,
+            int snpCount)
+    {
+        boolean hasHets = false;
+        for(double currCall: genos)
+        {
+            hasHets |= currCall == 0.5;
+        }
+        
+        double[][] snps;
+        if(hasHets)
+        {
+            snps = new double[snpCount * 2][];
+            for(int snpIndex = 0; snpIndex < snpCount; snpIndex++)
+            {
+                double[] row = new double[strainCount];
+                System.arraycopy(genos, snpIndex * strainCount, row, 0, strainCount);
+                double rowMean = rowMean(row);
+                double[] dsnps = row.clone();
+                double[] rsnps = row.clone();
+                for(int i = 0; i < strainCount; i++)
+                {
+                    if(row[i] == 0.5)
+                    {
+                        dsnps[i] = rowMean > 0.5 ? 1.0 : 0.0;
+                        rsnps[i] = rowMean < 0.5 ? 1.0 : 0.0;
+                    }
+                }
+                snps[snpIndex] = dsnps;
+                snps[snpCount + snpIndex] = rsnps;
+            }
+        }
+        else
+        {
+            snps = new double[snpCount][];
+            for(int snpIndex = 0; snpIndex < snpCount; snpIndex++)
+            {
+                snps[snpIndex] = new double[strainCount];
+                System.arraycopy(genos, snpIndex * strainCount, snps[snpIndex], 0, strainCount);
+            }
+        }
+        
+        for(double[] row: snps)
+        {
+            double rowMean = rowMean(row);
+            for(int i = 0; i < strainCount; i++)
+            {
+                if(Double.isNaN(row[i]))
+                {
+                    row[i] = rowMean;
+                }
+            }
+        }
+        
+        double[] kinship = new double[strainCount * strainCount];
+        for(int i = 0; i < strainCount; i++)
+        {
+            kinship[i * strainCount + i] = 1.0;
+            for(int j = 0; j < i; j++)
+            {
+                double ibsSum = 0.0;
+                int ibsCount = 0;
+                for(double[] row: snps)
+                {
+                    double ibs = row[i] * row[j] + (1.0 - row[i]) * (1.0 - row[j]);
+                    if(!Double.isNaN(ibs))
+                    {
+                        ibsSum += ibs;
+                        ibsCount++;
+                    }
+                }
+                kinship[i * strainCount + j] = ibsSum / ibsCount;
+                kinship[j * strainCount + i] = ibsSum / ibsCount;
+            }
+        }
+        
+        return kinship;
+    }
+    
+    /**
+     * the mean of the non-missing values (NaN if they're all missing)
+     */
+    private static double rowMean(double[] row)
+    {
+        double sum = 0.0;
+        int count = 0;
+        for(double currValue: row)
+        {
+            if(!Double.isNaN(currValue))
+            {
+                sum += currValue;
+                count++;
+            }
+        }
+        
+        return sum / count;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.math.stat.inference.OneWayAnovaImpl;
+import org.junit.Test;
+
+/**
+ * Checks {@link OneWayAnovaKernel} against commons-math's one-way ANOVA
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class OneWayAnovaKernelTest
+{
+    private static final int STRAIN_COUNT = 30;
+    
+    private static final int PARTITION_COUNT = 200;
+    
+    /**
+     * Compare the kernel with commons-math on random groupings. Groups
+     * with fewer than two strains are left out of the expected test just
+     * like the kernel leaves them out
+     * @throws Exception
+     */
+    @Test
+    public void testMatchesCommonsMath() throws Exception
+    {
+        Random random = new Random(4321L);
+        double[] responses = new double[STRAIN_COUNT];
+        for(int i = 0; i < STRAIN_COUNT; i++)
+        {
+            // commons-math doesn't center the responses so they're kept
+            // close to zero to keep its sums of squares precise
+            responses[i] = random.nextGaussian();
+        }
+        OneWayAnovaKernel kernel = new OneWayAnovaKernel(responses);
+        
+        OneWayAnovaImpl anova = new OneWayAnovaImpl();
+        short[] strainGroups = new short[STRAIN_COUNT];
+        for(int partitionIndex = 0; partitionIndex < PARTITION_COUNT; partitionIndex++)
+        {
+            // group IDs don't have to start at zero or be contiguous
+            int groupCount = 1 + random.nextInt(6);
+            int groupOffset = random.nextInt(20) - 10;
+            for(int i = 0; i < STRAIN_COUNT; i++)
+            {
+                strainGroups[i] = (short)(groupOffset + 2 * random.nextInt(groupCount));
+            }
+            
+            List<double[]> testedGroups = new ArrayList<double[]>();
+            for(int group = groupOffset; group < groupOffset + 2 * groupCount; group += 2)
+            {
+                int memberCount = 0;
+                for(int i = 0; i < STRAIN_COUNT; i++)
+                {
+                    if(strainGroups[i] == group)
+                    {
+                        memberCount++;
+                    }
+                }
+                
+                if(memberCount >= 2)
+                {
+                    double[] members = new double[memberCount];
+                    int memberIndex = 0;
+                    for(int i = 0; i < STRAIN_COUNT; i++)
+                    {
+                        if(strainGroups[i] == group)
+                        {
+                            members[memberIndex++] = responses[i];
+                        }
+                    }
+                    testedGroups.add(members);
+                }
+            }
+            
+            double expected = testedGroups.size() < 2 ?
+                    1.0 :
+                    anova.anovaPValue(testedGroups);
+            CommonsMathParity.assertPValueEquals(expected, kernel.fTest(strainGroups));
+        }
+    }
+    
+    /**
+     * Singleton groups are left out of the test
+     * @throws Exception
+     */
+    @Test
+    public void testSingletonGroupIgnored() throws Exception
+    {
+        double[] responses = new double[] {1.0, 1.5, 2.0, 4.0, 4.5, 5.5, 100.0};
+        short[] strainGroups = new short[] {0, 0, 0, 1, 1, 1, 2};
+        
+        List<double[]> testedGroups = new ArrayList<double[]>();
+        testedGroups.add(new double[] {1.0, 1.5, 2.0});
+        testedGroups.add(new double[] {4.0, 4.5, 5.5});
+        double expected = new OneWayAnovaImpl().anovaPValue(testedGroups);
+        
+        CommonsMathParity.assertPValueEquals(
+                expected,
+                new OneWayAnovaKernel(responses).fTest(strainGroups));
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import org.apache.commons.math.distribution.FDistributionImpl;
+import org.apache.commons.math.distribution.TDistributionImpl;
+import org.apache.commons.math.stat.inference.TTestImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks {@link PValueCalculator} against commons-math. The expected tail
+ * probabilities are taken from the commons-math distributions' lower
+ * tails (which are calculated directly) rather than as 1 minus a
+ * cumulative probability so that small p-values keep their relative
+ * precision
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class PValueCalculatorTest
+{
+    /**
+     * the accuracy documented by {@link PValueCalculator}
+     */
+    private static final double RELATIVE_TOLERANCE = 1e-11;
+    
+    /**
+     * degrees of freedom including some below 2 where the t distribution
+     * has no variance
+     */
+    private static final double[] T_DEGREES_OF_FREEDOM = new double[] {
+        0.5, 1.0, 1.5, 2.0, 3.7, 10.0, 58.0, 1000.0};
+    
+    private static final double[] T_STATISTICS = new double[] {
+        0.0, 0.01, 0.5, 1.3, 2.5, 6.0, 40.0, 1000.0, 1e6};
+    
+    private static final int[][] F_DEGREES_OF_FREEDOM = new int[][] {
+        {1, 1}, {1, 5}, {2, 3}, {3, 20}, {7, 12}, {1, 100}, {30, 2}};
+    
+    private static final double[] F_STATISTICS = new double[] {
+        0.1, 1.0, 3.0, 10.0, 100.0, 1e4, 1e8};
+    
+    /**
+     * Test two sided t-test p-values
+     * @throws Exception
+     */
+    @Test
+    public void testStudentT() throws Exception
+    {
+        PValueCalculator calculator = new PValueCalculator();
+        for(double degreesOfFreedom: T_DEGREES_OF_FREEDOM)
+        {
+            TDistributionImpl distribution = new TDistributionImpl(degreesOfFreedom);
+            for(double t: T_STATISTICS)
+            {
+                double expected = 2.0 * distribution.cumulativeProbability(-t);
+                assertRelativeEquals(expected, calculator.studentTPValue(t, degreesOfFreedom));
+                assertRelativeEquals(expected, calculator.studentTPValue(-t, degreesOfFreedom));
+            }
+        }
+    }
+    
+    /**
+     * Make sure that p-values around 1e-12 keep their relative precision
+     * @throws Exception
+     */
+    @Test
+    public void testStudentTTail() throws Exception
+    {
+        PValueCalculator calculator = new PValueCalculator();
+        double expected = 2.0 * new TDistributionImpl(10.0).cumulativeProbability(-40.0);
+        Assert.assertTrue(expected > 1e-13 && expected < 1e-11);
+        assertRelativeEquals(expected, calculator.studentTPValue(40.0, 10.0));
+        
+        expected = 2.0 * new TDistributionImpl(1.5).cumulativeProbability(-1e8);
+        Assert.assertTrue(expected > 1e-13 && expected < 1e-11);
+        assertRelativeEquals(expected, calculator.studentTPValue(1e8, 1.5));
+    }
+    
+    /**
+     * Test upper tail F-test p-values. P(F(d1, d2) > f) is the same as
+     * P(F(d2, d1) < 1 / f)
+     * @throws Exception
+     */
+    @Test
+    public void testF() throws Exception
+    {
+        PValueCalculator calculator = new PValueCalculator();
+        for(int[] degreesOfFreedom: F_DEGREES_OF_FREEDOM)
+        {
+            final int d1 = degreesOfFreedom[0];
+            final int d2 = degreesOfFreedom[1];
+            FDistributionImpl swappedDistribution = new FDistributionImpl(d2, d1);
+            for(double f: F_STATISTICS)
+            {
+                assertRelativeEquals(
+                        swappedDistribution.cumulativeProbability(1.0 / f),
+                        calculator.fPValue(f, d1, d2));
+            }
+        }
+        
+        Assert.assertEquals(1.0, calculator.fPValue(0.0, 3, 10), 0.0);
+        Assert.assertTrue(Double.isNaN(calculator.fPValue(Double.NaN, 3, 10)));
+    }
+    
+    /**
+     * Make sure that F p-values around 1e-12 keep their relative precision
+     * @throws Exception
+     */
+    @Test
+    public void testFTail() throws Exception
+    {
+        PValueCalculator calculator = new PValueCalculator();
+        double expected = new FDistributionImpl(20, 3).cumulativeProbability(1.0 / 100.0);
+        Assert.assertTrue(expected > 1e-13 && expected < 1e-11);
+        assertRelativeEquals(expected, calculator.fPValue(100.0, 3, 20));
+    }
+    
+    /**
+     * Test Welch's t-test against commons-math for samples small enough
+     * that the degrees of freedom fall below 2
+     * @throws Exception
+     */
+    @Test
+    public void testWelch() throws Exception
+    {
+        PValueCalculator calculator = new PValueCalculator();
+        TTestImpl tTest = new TTestImpl();
+        double[][][] samplePairs = new double[][][] {
+            {{1.0, 2.0}, {4.0, 7.0}},
+            {{1.0, 1.1}, {3.0, 9.0, 5.0}},
+            {{0.0, 10.0}, {1.0, 1.5}},
+            {{2.0, 3.0, 4.0, 5.0}, {1.0, 8.0, 2.0, 3.0, 11.0}}};
+        for(double[][] samples: samplePairs)
+        {
+            double[] stats1 = meanAndVariance(samples[0]);
+            double[] stats2 = meanAndVariance(samples[1]);
+            double pValue = calculator.welchTTestPValue(
+                    stats1[0],
+                    stats1[1],
+                    samples[0].length,
+                    stats2[0],
+                    stats2[1],
+                    samples[1].length);
+            
+            // TTestImpl returns 1 - P(|T| < t) so it's only good to about
+            // 1e-16 absolute
+            double expected = tTest.tTest(samples[0], samples[1]);
+            Assert.assertEquals(expected, pValue, RELATIVE_TOLERANCE * expected + 1e-15);
+        }
+    }
+    
+    /**
+     * Make sure that a Welch p-value around 1e-12 keeps its relative
+     * precision by comparing it with the t distribution directly
+     * @throws Exception
+     */
+    @Test
+    public void testWelchTail() throws Exception
+    {
+        PValueCalculator calculator = new PValueCalculator();
+        final double mean1 = 0.0;
+        final double variance1 = 1.0;
+        final double count1 = 8.0;
+        final double mean2 = 12.0;
+        final double variance2 = 0.5;
+        final double count2 = 12.0;
+        
+        double scaledVariance1 = variance1 / count1;
+        double scaledVariance2 = variance2 / count2;
+        double standardErrorSquared = scaledVariance1 + scaledVariance2;
+        double t = (mean2 - mean1) / Math.sqrt(standardErrorSquared);
+        double degreesOfFreedom = standardErrorSquared * standardErrorSquared / (
+                scaledVariance1 * scaledVariance1 / (count1 - 1.0) +
+                scaledVariance2 * scaledVariance2 / (count2 - 1.0));
+        double expected =
+            2.0 * new TDistributionImpl(degreesOfFreedom).cumulativeProbability(-t);
+        Assert.assertTrue(expected > 1e-13 && expected < 1e-11);
+        
+        assertRelativeEquals(
+                expected,
+                calculator.welchTTestPValue(
+                        mean1,
+                        variance1,
+                        count1,
+                        mean2,
+                        variance2,
+                        count2));
+    }
+    
+    private static void assertRelativeEquals(double expected, double actual)
+    {
+        Assert.assertEquals(expected, actual, RELATIVE_TOLERANCE * expected);
+    }
+    
+    private static double[] meanAndVariance(double[] values)
+    {
+        double mean = 0.0;
+        for(double value: values)
+        {
+            mean += value;
+        }
+        mean /= values.length;
+        
+        double variance = 0.0;
+        for(double value: values)
+        {
+            variance += (value - mean) * (value - mean);
+        }
+        variance /= values.length - 1;
+        
+        return new double[] {mean, variance};
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jax.haplotype.analysis;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PartitionTestRunner}
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class PartitionTestRunnerTest
+{
+    /**
+     * enough partitions for a few full chunks and a partial one
+     */
+    private static final int PARTITION_COUNT = 3 * 4096 + 123;
+    
+    private static final int STRAIN_COUNT = 40;
+    
+    /**
+     * Spreading the chunks over an executor has to give exactly the same
+     * p-values as testing them all on the calling thread, and every
+     * partition has to be tested exactly once either way
+     */
+    @Test
+    public void testExecutorMatchesSerial()
+    {
+        Random random = new Random(2010L);
+        final double[] strainResponses = new double[STRAIN_COUNT];
+        for(int i = 0; i < strainResponses.length; i++)
+        {
+            strainResponses[i] = random.nextGaussian();
+        }
+        
+        final PackedStrainPartition[] partitions =
+            new PackedStrainPartition[PARTITION_COUNT];
+        for(int i = 0; i < partitions.length; i++)
+        {
+            BitSet insideBits = CommonsMathParity.randomPartition(random, STRAIN_COUNT);
+            partitions[i] = PackedStrainPartition.fromBitSet(insideBits, STRAIN_COUNT);
+        }
+        
+        int[] serialTestCounts = new int[PARTITION_COUNT];
+        double[] serialPValues = testPartitions(
+                null,
+                strainResponses,
+                partitions,
+                serialTestCounts);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            int[] executorTestCounts = new int[PARTITION_COUNT];
+            double[] executorPValues = testPartitions(
+                    executor,
+                    strainResponses,
+                    partitions,
+                    executorTestCounts);
+            
+            Assert.assertArrayEquals(serialPValues, executorPValues, 0.0);
+            for(int i = 0; i < PARTITION_COUNT; i++)
+            {
+                Assert.assertEquals(1, serialTestCounts[i]);
+                Assert.assertEquals(1, executorTestCounts[i]);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * A failure in one of the chunks has to be passed on to the caller
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testChunkFailure()
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            PartitionTestRunner.testPartitions(
+                    executor,
+                    PARTITION_COUNT,
+                    new PartitionTestRunner.ChunkTest()
+                    {
+                        @Override
+                        public void testChunk(int startPartition, int endPartition)
+                        {
+                            if(endPartition == PARTITION_COUNT)
+                            {
+                                throw new IllegalStateException("last chunk failed");
+                            }
+                        }
+                    });
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * T-test the partitions counting how many times each one is tested
+     */
+    private static double[] testPartitions(
+            ExecutorService executor,
+            final double[] strainResponses,
+            final PackedStrainPartition[] partitions,
+            final int[] testCounts)
+    {
+        final double[] pValues = new double[partitions.length];
+        PartitionTestRunner.testPartitions(
+                executor,
+                partitions.length,
+                new PartitionTestRunner.ChunkTest()
+                {
+                    @Override
+                    public void testChunk(int startPartition, int endPartition)
+                    {
+                        WelchTTestKernel tTestKernel =
+                            new WelchTTestKernel(strainResponses);
+                        for(int i = startPartition; i < endPartition; i++)
+                        {
+                            pValues[i] = tTestKernel.tTest(partitions[i]);
+                            testCounts[i]++;
+                        }
+                    }
+                });
+        
+        return pValues;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.math.stat.inference.TTestImpl;
+import org.jax.haplotype.phylogeny.data.PhylogenyTreeEdge;
+import org.jax.haplotype.phylogeny.data.PhylogenyTreeEdgeWithRealValue;
+import org.jax.haplotype.phylogeny.data.PhylogenyTreeNode;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks the single pass edge tests of {@link PhylogenySignificanceTester}
+ * against a Welch t-test of the strain means inside and outside of each
+ * edge's subtree
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class PhylogenySignificanceTesterTest
+{
+    /**
+     * Test every edge of a small tree against commons-math
+     * @throws Exception
+     */
+    @Test
+    public void testMatchesSetBasedTTest() throws Exception
+    {
+        Random random = new Random(99L);
+        Map<String, List<Double>> phenotypeData = new HashMap<String, List<Double>>();
+        for(int i = 0; i < 10; i++)
+        {
+            List<Double> values = new ArrayList<Double>();
+            int valueCount = 1 + random.nextInt(4);
+            for(int j = 0; j < valueCount; j++)
+            {
+                values.add(200.0 + i % 3 + random.nextGaussian());
+            }
+            phenotypeData.put("s" + i, values);
+        }
+        
+        // ((s0,s1,s2),(s3,(s4,s5,s6)),s7) at the root with s8 and s9 on
+        // an inner node
+        PhylogenyTreeNode s456 = leafNode("s4", "s5", "s6");
+        PhylogenyTreeNode s3456 = innerNode(
+                Arrays.asList("s3"),
+                s456);
+        PhylogenyTreeNode s012 = leafNode("s0", "s1", "s2");
+        PhylogenyTreeNode s89 = leafNode("s8", "s9");
+        PhylogenyTreeNode root = innerNode(
+                Arrays.asList("s7"),
+                s012,
+                s3456,
+                s89);
+        
+        PhylogenyTreeNode testedRoot =
+            new PhylogenySignificanceTester().testMultipleResponseSignificance(
+                    root,
+                    phenotypeData);
+        
+        StrainDictionary strainDictionary = new StrainDictionary(phenotypeData);
+        int testedEdgeCount = assertEdgePValues(
+                testedRoot,
+                strainDictionary,
+                new TTestImpl());
+        Assert.assertEquals(4, testedEdgeCount);
+    }
+    
+    /**
+     * Run a series of phylogenies that share edges through one
+     * {@link PhylogenyEdgePValueCache} and make sure every edge gets the
+     * same p-value as it does without the cache. Some edges carry the
+     * complement of their subtree's strains as their SDP bits and some
+     * have fewer than 2 strains on one side
+     */
+    @Test
+    public void testEdgePValueCacheMatchesUncached()
+    {
+        Random random = new Random(31L);
+        Map<String, List<Double>> phenotypeData = new HashMap<String, List<Double>>();
+        for(int i = 0; i < 8; i++)
+        {
+            List<Double> values = new ArrayList<Double>();
+            int valueCount = 1 + random.nextInt(3);
+            for(int j = 0; j < valueCount; j++)
+            {
+                values.add(50.0 + i % 4 + random.nextGaussian());
+            }
+            phenotypeData.put("s" + i, values);
+        }
+        StrainDictionary strainDictionary = new StrainDictionary(phenotypeData);
+        
+        List<PhylogenyTreeNode> phylogenies = new ArrayList<PhylogenyTreeNode>();
+        
+        // (s0,s1,s2),(s3,(s4,s5,s6)),s7
+        phylogenies.add(sdpNode(
+                strainDictionary,
+                Arrays.asList("s7"),
+                false,
+                leafNode("s0", "s1", "s2"),
+                sdpNode(
+                        strainDictionary,
+                        Arrays.asList("s3"),
+                        false,
+                        leafNode("s4", "s5", "s6"))));
+        
+        // shares (s0,s1,s2) and (s4,s5,s6) with the first phylogeny and
+        // has a single strain leaf
+        phylogenies.add(sdpNode(
+                strainDictionary,
+                new ArrayList<String>(),
+                false,
+                leafNode("s0", "s1", "s2"),
+                sdpNode(
+                        strainDictionary,
+                        Arrays.asList("s3"),
+                        false,
+                        leafNode("s4", "s5", "s6"),
+                        leafNode("s7"))));
+        
+        // the same splits again but with complemented SDP bits. Since
+        // (s3,s4,s5,s6) has as many strains as its complement the cached
+        // complement is reused by the next phylogeny
+        phylogenies.add(sdpNode(
+                strainDictionary,
+                Arrays.asList("s0", "s1", "s2", "s7"),
+                true,
+                sdpNode(
+                        strainDictionary,
+                        Arrays.asList("s3"),
+                        true,
+                        leafNode("s4", "s5", "s6"))));
+        
+        // (s0,s1,s2,s7) is the complement of (s3,s4,s5,s6) and
+        // (s0,s1,s2,s3,s7) has the same bits as the complemented (s4,s5,s6)
+        // edge above but a different strain count
+        phylogenies.add(sdpNode(
+                strainDictionary,
+                new ArrayList<String>(),
+                false,
+                sdpNode(
+                        strainDictionary,
+                        Arrays.asList("s3"),
+                        false,
+                        sdpNode(
+                                strainDictionary,
+                                Arrays.asList("s7"),
+                                false,
+                                leafNode("s0", "s1", "s2"))),
+                leafNode("s4", "s5", "s6")));
+        
+        // an edge with only one strain outside of it
+        phylogenies.add(sdpNode(
+                strainDictionary,
+                Arrays.asList("s0"),
+                false,
+                sdpNode(
+                        strainDictionary,
+                        Arrays.asList("s1", "s2"),
+                        false,
+                        leafNode("s3", "s4"),
+                        leafNode("s5", "s6", "s7"))));
+        
+        PhylogenySignificanceTester tester = new PhylogenySignificanceTester();
+        PhylogenyEdgePValueCache edgePValueCache =
+            new PhylogenyEdgePValueCache(strainDictionary);
+        for(int pass = 0; pass < 2; pass++)
+        {
+            for(PhylogenyTreeNode phylogeny: phylogenies)
+            {
+                assertSameEdgePValues(
+                        tester.testMultipleResponseSignificance(
+                                phylogeny,
+                                strainDictionary),
+                        tester.testMultipleResponseSignificance(
+                                phylogeny,
+                                edgePValueCache));
+            }
+        }
+        
+        // only the distinct SDP bits with at least 2 strains on both sides
+        // end up in the cache
+        Assert.assertEquals(8, edgePValueCache.getCachedEdgeCount());
+    }
+    
+    /**
+     * Recursively check that two tested copies of the same phylogeny have
+     * the same p-value for every edge
+     */
+    private static void assertSameEdgePValues(
+            PhylogenyTreeNode expectedNode,
+            PhylogenyTreeNode actualNode)
+    {
+        List<PhylogenyTreeEdge> expectedEdges = expectedNode.getChildEdges();
+        List<PhylogenyTreeEdge> actualEdges = actualNode.getChildEdges();
+        Assert.assertEquals(expectedEdges.size(), actualEdges.size());
+        for(int i = 0; i < expectedEdges.size(); i++)
+        {
+            Assert.assertEquals(
+                    ((PhylogenyTreeEdgeWithRealValue)expectedEdges.get(i)).getRealValue(),
+                    ((PhylogenyTreeEdgeWithRealValue)actualEdges.get(i)).getRealValue(),
+                    0.0);
+            assertSameEdgePValues(
+                    expectedEdges.get(i).getNode(),
+                    actualEdges.get(i).getNode());
+        }
+    }
+    
+    /**
+     * Recursively check the p-value of every edge below the given node
+     * @return
+     *          the number of edges checked
+     */
+    private static int assertEdgePValues(
+            PhylogenyTreeNode node,
+            StrainDictionary strainDictionary,
+            TTestImpl tTest)
+    throws Exception
+    {
+        int edgeCount = 0;
+        for(PhylogenyTreeEdge edge: node.getChildEdges())
+        {
+            Set<String> insideStrains = new HashSet<String>(
+                    edge.getNode().getAllStrains());
+            int strainCount = strainDictionary.getStrainCount();
+            double[] strainMeans = new double[strainCount];
+            BitSet insideBits = new BitSet(strainCount);
+            for(int i = 0; i < strainCount; i++)
+            {
+                strainMeans[i] = strainDictionary.getStrainMean(i);
+                if(insideStrains.contains(strainDictionary.getStrainName(i)))
+                {
+                    insideBits.set(i);
+                }
+            }
+            
+            double[][] split = CommonsMathParity.split(strainMeans, insideBits);
+            double expected = 1.0;
+            if(split[0].length >= 2 && split[1].length >= 2)
+            {
+                expected = tTest.tTest(split[0], split[1]);
+            }
+            
+            CommonsMathParity.assertPValueEquals(
+                    expected,
+                    ((PhylogenyTreeEdgeWithRealValue)edge).getRealValue());
+            
+            edgeCount += 1 + assertEdgePValues(edge.getNode(), strainDictionary, tTest);
+        }
+        
+        return edgeCount;
+    }
+    
+    private static PhylogenyTreeNode leafNode(String... strains)
+    {
+        return new PhylogenyTreeNode(
+                new ArrayList<PhylogenyTreeEdge>(),
+                new ArrayList<String>(Arrays.asList(strains)));
+    }
+    
+    /**
+     * Create a node whose child edges carry the SDP bits of the strains
+     * below them (or the complement of those strains)
+     */
+    private static PhylogenyTreeNode sdpNode(
+            StrainDictionary strainDictionary,
+            List<String> strains,
+            boolean complementSdps,
+            PhylogenyTreeNode... children)
+    {
+        List<PhylogenyTreeEdge> childEdges = new ArrayList<PhylogenyTreeEdge>();
+        for(PhylogenyTreeNode child: children)
+        {
+            int strainCount = strainDictionary.getStrainCount();
+            BitSet sdpBits = new BitSet(strainCount);
+            for(String strain: child.getAllStrains())
+            {
+                sdpBits.set(strainDictionary.getStrainIndex(strain));
+            }
+            if(complementSdps)
+            {
+                sdpBits.flip(0, strainCount);
+            }
+            childEdges.add(new PhylogenyTreeEdge(sdpBits, child, 1.0));
+        }
+        
+        return new PhylogenyTreeNode(childEdges, new ArrayList<String>(strains));
+    }
+    
+    private static PhylogenyTreeNode innerNode(
+            List<String> strains,
+            PhylogenyTreeNode... children)
+    {
+        List<PhylogenyTreeEdge> childEdges = new ArrayList<PhylogenyTreeEdge>();
+        for(PhylogenyTreeNode child: children)
+        {
+            childEdges.add(new PhylogenyTreeEdge(null, child, 1.0));
+        }
+        
+        return new PhylogenyTreeNode(childEdges, new ArrayList<String>(strains));
+    }
+}
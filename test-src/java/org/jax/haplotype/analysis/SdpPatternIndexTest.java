@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jax.haplotype.analysis;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SdpPatternIndex}
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class SdpPatternIndexTest
+{
+    /**
+     * wide enough that each SDP takes more than one 64-bit word
+     */
+    private static final int STRAIN_COUNT = 100;
+    
+    /**
+     * Add a run of repeated SDPs with more than 1024 distinct patterns
+     * (starting from no SNP capacity so the SNP indices grow too) and make
+     * sure that the unique patterns come out in order of first appearance
+     * and that {@link SdpPatternIndex#expandPValues(double[])} gives every
+     * SNP its pattern's p-value
+     */
+    @Test
+    public void testSnpToPatternMapping()
+    {
+        final int distinctPatternCount = 3000;
+        final int snpCount = 4 * distinctPatternCount;
+        Random random = new Random(23L);
+        BitSet[] distinctPatterns = new BitSet[distinctPatternCount];
+        for(int i = 0; i < distinctPatternCount; i++)
+        {
+            distinctPatterns[i] = CommonsMathParity.randomPartition(random, STRAIN_COUNT);
+        }
+        
+        SdpPatternIndex sdpPatterns = new SdpPatternIndex(STRAIN_COUNT, 0);
+        Map<BitSet, Integer> expectedIndices = new HashMap<BitSet, Integer>();
+        List<BitSet> expectedPatterns = new ArrayList<BitSet>();
+        int[] expectedSnpPatterns = new int[snpCount];
+        for(int snpIndex = 0; snpIndex < snpCount; snpIndex++)
+        {
+            // pick from a window that slides over the patterns so that new
+            // patterns keep turning up between repeated ones
+            int windowEnd = Math.min(distinctPatternCount, snpIndex / 2 + 1);
+            BitSet sdp = distinctPatterns[random.nextInt(windowEnd)];
+            
+            Integer expectedIndex = expectedIndices.get(sdp);
+            if(expectedIndex == null)
+            {
+                expectedIndex = expectedPatterns.size();
+                expectedIndices.put(sdp, expectedIndex);
+                expectedPatterns.add(sdp);
+            }
+            expectedSnpPatterns[snpIndex] = expectedIndex.intValue();
+            
+            // bits past the strain count have to be ignored
+            BitSet paddedSdp = (BitSet)sdp.clone();
+            if(snpIndex % 3 == 0)
+            {
+                paddedSdp.set(STRAIN_COUNT + snpIndex % 50);
+            }
+            sdpPatterns.addSdp(paddedSdp);
+        }
+        
+        int uniquePatternCount = expectedPatterns.size();
+        Assert.assertTrue(uniquePatternCount > 1024);
+        Assert.assertEquals(snpCount, sdpPatterns.getSnpCount());
+        Assert.assertEquals(uniquePatternCount, sdpPatterns.getUniquePatternCount());
+        
+        PackedGenotypeMatrix uniquePatterns = sdpPatterns.getUniquePatterns();
+        Assert.assertEquals(STRAIN_COUNT, uniquePatterns.getStrainCount());
+        Assert.assertEquals(uniquePatternCount, uniquePatterns.getSnpCount());
+        double[] callValues = new double[uniquePatternCount * STRAIN_COUNT];
+        uniquePatterns.decodeSnps(0, uniquePatternCount, null, callValues);
+        for(int patternIndex = 0; patternIndex < uniquePatternCount; patternIndex++)
+        {
+            BitSet expectedPattern = expectedPatterns.get(patternIndex);
+            for(int strainIndex = 0; strainIndex < STRAIN_COUNT; strainIndex++)
+            {
+                Assert.assertEquals(
+                        expectedPattern.get(strainIndex) ? 1.0 : 0.0,
+                        callValues[patternIndex * STRAIN_COUNT + strainIndex],
+                        0.0);
+            }
+        }
+        
+        double[] uniquePValues = new double[uniquePatternCount];
+        for(int patternIndex = 0; patternIndex < uniquePatternCount; patternIndex++)
+        {
+            uniquePValues[patternIndex] = 1.0 / (patternIndex + 2);
+        }
+        double[] pValues = sdpPatterns.expandPValues(uniquePValues);
+        Assert.assertEquals(snpCount, pValues.length);
+        for(int snpIndex = 0; snpIndex < snpCount; snpIndex++)
+        {
+            Assert.assertEquals(
+                    uniquePValues[expectedSnpPatterns[snpIndex]],
+                    pValues[snpIndex],
+                    0.0);
+        }
+    }
+    
+    /**
+     * Adding the SNPs to a kinship calculator through the index has to
+     * give the same kinship as adding every SDP directly
+     */
+    @Test
+    public void testAddSdpsTo()
+    {
+        Random random = new Random(29L);
+        BitSet[] distinctPatterns = new BitSet[40];
+        for(int i = 0; i < distinctPatterns.length; i++)
+        {
+            distinctPatterns[i] = CommonsMathParity.randomPartition(random, STRAIN_COUNT);
+        }
+        
+        SdpPatternIndex sdpPatterns = new SdpPatternIndex(STRAIN_COUNT, 10);
+        BitPackedKinshipCalculator directKinship =
+            new BitPackedKinshipCalculator(STRAIN_COUNT);
+        for(int snpIndex = 0; snpIndex < 2000; snpIndex++)
+        {
+            BitSet sdp = distinctPatterns[random.nextInt(distinctPatterns.length)];
+            sdpPatterns.addSdp(sdp);
+            directKinship.addSdp(sdp);
+        }
+        
+        BitPackedKinshipCalculator indexKinship =
+            new BitPackedKinshipCalculator(STRAIN_COUNT);
+        sdpPatterns.addSdpsTo(indexKinship);
+        Assert.assertEquals(directKinship.getSnpCount(), indexKinship.getSnpCount());
+        Assert.assertArrayEquals(
+                directKinship.getKinship(),
+                indexKinship.getKinship(),
+                0.0);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jax.haplotype.analysis;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link StrainGroupPatternIndex}
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class StrainGroupPatternIndexTest
+{
+    /**
+     * Groupings that only differ by their labels have to share an index
+     */
+    @Test
+    public void testRelabeledGroupings()
+    {
+        StrainGroupPatternIndex patternIndex = new StrainGroupPatternIndex(5);
+        Assert.assertEquals(0, patternIndex.add(new short[] {3, 3, 9, 1, 9}));
+        Assert.assertEquals(0, patternIndex.add(new short[] {0, 0, 1, 2, 1}));
+        Assert.assertEquals(0, patternIndex.add(new short[] {7, 7, 2, 0, 2}));
+        Assert.assertEquals(1, patternIndex.getPatternCount());
+        Assert.assertArrayEquals(
+                new short[] {0, 0, 1, 2, 1},
+                patternIndex.getPattern(0));
+    }
+    
+    /**
+     * Groupings that split the strains differently have to get different
+     * indices
+     */
+    @Test
+    public void testDifferentSplits()
+    {
+        StrainGroupPatternIndex patternIndex = new StrainGroupPatternIndex(4);
+        Assert.assertEquals(0, patternIndex.add(new short[] {0, 0, 1, 1}));
+        Assert.assertEquals(1, patternIndex.add(new short[] {0, 1, 0, 1}));
+        Assert.assertEquals(2, patternIndex.add(new short[] {0, 1, 1, 0}));
+        Assert.assertEquals(3, patternIndex.add(new short[] {0, 0, 1, 2}));
+        Assert.assertEquals(4, patternIndex.add(new short[] {0, 0, 0, 0}));
+        Assert.assertEquals(1, patternIndex.add(new short[] {1, 0, 1, 0}));
+        Assert.assertEquals(5, patternIndex.getPatternCount());
+    }
+    
+    /**
+     * Negative labels and labels from anywhere in the short range have to
+     * be canonicalized like small ones
+     */
+    @Test
+    public void testNegativeAndSparseLabels()
+    {
+        StrainGroupPatternIndex patternIndex = new StrainGroupPatternIndex(5);
+        Assert.assertEquals(0, patternIndex.add(new short[] {
+                Short.MIN_VALUE, -1, Short.MIN_VALUE, Short.MAX_VALUE, -1}));
+        Assert.assertEquals(0, patternIndex.add(new short[] {
+                -7, 12000, -7, 0, 12000}));
+        Assert.assertArrayEquals(
+                new short[] {0, 1, 0, 2, 1},
+                patternIndex.getPattern(0));
+        
+        Assert.assertEquals(1, patternIndex.add(new short[] {
+                Short.MAX_VALUE, -1, Short.MIN_VALUE, Short.MAX_VALUE, -1}));
+        Assert.assertArrayEquals(
+                new short[] {0, 1, 2, 0, 1},
+                patternIndex.getPattern(1));
+    }
+    
+    /**
+     * Labels mapped under an old stamp must not leak into a lookup after
+     * the stamp wraps around to the same value
+     */
+    @Test
+    public void testStampWrapAround()
+    {
+        StrainGroupPatternIndex patternIndex = new StrainGroupPatternIndex(3);
+        
+        // this maps 5 to 0 and 7 to 1 under stamp 1
+        Assert.assertEquals(0, patternIndex.add(new short[] {5, 5, 7}));
+        
+        // skip ahead to the last stamp before the wrap around so the next
+        // lookup is back on stamp 1. If the stale labels were used 7 would
+        // still map to 1 and 5 to 0 giving {1, 1, 0} instead of {0, 0, 1}
+        patternIndex.currentStamp = -1;
+        Assert.assertEquals(0, patternIndex.add(new short[] {7, 7, 5}));
+        Assert.assertEquals(1, patternIndex.currentStamp);
+        Assert.assertEquals(1, patternIndex.getPatternCount());
+    }
+    
+    /**
+     * Add enough distinct groupings to grow the pattern storage and the
+     * lookup table a few times and make sure every grouping keeps its
+     * index
+     */
+    @Test
+    public void testGrowth()
+    {
+        final int strainCount = 14;
+        final int patternCount = 5000;
+        StrainGroupPatternIndex patternIndex = new StrainGroupPatternIndex(strainCount);
+        for(int i = 0; i < patternCount; i++)
+        {
+            Assert.assertEquals(i, patternIndex.add(toGroups(i, strainCount, (short)0)));
+        }
+        Assert.assertEquals(patternCount, patternIndex.getPatternCount());
+        
+        for(int i = 0; i < patternCount; i++)
+        {
+            Assert.assertEquals(i, patternIndex.add(toGroups(i, strainCount, (short)-50)));
+            Assert.assertArrayEquals(
+                    toGroups(i, strainCount, (short)0),
+                    patternIndex.getPattern(i));
+        }
+        Assert.assertEquals(patternCount, patternIndex.getPatternCount());
+    }
+    
+    /**
+     * Groupings with the wrong number of strains have to be rejected
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongStrainCount()
+    {
+        new StrainGroupPatternIndex(3).add(new short[] {0, 1});
+    }
+    
+    /**
+     * Create a distinct canonical two group split for each value below
+     * 2^(strainCount - 1). The first strain is always in the first group.
+     * The labels start at firstLabel
+     */
+    private static short[] toGroups(int value, int strainCount, short firstLabel)
+    {
+        short[] groups = new short[strainCount];
+        groups[0] = firstLabel;
+        for(int i = 1; i < strainCount; i++)
+        {
+            groups[i] = (value & (1 << (i - 1))) == 0 ?
+                    firstLabel :
+                    (short)(firstLabel + 1);
+        }
+        return groups;
+    }
+}
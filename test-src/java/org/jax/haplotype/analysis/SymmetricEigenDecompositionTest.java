@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SymmetricEigenDecomposition}
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class SymmetricEigenDecompositionTest
+{
+    private static final double TOLERANCE = 1e-12;
+    
+    /**
+     * Test a 2x2 matrix with eigenvalues 1 and 3
+     */
+    @Test
+    public void testTwoByTwo()
+    {
+        double[] matrix = new double[] {
+            2.0, 1.0,
+            1.0, 2.0};
+        SymmetricEigenDecomposition eigen = new SymmetricEigenDecomposition(matrix, 2);
+        
+        Assert.assertArrayEquals(
+                new double[] {1.0, 3.0},
+                eigen.getEigenvalues(),
+                TOLERANCE);
+        
+        // the eigenvector for 3 is (1, 1) / sqrt(2) up to sign
+        double[] eigenvectors = eigen.getEigenvectors();
+        Assert.assertEquals(
+                0.5,
+                Math.abs(eigenvectors[0 * 2 + 1] * eigenvectors[1 * 2 + 1]),
+                TOLERANCE);
+        Assert.assertTrue(eigenvectors[0 * 2 + 1] * eigenvectors[1 * 2 + 1] > 0.0);
+        assertDecomposes(matrix, eigen);
+    }
+    
+    /**
+     * Test a 3x3 tridiagonal matrix with eigenvalues 2 - sqrt(2), 2 and
+     * 2 + sqrt(2)
+     */
+    @Test
+    public void testTridiagonal()
+    {
+        double[] matrix = new double[] {
+            2.0,  -1.0, 0.0,
+            -1.0, 2.0,  -1.0,
+            0.0,  -1.0, 2.0};
+        SymmetricEigenDecomposition eigen = new SymmetricEigenDecomposition(matrix, 3);
+        
+        final double sqrt2 = Math.sqrt(2.0);
+        Assert.assertArrayEquals(
+                new double[] {2.0 - sqrt2, 2.0, 2.0 + sqrt2},
+                eigen.getEigenvalues(),
+                TOLERANCE);
+        assertDecomposes(matrix, eigen);
+    }
+    
+    /**
+     * Test a kinship-like matrix with a repeated eigenvalue
+     */
+    @Test
+    public void testRepeatedEigenvalue()
+    {
+        // 0.5 * I + 0.5 * J has eigenvalue 0.5 three times and 2.5
+        final int n = 4;
+        double[] matrix = new double[n * n];
+        for(int i = 0; i < n; i++)
+        {
+            for(int j = 0; j < n; j++)
+            {
+                matrix[i * n + j] = i == j ? 1.0 : 0.5;
+            }
+        }
+        SymmetricEigenDecomposition eigen = new SymmetricEigenDecomposition(matrix, n);
+        
+        Assert.assertArrayEquals(
+                new double[] {0.5, 0.5, 0.5, 2.5},
+                eigen.getEigenvalues(),
+                TOLERANCE);
+        assertDecomposes(matrix, eigen);
+    }
+    
+    /**
+     * Make sure that the eigenvectors are orthonormal and that
+     * A * v = lambda * v for every eigen pair
+     */
+    private static void assertDecomposes(
+            double[] matrix,
+            SymmetricEigenDecomposition eigen)
+    {
+        final int n = eigen.getSize();
+        double[] eigenvalues = eigen.getEigenvalues();
+        double[] eigenvectors = eigen.getEigenvectors();
+        for(int j = 0; j < n; j++)
+        {
+            for(int k = 0; k < n; k++)
+            {
+                double dot = 0.0;
+                for(int i = 0; i < n; i++)
+                {
+                    dot += eigenvectors[i * n + j] * eigenvectors[i * n + k];
+                }
+                Assert.assertEquals(j == k ? 1.0 : 0.0, dot, TOLERANCE);
+            }
+            
+            for(int i = 0; i < n; i++)
+            {
+                double product = 0.0;
+                for(int m = 0; m < n; m++)
+                {
+                    product += matrix[i * n + m] * eigenvectors[m * n + j];
+                }
+                Assert.assertEquals(
+                        eigenvalues[j] * eigenvectors[i * n + j],
+                        product,
+                        TOLERANCE);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.haplotype.analysis;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.apache.commons.math.stat.inference.TTestImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks {@link WelchTTestKernel} against commons-math's Welch t-test
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class WelchTTestKernelTest
+{
+    /**
+     * more than 64 so that partitions span more than one word
+     */
+    private static final int STRAIN_COUNT = 70;
+    
+    private static final int PHENOTYPE_COUNT = 3;
+    
+    private static final int PARTITION_COUNT = 200;
+    
+    /**
+     * Compare single and multiple phenotype kernels with commons-math on
+     * random partitions
+     * @throws Exception
+     */
+    @Test
+    public void testMatchesCommonsMath() throws Exception
+    {
+        Random random = new Random(1234L);
+        double[][] responses = new double[STRAIN_COUNT][PHENOTYPE_COUNT];
+        for(int i = 0; i < STRAIN_COUNT; i++)
+        {
+            for(int j = 0; j < PHENOTYPE_COUNT; j++)
+            {
+                // commons-math doesn't center the responses so they're kept
+                // close to zero to keep its variances precise
+                responses[i][j] = j + random.nextGaussian();
+            }
+        }
+        
+        WelchTTestKernel[] singleKernels = new WelchTTestKernel[PHENOTYPE_COUNT];
+        for(int j = 0; j < PHENOTYPE_COUNT; j++)
+        {
+            singleKernels[j] = new WelchTTestKernel(column(responses, j));
+        }
+        WelchTTestKernel batchKernel = new WelchTTestKernel(responses);
+        
+        TTestImpl tTest = new TTestImpl();
+        double[] batchPValues = new double[PHENOTYPE_COUNT];
+        for(int partitionIndex = 0; partitionIndex < PARTITION_COUNT; partitionIndex++)
+        {
+            BitSet insideBits = CommonsMathParity.randomPartition(random, STRAIN_COUNT);
+            PackedStrainPartition partition =
+                PackedStrainPartition.fromBitSet(insideBits, STRAIN_COUNT);
+            
+            int insideCount = insideBits.cardinality();
+            boolean testable = insideCount > 2 && STRAIN_COUNT - insideCount > 2;
+            Assert.assertEquals(testable, batchKernel.isTestable(partition));
+            
+            batchKernel.tTest(partition, batchPValues);
+            for(int j = 0; j < PHENOTYPE_COUNT; j++)
+            {
+                double expected = 1.0;
+                if(testable)
+                {
+                    double[][] split = CommonsMathParity.split(column(responses, j), insideBits);
+                    expected = tTest.tTest(split[0], split[1]);
+                }
+                
+                CommonsMathParity.assertPValueEquals(expected, singleKernels[j].tTest(partition));
+                CommonsMathParity.assertPValueEquals(expected, batchPValues[j]);
+            }
+        }
+    }
+    
+    /**
+     * Partitions with two or fewer strains on a side aren't tested
+     */
+    @Test
+    public void testUntestable()
+    {
+        WelchTTestKernel kernel = new WelchTTestKernel(
+                new double[] {1.0, 2.0, 3.0, 4.0, 5.0});
+        BitSet insideBits = new BitSet();
+        insideBits.set(0, 3);
+        PackedStrainPartition partition = PackedStrainPartition.fromBitSet(insideBits, 5);
+        Assert.assertFalse(kernel.isTestable(partition));
+        Assert.assertEquals(1.0, kernel.tTest(partition), 0.0);
+    }
+    
+    private static double[] column(double[][] matrix, int columnIndex)
+    {
+        double[] column = new double[matrix.length];
+        for(int i = 0; i < matrix.length; i++)
+        {
+            column[i] = matrix[i][columnIndex];
+        }
+        
+        return column;
+    }
+}